@@ -0,0 +1,76 @@
+package mp.jmh;
+
+import mp.concur.Collatz;
+import mp.concur.CompIntensive;
+import mp.concur.Primes;
+import mp.concur.RangeReducer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmark delle funzioni computazionalmente intensive di
+ * {@link CompIntensive} sull'intervallo [1, n] con {@code threads} thread: con
+ * partizione fissa ({@link CompIntensive#parallel}), con partizione adattiva
+ * ({@link RangeReducer}) e con i metodi di {@link Primes} e {@link Collatz}. La
+ * cache di {@link Collatz} è condivisa tra le invocazioni, quindi
+ * {@code collatzMaxSteps} misura il caso di cache calda. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompIntensiveBench {
+    /** Estremo superiore dell'intervallo */
+    @Param({"100000", "1000000"})
+    public long n;
+
+    /** Numero di thread */
+    @Param({"1", "4"})
+    public int threads;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        pool = new ForkJoinPool(threads);
+        reducer = new RangeReducer(pool);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public long numPrimes() {
+        return CompIntensive.parallel(threads, 4*threads, CompIntensive::numPrimes, 1, n, Long::sum);
+    }
+
+    @Benchmark
+    public long numPrimesAdaptive() {
+        return reducer.reduce(1, n, CompIntensive::numPrimes, Long::sum);
+    }
+
+    @Benchmark
+    public long primesCount() {
+        return Primes.count(1, n, pool);
+    }
+
+    @Benchmark
+    public long collatz() {
+        return CompIntensive.parallel(threads, 4*threads, CompIntensive::collatz, 1, n, Math::max);
+    }
+
+    @Benchmark
+    public long collatzAdaptive() {
+        return reducer.reduce(1, n, CompIntensive::collatz, Math::max);
+    }
+
+    @Benchmark
+    public long collatzMaxSteps() {
+        return Collatz.maxSteps(1, n, pool);
+    }
+
+    private ForkJoinPool pool;
+    private RangeReducer reducer;
+}
@@ -0,0 +1,49 @@
+package mp.jmh;
+
+import mp.concur.Gens;
+import mp.concur.TestSync;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmark dei generatori di {@link TestSync} e {@link Gens}: {@code threads} thread
+ * richiedono contemporaneamente {@code ops} valori ciascuno allo stesso
+ * generatore. {@code SimpleGen} non è thread-safe, con più thread misura solo il
+ * costo degli incrementi persi. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GenBench extends ParallelBench {
+    /** Nome della classe del generatore, annidata in {@link TestSync} o in
+     * {@link Gens} */
+    @Param({"SimpleGen", "SyncGen", "AtomGen", "BlockGen", "StripedGen", "TimeGen"})
+    public String gen;
+
+    /** Numero di valori richiesti da ogni thread */
+    @Param({"10000"})
+    public int ops;
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        Class<?> c;
+        try {
+            c = Class.forName(TestSync.class.getName()+"$"+gen);
+        } catch (ClassNotFoundException e) {
+            c = Class.forName(Gens.class.getName()+"$"+gen);
+        }
+        g = (TestSync.Gen)c.getConstructor().newInstance();
+    }
+
+    @Benchmark
+    public long getNext() {
+        return onThreads(() -> {
+            long s = 0;
+            for (int i = 0 ; i < ops ; i++) s += g.getNext();
+            return s;
+        });
+    }
+
+    private TestSync.Gen g;
+}
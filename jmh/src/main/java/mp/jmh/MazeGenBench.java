@@ -0,0 +1,24 @@
+package mp.jmh;
+
+import mp.game.MazeGen;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmark della generazione di labirinti ({@link MazeGen#genMaze(int, int)})
+ * quadrati di lato {@code size}. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m")    // La visita è ricorsiva
+public class MazeGenBench extends ParallelBench {
+    /** Numero di righe e di colonne (dispari) */
+    @Param({"51", "201"})
+    public int size;
+
+    @Benchmark
+    public long genMaze() {
+        return onThreads(() -> MazeGen.genMaze(size, size).length);
+    }
+}
@@ -0,0 +1,42 @@
+package mp.jmh;
+
+import mp.reflect.ObjSize;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmark di {@link ObjSize#estimate(Object)} su una mappa di {@code size}
+ * elementi, ognuno con una lista di stringhe. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-opens=java.base/java.lang=ALL-UNNAMED",
+        "--add-opens=java.base/java.util=ALL-UNNAMED"})    // Accede ai campi privati
+public class ObjSizeBench extends ParallelBench {
+    /** Numero di elementi della mappa */
+    @Param({"1000", "100000"})
+    public int size;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map<Integer,List<String>> m = new HashMap<>();
+        for (int i = 0 ; i < size ; i++) {
+            List<String> l = new ArrayList<>();
+            for (int j = 0 ; j < 3 ; j++) l.add("v"+i+"_"+j);
+            m.put(i, l);
+        }
+        obj = m;
+    }
+
+    @Benchmark
+    public long estimate() {
+        return onThreads(() -> ObjSize.estimate(obj));
+    }
+
+    private Object obj;
+}
@@ -0,0 +1,51 @@
+package mp.jmh;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+/** Stato comune ai benchmark di operazioni sequenziali che sono eseguite
+ * contemporaneamente da un numero di thread dato dal parametro {@code threads},
+ * per misurare come scalano quando più thread le eseguono insieme. Il tempo
+ * misurato è quello di tutte le esecuzioni contemporanee. */
+@State(Scope.Benchmark)
+public abstract class ParallelBench {
+    /** Numero di thread che eseguono contemporaneamente l'operazione */
+    @Param({"1", "4"})
+    public int threads;
+
+    @Setup(Level.Trial)
+    public void startThreads() {
+        exec = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopThreads() {
+        exec.shutdown();
+    }
+
+    /** Esegue l'operazione con {@code threads} thread contemporaneamente.
+     * @param task  l'operazione
+     * @return la somma dei risultati */
+    protected long onThreads(LongSupplier task) {
+        if (threads == 1) return task.getAsLong();
+        List<Future<Long>> ff = new ArrayList<>();
+        for (int i = 0 ; i < threads ; i++)
+            ff.add(exec.submit(task::getAsLong));
+        long sum = 0;
+        try {
+            for (Future<Long> f : ff) sum += f.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+        return sum;
+    }
+
+    private ExecutorService exec;
+}
@@ -0,0 +1,60 @@
+package mp.jmh;
+
+import mp.util.Utils;
+import mp.util.WordCounter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmark del conteggio delle sotto-parole ({@link Utils#subwordsCount})
+ * di una stringa random di lunghezza {@code length} su un alfabeto di
+ * {@code alphabet} lettere. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubwordsBench extends ParallelBench {
+    /** Lunghezza della stringa */
+    @Param({"10000", "1000000"})
+    public int length;
+
+    /** Lunghezza delle sotto-parole */
+    @Param({"3", "8"})
+    public int len;
+
+    /** Numero di lettere dell'alfabeto */
+    @Param({"4"})
+    public int alphabet;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random rnd = new Random(1);
+        char[] cc = new char[length];
+        for (int i = 0 ; i < length ; i++)
+            cc[i] = (char)('a' + rnd.nextInt(alphabet));
+        s = new String(cc);
+    }
+
+    @Benchmark
+    public long subwordsCountMap() {
+        return onThreads(() -> Utils.subwordsCount(s, len).size());
+    }
+
+    @Benchmark
+    public long subwordsCountRolling() {
+        return onThreads(() -> {
+            WordCounter wc = new WordCounter();
+            Utils.subwordsCount(s, len, wc);
+            return wc.size();
+        });
+    }
+
+    @Benchmark
+    public long subwordsCountBulk() {
+        return onThreads(() -> Utils.subwordsCount(s, len, len + 1, len + 2)[0].size());
+    }
+
+    private String s;
+}
@@ -0,0 +1,120 @@
+package mp.jmh;
+
+import mp.file.DirectoryScanner;
+import mp.file.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/** Benchmark dei metodi che calcolano il numero totale di byte di una directory
+ * ({@link Utils#totalSize(Path)} e varianti, {@link DirectoryScanner}) su un
+ * albero di directory generato: {@code depth} livelli, {@code fanout}
+ * sub-directory e {@code files} file per directory (stato {@link Tree}). I
+ * metodi di {@link Utils} usano i propri esecutori, il parametro
+ * {@code threads} (stato {@link Scanner}) riguarda solamente i benchmark del
+ * {@link DirectoryScanner}. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TotalSizeBench {
+    /** L'albero di directory generato */
+    @State(Scope.Benchmark)
+    public static class Tree {
+        /** Numero di livelli dell'albero */
+        @Param({"3", "4"})
+        public int depth;
+
+        /** Numero di sub-directory di ogni directory */
+        @Param({"6"})
+        public int fanout;
+
+        /** Numero di file regolari di ogni directory */
+        @Param({"10"})
+        public int files;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            root = Files.createTempDirectory("totalsize");
+            fill(root, depth);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            try (Stream<Path> s = Files.walk(root)) {
+                s.sorted(Comparator.reverseOrder()).forEach(p -> {
+                    try {
+                        Files.delete(p);
+                    } catch (IOException e) { throw new UncheckedIOException(e); }
+                });
+            }
+        }
+
+        /** Crea i file e le sub-directory della directory d, fino a level livelli */
+        private void fill(Path d, int level) throws IOException {
+            for (int i = 0 ; i < files ; i++)
+                Files.write(d.resolve("f"+i), new byte[100*(i + 1)]);
+            if (level <= 1) return;
+            for (int i = 0 ; i < fanout ; i++)
+                fill(Files.createDirectory(d.resolve("d"+i)), level - 1);
+        }
+
+        private Path root;
+    }
+
+    /** Il {@link DirectoryScanner} */
+    @State(Scope.Benchmark)
+    public static class Scanner {
+        /** Numero di thread del {@link DirectoryScanner} */
+        @Param({"1", "4"})
+        public int threads;
+
+        @Setup(Level.Trial)
+        public void setup() { scanner = new DirectoryScanner(threads); }
+
+        @TearDown(Level.Trial)
+        public void tearDown() { scanner.close(); }
+
+        private DirectoryScanner scanner;
+    }
+
+    @Benchmark
+    public long totalSize(Tree t) { return Utils.totalSize(t.root); }
+
+    @Benchmark
+    public long totalSizeNR(Tree t) { return Utils.totalSizeNR(t.root); }
+
+    @Benchmark
+    public long totalSizeNaiveConcur(Tree t) { return Utils.totalSizeNaiveConcur(t.root); }
+
+    @Benchmark
+    public long totalSizeConcur(Tree t) { return Utils.totalSizeConcur(t.root); }
+
+    @Benchmark
+    public long totalSizeQueue(Tree t) { return Utils.totalSizeQueue(t.root); }
+
+    @Benchmark
+    public long totalSizeForkJoin(Tree t) { return Utils.totalSizeForkJoin(t.root); }
+
+    @Benchmark
+    public long scannerSequential(Tree t, Scanner s) {
+        return s.scanner.totalSize(t.root, DirectoryScanner.Strategy.SEQUENTIAL);
+    }
+
+    @Benchmark
+    public long scannerForkJoin(Tree t, Scanner s) {
+        return s.scanner.totalSize(t.root, DirectoryScanner.Strategy.FORK_JOIN);
+    }
+
+    @Benchmark
+    public long scannerQueue(Tree t, Scanner s) {
+        return s.scanner.totalSize(t.root, DirectoryScanner.Strategy.QUEUE);
+    }
+}
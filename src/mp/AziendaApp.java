@@ -2,7 +2,10 @@ package mp;
 
 import mp.app.Checker;
 import mp.tapp.MenuApp;
-import java.util.Arrays;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Scanner;
 
 import static java.lang.System.out;
@@ -10,14 +13,25 @@ import static java.lang.System.out;
 /** Una semplice applicazione con menu testuale per gestire un archivio
  * dipendenti */
 public class AziendaApp extends MenuApp {
-    public static void main(String[] args) {
-        AziendaApp app = new AziendaApp();
-        app.run();
+    public static void main(String[] args) throws IOException {
+        try (DipendenteLog archivio = DipendenteLog.open(Paths.get("azienda"))) {
+            AziendaApp app = new AziendaApp(archivio);
+            app.run();
+        }
     }
 
-    public AziendaApp() {
+    /** Crea l'applicazione con un archivio solamente in memoria */
+    public AziendaApp() { this(null); }
+
+    /** Crea l'applicazione con l'archivio persistente dato, da cui carica i
+     * dipendenti e in cui registra ogni modifica.
+     * @param archivio  l'archivio persistente o null */
+    public AziendaApp(DipendenteLog archivio) {
         super("Nuovo...","Cerca...","Rimuovi...","Tutti");
-        dipendenti = new Dipendente[0];
+        dipendenti = new DipendenteStore();
+        this.archivio = archivio;
+        if (archivio != null)
+            dipendenti.aggiungiTutti(archivio.dipendenti());
     }
 
     @Override
@@ -99,32 +113,73 @@ public class AziendaApp extends MenuApp {
         Dipendente d = new Dipendente(nc);
         d.setIndirizzo(ind);
         d.setTelefono(tel);
-        dipendenti = Arrays.copyOf(dipendenti, dipendenti.length+1);
-        dipendenti[dipendenti.length-1] = d;
+        if (!salva(d, d.getCodice())) return;     // Prima l'archivio persistente
+        dipendenti.aggiungi(d);
         out.println("Il dipendente "+nc+" è stato inserito");
     }
 
     /** Legge dalla console una stringa e stampa i dipendenti che contengono nel
      * loro nome e cognome la stringa letta. */
     private void cerca() {
-        out.println("Non ancora implementato");    // Lasciato come esercizio
+        Scanner input = new Scanner(System.in);
+        out.print("Cerca: ");
+        List<Dipendente> dd = dipendenti.cerca(input.nextLine());
+        out.println("Dipendenti trovati: "+dd.size());
+        for (Dipendente d : dd)
+            out.println(d.getCodice()+"  "+d.getNomeCognome());
     }
 
     /** Legge dalla console un codice e rimuove dall'archivio il dipendente con
      * quel codice, se esiste. */
     private void rimuovi() {
-        out.println("Non ancora implementato");    // Lasciato come esercizio
+        Scanner input = new Scanner(System.in);
+        out.print("Codice: ");
+        String s = input.nextLine().trim();
+        long codice;
+        try {
+            codice = Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            out.println("ERRORE: "+s+" non è un codice");
+            return;
+        }
+        Dipendente d = dipendenti.get(codice);
+        if (d == null)
+            out.println("Nessun dipendente con codice "+codice);
+        else if (salva(null, codice)) {     // Prima l'archivio persistente
+            dipendenti.rimuovi(codice);
+            out.println("Il dipendente "+d.getNomeCognome()+" è stato rimosso");
+        }
+    }
+
+    /** Registra nell'archivio persistente, se presente, il dipendente dato o,
+     * se null, la rimozione del codice dato. È invocato prima di modificare
+     * l'archivio in memoria, che non è modificato se la registrazione fallisce.
+     * @param d  il dipendente o null
+     * @param codice  il codice del dipendente rimosso
+     * @return false se la registrazione è fallita */
+    private boolean salva(Dipendente d, long codice) {
+        if (archivio == null) return true;
+        try {
+            if (d != null) archivio.salva(d);
+            else archivio.rimuovi(codice);
+            return true;
+        } catch (IOException e) {
+            out.println("ERRORE: archivio non aggiornato, "+e.getMessage());
+            return false;
+        }
     }
 
     /** Stampa sulla console i dati di tutti i dipendenti nell'archivio */
     private void tutti() {
-        out.println("Numero dipendenti: "+dipendenti.length);
-        for (Dipendente d : dipendenti) {
+        List<Dipendente> dd = dipendenti.tutti();
+        out.println("Numero dipendenti: "+dd.size());
+        for (Dipendente d : dd) {
             out.println(d.getCodice()+"  "+d.getNomeCognome());
             Dipendente.Contatti c = d.getContatti();
             out.println("  Indirizzo: "+c.getIndirizzo()+" Tel: "+c.getTelefono());
         }
     }
 
-    private Dipendente[] dipendenti;    // Mantiene l'archivio dei dipendenti
+    private final DipendenteStore dipendenti;    // Mantiene l'archivio dei dipendenti
+    private final DipendenteLog archivio;        // Archivio persistente, null se assente
 }
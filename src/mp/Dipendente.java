@@ -1,5 +1,7 @@
 package mp;
 
+import mp.concur.Gens.BlockGen;
+
 import java.util.Objects;
 
 /** Un oggetto {@code Dipendente} rappresenta un dipendente dell'azienda */
@@ -28,10 +30,7 @@ public class Dipendente implements Comparable<Dipendente> {
      * @param stipendio  stipendio del dipendente
      * @param codice  codice del dipendente */
     public Dipendente(String nomeCognome, double stipendio, long codice) {
-        this.nomeCognome = nomeCognome;
-        this.stipendio = stipendio;
-        contatti = new Contatti();
-        this.codice = codice;
+        this(codice, nomeCognome, stipendio);
         codiceUsato(codice);    // Comunica che il codice è usato
     }
 
@@ -39,7 +38,7 @@ public class Dipendente implements Comparable<Dipendente> {
      * @param nomeCognome  nome e cognome del dipendente
      * @param stipendio  stipendio del dipendente */
     public Dipendente(String nomeCognome, double stipendio) {
-        this(nomeCognome, stipendio, nuovoCodice());
+        this(nuovoCodice(), nomeCognome, stipendio);
     }
 
     /** Crea un dipendente con il dato nome e cognome e lo stipendio a zero.
@@ -57,6 +56,10 @@ public class Dipendente implements Comparable<Dipendente> {
     /** @return lo stipendio di questo dipendente */
     public double getStipendio() { return stipendio; }
 
+    /** @return lo stipendio base di questo dipendente, senza le aggiunte
+     * delle sottoclassi (ad es. il bonus di un {@link Dirigente}) */
+    double getStipendioBase() { return stipendio; }
+
     /** Imposta un nuovo stipendio per questo dipendente.
      * @param stip  l'importo del nuovo stipendio
      * @throws IllegalArgumentException  se lo stipendio è negativo */
@@ -100,16 +103,25 @@ public class Dipendente implements Comparable<Dipendente> {
 
 
 
-    private static long ultimoCodice;    // Ultimo codice usato
+    // Inizializza i campi, il codice è già stato assegnato
+    private Dipendente(long codice, String nomeCognome, double stipendio) {
+        this.nomeCognome = nomeCognome;
+        this.stipendio = stipendio;
+        contatti = new Contatti();
+        this.codice = codice;
+    }
+
+    // Genera i codici a partire da 1, thread-safe e senza contesa tra thread
+    // che assumono dipendenti contemporaneamente
+    private static final BlockGen CODICI = new BlockGen(1, 64);
 
     private static long nuovoCodice() {  // Ritorna un nuovo codice
-        ultimoCodice++;
-        return ultimoCodice;
+        return CODICI.nextLong();
     }
 
     // Aggiorna la generazione dei codici tenendo conto che il dato codice è in uso
     private static void codiceUsato(long codice) {
-        ultimoCodice = Math.max(ultimoCodice, codice);
+        CODICI.ensureAbove(codice);
     }
 
     private String nomeCognome;
@@ -0,0 +1,520 @@
+package mp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/** Un {@code DipendenteLog} rende persistente un archivio di dipendenti in una
+ * directory tramite due tipi di file:
+ * <ul>
+ *     <li>un log binario (write-ahead log) in cui ogni modifica è aggiunta in
+ *     fondo come record: l'inserimento o l'aggiornamento di un dipendente, con
+ *     i suoi contatti e il codice del supervisore, o la rimozione di un
+ *     codice. Ogni record è preceduto dalla lunghezza e dal CRC32, così un
+ *     record scritto solo in parte da un'interruzione improvvisa è riconosciuto
+ *     e scartato al caricamento;</li>
+ *     <li>uno snapshot compatto con un record per ogni dipendente presente.
+ *     Quando il log diventa più grande del doppio dello snapshot (e almeno di
+ *     {@link DipendenteLog#MIN_SNAPSHOT_LOG} byte), le scritture passano ad un
+ *     nuovo log e lo stato a quel momento è scritto in un nuovo snapshot, in un
+ *     file temporaneo che poi sostituisce atomicamente il precedente. Lo
+ *     snapshot è scritto senza bloccare le scritture nel log.</li>
+ * </ul>
+ * Log e snapshot hanno un numero di generazione: ogni log è nel file
+ * {@code log-<generazione>.bin} e al caricamento sono applicati, dopo lo
+ * snapshot, i log della sua generazione e delle successive. I log anteriori
+ * allo snapshot sono eliminati solo dopo che lo snapshot è stato scritto, così
+ * un'interruzione in qualsiasi momento non perde modifiche.
+ * All'apertura lo snapshot e il log sono letti tramite file mappati in memoria,
+ * quindi il tempo di avvio è proporzionale alla dimensione dello snapshot più
+ * quella delle modifiche successive.
+ * <br>
+ * Le scritture sono sincrone: i metodi {@link DipendenteLog#salva(Dipendente)}
+ * e {@link DipendenteLog#rimuovi(long)} ritornano quando il record è stato
+ * scritto su disco. Con il group commit, i record di thread che scrivono
+ * contemporaneamente sono scritti e resi persistenti
+ * ({@link FileChannel#force(boolean)}) insieme: il primo thread che trova il log
+ * libero scrive tutti i record in attesa, gli altri aspettano. Così il costo di
+ * una scrittura su disco è condiviso da tutti i record del gruppo. I record
+ * sono applicati all'archivio solo quando sono su disco: se la scrittura di un
+ * gruppo fallisce, i suoi record sono scartati e i metodi che li hanno aggiunti
+ * lanciano {@link IOException}. La scrittura successiva ripristina l'archivio
+ * con un nuovo log e uno snapshot, che elimina il log con il gruppo fallito. I
+ * metodi sono thread-safe. */
+public class DipendenteLog implements AutoCloseable {
+    /** Dimensione minima del log, in byte, perché sia scritto un nuovo snapshot */
+    public static final long MIN_SNAPSHOT_LOG = 1 << 20;
+
+    /** Apre l'archivio nella directory data, creandola se non esiste, e ne
+     * carica il contenuto.
+     * @param dir  la directory dell'archivio
+     * @return l'archivio aperto
+     * @throws IOException se accade un errore o il formato dei file non è
+     * valido */
+    public static DipendenteLog open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        DipendenteLog dl = new DipendenteLog(dir);
+        try {
+            dl.load();
+        } catch (IOException | RuntimeException e) {
+            dl.close();
+            throw e;
+        }
+        return dl;
+    }
+
+    /** Ritorna i dipendenti dell'archivio nell'ordine di primo inserimento.
+     * Ogni invocazione crea nuovi oggetti, con contatti e supervisori.
+     * @return i dipendenti dell'archivio */
+    public synchronized List<Dipendente> dipendenti() {
+        Map<Long,Dipendente> dd = new LinkedHashMap<>();
+        Map<Dipendente,Long> sup = new HashMap<>();
+        for (byte[] p : state.values()) {
+            ByteBuffer b = ByteBuffer.wrap(p);
+            b.get();                              // Tipo del record, PUT
+            long codice = b.getLong();
+            byte kind = b.get();
+            String nc = getString(b);
+            double stip = b.getDouble();
+            Dipendente d = kind == DIRIGENTE ? new Dirigente(nc, stip, b.getDouble(), codice)
+                    : new Dipendente(nc, stip, codice);
+            d.setIndirizzo(getString(b));
+            d.setTelefono(getString(b));
+            long s = b.getLong();
+            if (s != NO_SUP) sup.put(d, s);
+            dd.put(codice, d);
+        }
+        for (Map.Entry<Dipendente,Long> e : sup.entrySet()) {
+            Dipendente s = dd.get(e.getValue());
+            if (s == null) continue;       // Supervisore rimosso
+            try {
+                e.getKey().setSupervisore(s);
+            } catch (IllegalArgumentException ex) { }
+        }
+        return new ArrayList<>(dd.values());
+    }
+
+    /** @return il numero di dipendenti nell'archivio */
+    public synchronized int size() { return state.size(); }
+
+    /** Registra nell'archivio i dati attuali del dipendente dato, aggiungendolo
+     * o sostituendo quelli precedenti con lo stesso codice. Ritorna quando il
+     * record è su disco.
+     * @param d  il dipendente
+     * @throws IOException se accade un errore nella scrittura */
+    public void salva(Dipendente d) throws IOException {
+        append(encode(d));
+    }
+
+    /** Rimuove dall'archivio il dipendente con il codice dato. Ritorna quando il
+     * record è su disco.
+     * @param codice  il codice del dipendente
+     * @throws IOException se accade un errore nella scrittura */
+    public void rimuovi(long codice) throws IOException {
+        byte[] p = new byte[9];
+        ByteBuffer.wrap(p).put(DEL).putLong(codice);
+        append(p);
+    }
+
+    /** Rinnova il log e scrive subito un nuovo snapshot. Se una scrittura nel
+     * log è fallita, ripristina l'archivio come la scrittura successiva.
+     * @throws IOException se accade un errore nella scrittura */
+    public void snapshot() throws IOException {
+        List<byte[]> all;
+        long gen;
+        synchronized (this) {
+            while (true) {
+                if (log == null) throw new IOException("Log closed");
+                if (!flushing && !snapshotting) break;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the log");
+                }
+            }
+            all = rotate();
+            gen = generation;
+        }
+        writeSnapshot(all, gen);
+    }
+
+    /** @return la dimensione attuale del log in byte */
+    public synchronized long logSize() { return logSize; }
+
+    /** Chiude l'archivio. I record già salvati sono su disco. */
+    @Override
+    public void close() throws IOException {
+        Group g;
+        synchronized (this) {
+            if (log == null) return;
+            g = pending.records.isEmpty() ? null : pending;
+        }
+        try {
+            if (g != null) commit(g);
+        } finally {
+            synchronized (this) {
+                while (flushing)        // Un gruppo aggiunto nel frattempo
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                if (log != null) log.close();
+                log = null;
+            }
+        }
+    }
+
+
+    private DipendenteLog(Path dir) {
+        this.dir = dir;
+        snapFile = dir.resolve("snapshot.bin");
+    }
+
+    /** Carica lo snapshot e i log, quindi apre l'ultimo log per le scritture */
+    private synchronized void load() throws IOException {
+        long gen = 0;
+        if (Files.exists(snapFile))
+            try (FileChannel ch = FileChannel.open(snapFile, StandardOpenOption.READ)) {
+                MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (b.remaining() < 12 || b.getInt() != SNAP_MAGIC)
+                    throw new IOException("Not a snapshot: "+snapFile);
+                gen = b.getLong();
+                snapSize = ch.size();
+                if (replay(b) != b.limit())
+                    throw new IOException("Corrupted snapshot: "+snapFile);
+            }
+        TreeMap<Long,Path> logs = logs();
+        for (Map.Entry<Long,Path> e : logs.entrySet()) {
+            if (e.getKey() < gen) {     // Anteriore allo snapshot
+                Files.delete(e.getValue());
+                continue;
+            }
+            FileChannel ch = FileChannel.open(e.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean current = false;
+            try {
+                MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (b.remaining() < 12 || b.getInt() != LOG_MAGIC || b.getLong() != e.getKey())
+                    throw new IOException("Not a log: "+e.getValue());
+                long end = replay(b);
+                if (e.getKey().equals(logs.lastKey())) {
+                    if (end < ch.size()) ch.truncate(end);     // Scarta un record incompleto
+                    ch.position(end);
+                    log = ch;
+                    generation = e.getKey();
+                    logSize = end;
+                    current = true;
+                }
+            } finally {
+                if (!current) ch.close();
+            }
+        }
+        if (log == null) newLog(gen);
+    }
+
+    /** Ritorna i file di log della directory per generazione */
+    private TreeMap<Long,Path> logs() throws IOException {
+        TreeMap<Long,Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "log-*.bin")) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                try {
+                    logs.put(Long.parseLong(n.substring(4, n.length() - 4)), p);
+                } catch (NumberFormatException e) { }   // Non è un log
+            }
+        }
+        return logs;
+    }
+
+    /** Applica allo stato i record del buffer dalla posizione attuale e ritorna
+     * la posizione dopo l'ultimo record valido */
+    private long replay(ByteBuffer b) {
+        CRC32 crc = new CRC32();
+        while (b.remaining() >= 8) {
+            int start = b.position(), len = b.getInt(), sum = b.getInt();
+            if (len < 9 || len > b.remaining()) return start;
+            ByteBuffer p = b.slice();
+            p.limit(len);
+            crc.reset();
+            crc.update(p);
+            if ((int)crc.getValue() != sum) return start;
+            byte[] payload = new byte[len];
+            b.get(payload);
+            apply(payload);
+        }
+        return b.position();
+    }
+
+    /** Un gruppo di record scritti insieme */
+    private static class Group {
+        final List<byte[]> records = new ArrayList<>();
+        boolean written;        // true se i record sono su disco
+        IOException error;      // Se non null, la scrittura è fallita
+    }
+
+    /** Applica allo stato un record */
+    private void apply(byte[] p) {
+        long codice = ByteBuffer.wrap(p, 1, 8).getLong();
+        if (p[0] == PUT) state.put(codice, p);
+        else state.remove(codice);
+    }
+
+    /** Aggiunge un record al gruppo in attesa e aspetta che sia su disco */
+    private void append(byte[] p) throws IOException {
+        Group g;
+        synchronized (this) {
+            if (log == null) throw new IOException("Log closed");
+            g = pending;
+            g.records.add(p);
+        }
+        commit(g);
+    }
+
+    /** Ritorna quando i record del gruppo g sono su disco. Se nessun altro
+     * thread sta scrivendo, scrive il gruppo in attesa, altrimenti aspetta.
+     * La scrittura avviene senza tenere il lock, così altri thread possono
+     * aggiungere i record del prossimo gruppo. Dopo una scrittura fallita,
+     * prima di scrivere altri record ripristina l'archivio con un nuovo log e
+     * uno snapshot dello stato, che non contiene i record scartati.
+     * @throws IOException se la scrittura di g, o il ripristino, fallisce */
+    private void commit(Group g) throws IOException {
+        while (true) {
+            Group group = null;
+            FileChannel ch = null;
+            List<byte[]> all = null;
+            long gen = 0;
+            synchronized (this) {
+                while (true) {
+                    if (g.written) return;
+                    if (g.error != null) throw new IOException("Log write failed", g.error);
+                    if (!flushing && !snapshotting) break;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the log");
+                    }
+                }
+                if (failure != null) {          // Ripristino, g è in attesa
+                    try {
+                        all = rotate();
+                        gen = generation;
+                    } catch (IOException e) {
+                        fail(pending, e);
+                        continue;
+                    }
+                } else {
+                    group = pending;            // Contiene g
+                    pending = new Group();
+                    ch = log;
+                    flushing = true;
+                }
+            }
+            if (all != null) {
+                try {
+                    writeSnapshot(all, gen);
+                } catch (IOException e) {
+                    synchronized (this) {
+                        fail(pending, e);
+                    }
+                }
+                continue;
+            }
+            IOException error = null;
+            long size = 0;
+            try {
+                ByteBuffer buf = frame(group.records);
+                size = buf.remaining();
+                while (buf.hasRemaining()) ch.write(buf);
+                ch.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                flushing = false;
+                notifyAll();
+                if (error != null) {
+                    fail(group, error);
+                    failure = error;
+                    failureGen = generation;
+                    try {
+                        ch.truncate(logSize);   // Se possibile, scarta subito il gruppo
+                    } catch (IOException e) { }
+                    continue;
+                }
+                for (byte[] p : group.records) apply(p);
+                group.written = true;
+                logSize += size;
+                if (!snapshotting && logSize > MIN_SNAPSHOT_LOG && logSize > 2*snapSize) {
+                    try {
+                        all = rotate();
+                        gen = generation;
+                    } catch (IOException e) { }     // Il log attuale resta valido
+                }
+            }
+            if (all != null)
+                try {
+                    writeSnapshot(all, gen);
+                } catch (IOException e) { }     // Riprovato quando il nuovo log sarà grande
+        }
+    }
+
+    /** Fa fallire il gruppo g con l'errore e. Se g è il gruppo in attesa, è
+     * sostituito da un nuovo gruppo. Invocato con il lock. */
+    private void fail(Group g, IOException e) {
+        g.error = e;
+        if (g == pending) pending = new Group();
+        notifyAll();
+    }
+
+    /** Passa ad un nuovo log con la prossima generazione e ritorna lo stato
+     * attuale da scrivere nello snapshot di quella generazione. Lo stato
+     * comprende solo i record su disco, quelli in attesa saranno scritti nel
+     * nuovo log. Invocato con il lock, nessun gruppo in scrittura e nessuno snapshot in
+     * corso. */
+    private List<byte[]> rotate() throws IOException {
+        newLog(generation + 1);
+        snapshotting = true;
+        return new ArrayList<>(state.values());
+    }
+
+    /** Scrive lo snapshot di generazione gen con i record all ed elimina i log
+     * anteriori. Invocato senza il lock dopo {@link #rotate()}. Se riesce,
+     * annulla l'errore di una scrittura in un log anteriore. */
+    private void writeSnapshot(List<byte[]> all, long gen) throws IOException {
+        long size = -1;
+        try {
+            size = writeSnapshotFile(all, gen);
+        } finally {
+            synchronized (this) {
+                snapshotting = false;
+                if (size >= 0) {
+                    snapSize = size;
+                    if (failure != null && failureGen < gen) failure = null;
+                }
+                notifyAll();
+            }
+        }
+        for (Map.Entry<Long,Path> e : logs().headMap(gen).entrySet())
+            Files.deleteIfExists(e.getValue());
+    }
+
+    /** Scrive lo snapshot e ne ritorna la dimensione in byte */
+    private long writeSnapshotFile(List<byte[]> all, long gen) throws IOException {
+        Path tmp = dir.resolve("snapshot.tmp");
+        long size;
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer h = ByteBuffer.allocate(12).putInt(SNAP_MAGIC).putLong(gen);
+            h.flip();
+            ch.write(h);
+            for (int i = 0 ; i < all.size() ; i += SNAPSHOT_CHUNK) {
+                ByteBuffer buf = frame(all.subList(i, Math.min(all.size(), i + SNAPSHOT_CHUNK)));
+                while (buf.hasRemaining()) ch.write(buf);
+            }
+            ch.force(true);
+            size = ch.size();
+        }
+        Files.move(tmp, snapFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    /** Crea un nuovo log vuoto con la generazione data e lo rende il log
+     * corrente. Se fallisce, il log corrente non cambia. */
+    private void newLog(long gen) throws IOException {
+        Path tmp = dir.resolve("log.tmp"), file = dir.resolve("log-"+gen+".bin");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer h = ByteBuffer.allocate(12).putInt(LOG_MAGIC).putLong(gen);
+            h.flip();
+            ch.write(h);
+            ch.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE), old = log;
+        try {
+            ch.position(12);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        log = ch;
+        generation = gen;
+        logSize = 12;
+        if (old != null) old.close();
+    }
+
+    /** Ritorna un buffer con i record dati, ognuno preceduto da lunghezza e CRC32 */
+    private static ByteBuffer frame(List<byte[]> records) {
+        int size = 0;
+        for (byte[] p : records) size += 8 + p.length;
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        CRC32 crc = new CRC32();
+        for (byte[] p : records) {
+            crc.reset();
+            crc.update(p, 0, p.length);
+            buf.putInt(p.length).putInt((int)crc.getValue()).put(p);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /** Ritorna il record PUT del dipendente dato */
+    private static byte[] encode(Dipendente d) {
+        byte[] nc = bytes(d.getNomeCognome()), ind = bytes(d.getContatti().getIndirizzo()),
+                tel = bytes(d.getContatti().getTelefono());
+        boolean dirig = d instanceof Dirigente;
+        ByteBuffer b = ByteBuffer.allocate(1 + 8 + 1 + 4 + nc.length + 8 + (dirig ? 8 : 0) +
+                4 + ind.length + 4 + tel.length + 8);
+        b.put(PUT).putLong(d.getCodice()).put(dirig ? DIRIGENTE : DIPENDENTE);
+        b.putInt(nc.length).put(nc);
+        b.putDouble(d.getStipendioBase());
+        if (dirig) b.putDouble(((Dirigente)d).getBonus());
+        b.putInt(ind.length).put(ind);
+        b.putInt(tel.length).put(tel);
+        b.putLong(d.getSupervisore() != null ? d.getSupervisore().getCodice() : NO_SUP);
+        return b.array();
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String getString(ByteBuffer b) {
+        byte[] s = new byte[b.getInt()];
+        b.get(s);
+        return new String(s, StandardCharsets.UTF_8);
+    }
+
+    private static final int LOG_MAGIC = 0x444c4f47;     // "DLOG"
+    private static final int SNAP_MAGIC = 0x44534e50;    // "DSNP"
+    private static final byte PUT = 1, DEL = 2;          // Tipi di record
+    private static final byte DIPENDENTE = 0, DIRIGENTE = 1;
+    private static final long NO_SUP = Long.MIN_VALUE;   // Nessun supervisore
+    /** Numero di record scritti insieme in uno snapshot */
+    private static final int SNAPSHOT_CHUNK = 4096;
+
+    private final Path dir, snapFile;
+    /** I record PUT dei dipendenti presenti, per codice nell'ordine di primo
+     * inserimento. Contiene solo i record su disco. */
+    private final Map<Long,byte[]> state = new LinkedHashMap<>();
+    private FileChannel log;         // null se chiuso
+    private long generation, logSize, snapSize;   // Del log corrente e dello snapshot
+    private Group pending = new Group();    // Il prossimo gruppo
+    private boolean flushing;        // true se un gruppo è in scrittura
+    private boolean snapshotting;    // true se uno snapshot è in scrittura
+    private IOException failure;     // Il primo errore di scrittura nel log
+    private long failureGen;         // La generazione del log di failure
+}
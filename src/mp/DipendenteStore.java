@@ -0,0 +1,322 @@
+package mp;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Un archivio di dipendenti con indici per codice, per sottostringhe del nome
+ * e cognome e per stipendio:
+ * <ul>
+ *     <li>la ricerca per codice, l'aggiunta e la rimozione richiedono tempo
+ *     costante;</li>
+ *     <li>per la ricerca per sottostringa del nome e cognome, ogni dipendente è
+ *     registrato nelle liste dei trigrammi (sequenze di 3 caratteri) del suo
+ *     nome e cognome. Una ricerca esamina solamente i dipendenti nella lista
+ *     più corta tra quelle dei trigrammi della stringa cercata e controlla se
+ *     la contengono. Le stringhe di meno di 3 caratteri richiedono la scansione
+ *     di tutti i dipendenti. La ricerca non distingue maiuscole e minuscole;</li>
+ *     <li>le ricerche per intervallo di stipendio usano una mappa ordinata e
+ *     richiedono tempo proporzionale al logaritmo del numero di dipendenti più
+ *     il numero di dipendenti trovati.</li>
+ * </ul>
+ * Nelle liste dei trigrammi ogni dipendente è rappresentato da un intero, il
+ * suo indice di inserimento. Le rimozioni lasciano nelle liste indici non più
+ * validi che sono eliminati ricostruendo le liste quando sono la maggioranza.
+ * <br>
+ * L'archivio è thread-safe: le letture possono procedere in parallelo, le
+ * modifiche sono eseguite in mutua esclusione. Lo stipendio di un dipendente
+ * nell'archivio deve essere modificato tramite
+ * {@link DipendenteStore#setStipendio(long, double)} e il bonus di un
+ * dirigente, che fa parte del suo stipendio, tramite
+ * {@link DipendenteStore#setBonus(long, double)}, altrimenti l'indice per
+ * stipendio non è aggiornato e {@link DipendenteStore#perStipendio(double, double)}
+ * e {@link DipendenteStore#contaPerStipendio(double, double)} usano lo
+ * stipendio precedente. */
+public class DipendenteStore {
+    /** Crea un archivio vuoto */
+    public DipendenteStore() { }
+
+    /** Aggiunge un dipendente all'archivio.
+     * @param d  il dipendente
+     * @throws IllegalArgumentException se l'archivio contiene già un dipendente
+     * con lo stesso codice */
+    public void aggiungi(Dipendente d) {
+        lock.writeLock().lock();
+        try {
+            add(d);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Aggiunge all'archivio tutti i dipendenti dati acquisendo il lock una
+     * sola volta.
+     * @param dd  i dipendenti
+     * @throws IllegalArgumentException se l'archivio contiene già un dipendente
+     * con lo stesso codice di uno di quelli dati. I dipendenti precedenti sono
+     * aggiunti comunque. */
+    public void aggiungiTutti(Collection<? extends Dipendente> dd) {
+        lock.writeLock().lock();
+        try {
+            for (Dipendente d : dd) add(d);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Rimuove dall'archivio il dipendente con il codice dato, se presente.
+     * @param codice  il codice del dipendente
+     * @return il dipendente rimosso o null se non presente */
+    public Dipendente rimuovi(long codice) {
+        lock.writeLock().lock();
+        try {
+            Entry e = byCode.remove(codice);
+            if (e == null) return null;
+            slots.set(e.slot, null);
+            removed++;
+            removeSalary(e);
+            if (removed > MIN_COMPACT && removed > slots.size()/2) compact();
+            return e.d;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Ritorna il dipendente con il codice dato.
+     * @param codice  il codice del dipendente
+     * @return il dipendente o null se non presente */
+    public Dipendente get(long codice) {
+        lock.readLock().lock();
+        try {
+            Entry e = byCode.get(codice);
+            return e != null ? e.d : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Imposta lo stipendio del dipendente con il codice dato e aggiorna
+     * l'indice per stipendio.
+     * @param codice  il codice del dipendente
+     * @param stip  il nuovo stipendio
+     * @return il dipendente o null se non presente
+     * @throws IllegalArgumentException se lo stipendio è negativo */
+    public Dipendente setStipendio(long codice, double stip) {
+        lock.writeLock().lock();
+        try {
+            Entry e = byCode.get(codice);
+            if (e == null) return null;
+            e.d.setStipendio(stip);
+            updateSalary(e);
+            return e.d;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Imposta il bonus del dirigente con il codice dato e aggiorna l'indice
+     * per stipendio.
+     * @param codice  il codice del dirigente
+     * @param b  il nuovo bonus
+     * @return il dirigente o null se non presente
+     * @throws IllegalArgumentException se il dipendente con il codice dato non
+     * è un dirigente */
+    public Dirigente setBonus(long codice, double b) {
+        lock.writeLock().lock();
+        try {
+            Entry e = byCode.get(codice);
+            if (e == null) return null;
+            if (!(e.d instanceof Dirigente))
+                throw new IllegalArgumentException("Not a manager: "+codice);
+            Dirigente d = (Dirigente)e.d;
+            d.setBonus(b);
+            updateSalary(e);
+            return d;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Ritorna i dipendenti il cui nome e cognome contiene la stringa data,
+     * senza distinguere maiuscole e minuscole, nell'ordine di inserimento.
+     * @param s  la stringa da cercare
+     * @return la lista dei dipendenti trovati */
+    public List<Dipendente> cerca(String s) {
+        String q = s.toLowerCase(Locale.ROOT);
+        List<Dipendente> res = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (q.length() < 3) {
+                for (Entry e : slots)
+                    if (e != null && e.name.contains(q)) res.add(e.d);
+                return res;
+            }
+            Posting min = null;
+            for (int i = 0 ; i + 3 <= q.length() ; i++) {
+                Posting p = trigrams.get(trigram(q, i));
+                if (p == null) return res;       // Nessun nome contiene q
+                if (min == null || p.n < min.n) min = p;
+            }
+            for (int i = 0 ; i < min.n ; i++) {
+                Entry e = slots.get(min.a[i]);
+                if (e != null && e.name.contains(q)) res.add(e.d);
+            }
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Ritorna i dipendenti con stipendio nell'intervallo [min, max], in
+     * ordine di stipendio crescente.
+     * @param min  minimo stipendio
+     * @param max  massimo stipendio
+     * @return la lista dei dipendenti con stipendio in [min, max] */
+    public List<Dipendente> perStipendio(double min, double max) {
+        List<Dipendente> res = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (min > max) return res;
+            for (Set<Dipendente> dd : bySalary.subMap(min, true, max, true).values())
+                res.addAll(dd);
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Ritorna il numero di dipendenti con stipendio nell'intervallo [min, max].
+     * @param min  minimo stipendio
+     * @param max  massimo stipendio
+     * @return il numero di dipendenti con stipendio in [min, max] */
+    public int contaPerStipendio(double min, double max) {
+        lock.readLock().lock();
+        try {
+            if (min > max) return 0;
+            int n = 0;
+            for (Set<Dipendente> dd : bySalary.subMap(min, true, max, true).values())
+                n += dd.size();
+            return n;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return la lista di tutti i dipendenti nell'ordine di inserimento */
+    public List<Dipendente> tutti() {
+        lock.readLock().lock();
+        try {
+            List<Dipendente> res = new ArrayList<>(byCode.size());
+            for (Entry e : slots)
+                if (e != null) res.add(e.d);
+            return res;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return il numero di dipendenti nell'archivio */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return byCode.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /** Un dipendente nell'archivio con i dati usati dagli indici */
+    private static class Entry {
+        Entry(Dipendente d, int slot) {
+            this.d = d;
+            this.slot = slot;
+            name = d.getNomeCognome().toLowerCase(Locale.ROOT);
+            stip = d.getStipendio();
+        }
+
+        final Dipendente d;
+        final String name;      // Nome e cognome in minuscolo
+        int slot;               // Indice di inserimento
+        double stip;            // Lo stipendio nell'indice per stipendio
+    }
+
+    /** Lista degli indici di inserimento dei dipendenti con un dato trigramma,
+     * in ordine crescente */
+    private static class Posting {
+        void add(int slot) {
+            if (n > 0 && a[n-1] == slot) return;    // Trigramma ripetuto nel nome
+            if (n == a.length) a = Arrays.copyOf(a, 2*n);
+            a[n++] = slot;
+        }
+
+        int[] a = new int[4];
+        int n;
+    }
+
+    /** Aggiunge un dipendente, con il write lock */
+    private void add(Dipendente d) {
+        if (byCode.containsKey(d.getCodice()))
+            throw new IllegalArgumentException("Duplicate code "+d.getCodice());
+        Entry e = new Entry(d, slots.size());
+        byCode.put(d.getCodice(), e);
+        slots.add(e);
+        index(e);
+        addSalary(e);
+    }
+
+    /** Registra un dipendente nelle liste dei trigrammi del suo nome */
+    private void index(Entry e) {
+        for (int i = 0 ; i + 3 <= e.name.length() ; i++)
+            trigrams.computeIfAbsent(trigram(e.name, i), k -> new Posting()).add(e.slot);
+    }
+
+    private void addSalary(Entry e) {
+        bySalary.computeIfAbsent(e.stip, k -> new LinkedHashSet<>()).add(e.d);
+    }
+
+    /** Sposta un dipendente nell'indice per stipendio dopo che il suo
+     * stipendio è cambiato */
+    private void updateSalary(Entry e) {
+        removeSalary(e);
+        e.stip = e.d.getStipendio();
+        addSalary(e);
+    }
+
+    private void removeSalary(Entry e) {
+        Set<Dipendente> dd = bySalary.get(e.stip);
+        dd.remove(e.d);
+        if (dd.isEmpty()) bySalary.remove(e.stip);
+    }
+
+    /** Elimina gli indici dei dipendenti rimossi riassegnando gli indici di
+     * inserimento e ricostruendo le liste dei trigrammi */
+    private void compact() {
+        List<Entry> old = slots;
+        slots = new ArrayList<>(byCode.size());
+        trigrams.clear();
+        for (Entry e : old)
+            if (e != null) {
+                e.slot = slots.size();
+                slots.add(e);
+                index(e);
+            }
+        removed = 0;
+    }
+
+    /** Ritorna la chiave del trigramma di s che inizia all'indice i */
+    private static long trigram(String s, int i) {
+        return (long)s.charAt(i) << 32 | (long)s.charAt(i+1) << 16 | s.charAt(i+2);
+    }
+
+    /** Numero minimo di rimozioni prima di ricostruire gli indici */
+    private static final int MIN_COMPACT = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long,Entry> byCode = new HashMap<>();
+    /** I dipendenti per indice di inserimento, null se rimossi */
+    private List<Entry> slots = new ArrayList<>();
+    private int removed;        // Numero di null in slots
+    private final Map<Long,Posting> trigrams = new HashMap<>();
+    private final NavigableMap<Double,Set<Dipendente>> bySalary = new TreeMap<>();
+}
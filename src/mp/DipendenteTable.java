@@ -0,0 +1,234 @@
+package mp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.DoubleSummaryStatistics;
+import java.util.List;
+import java.util.function.DoublePredicate;
+
+/** Una tabella di dipendenti memorizzata per colonne: i codici in un array di
+ * {@code long}, gli stipendi in un array di {@code double} e i nomi e cognomi
+ * codificati in UTF-8 uno di seguito all'altro in un unico array di byte. Ogni
+ * dipendente è individuato dal suo indice di riga. Rispetto ad una
+ * {@code List<Dipendente>}, in cui ogni dipendente è un oggetto con i propri
+ * contatti e la propria stringa, una tabella occupa molta meno memoria e le
+ * interrogazioni sugli stipendi scorrono un solo array contiguo, quindi usano
+ * al meglio la cache del processore e i loro cicli possono essere vettorizzati
+ * dal compilatore JIT.
+ * <br>
+ * Contatti e supervisori non sono memorizzati. I dipendenti possono essere
+ * ricostruiti su richiesta con {@link DipendenteTable#get(int)} o tramite la
+ * vista {@link DipendenteTable#view(int[])}. Non è thread-safe. */
+public class DipendenteTable {
+    /** Crea una tabella vuota */
+    public DipendenteTable() { this(16); }
+
+    /** Crea una tabella vuota con spazio per il numero di dipendenti dato.
+     * @param capacity  numero di dipendenti previsto */
+    public DipendenteTable(int capacity) {
+        capacity = Math.max(1, capacity);
+        codes = new long[capacity];
+        salaries = new double[capacity];
+        offsets = new int[capacity + 1];
+        names = new byte[16*capacity];
+    }
+
+    /** Crea una tabella con i dipendenti dati.
+     * @param dd  i dipendenti
+     * @return la tabella dei dipendenti */
+    public static DipendenteTable of(Collection<? extends Dipendente> dd) {
+        DipendenteTable t = new DipendenteTable(dd.size());
+        for (Dipendente d : dd) t.add(d);
+        return t;
+    }
+
+    /** Aggiunge un dipendente alla tabella.
+     * @param d  il dipendente
+     * @return l'indice di riga del dipendente */
+    public int add(Dipendente d) {
+        return add(d.getCodice(), d.getNomeCognome(), d.getStipendio());
+    }
+
+    /** Aggiunge un dipendente con i dati specificati.
+     * @param codice  codice del dipendente
+     * @param nomeCognome  nome e cognome del dipendente
+     * @param stipendio  stipendio del dipendente
+     * @return l'indice di riga del dipendente */
+    public int add(long codice, String nomeCognome, double stipendio) {
+        if (size == codes.length) {
+            int cap = 2*size;
+            codes = Arrays.copyOf(codes, cap);
+            salaries = Arrays.copyOf(salaries, cap);
+            offsets = Arrays.copyOf(offsets, cap + 1);
+        }
+        byte[] b = nomeCognome.getBytes(StandardCharsets.UTF_8);
+        int end = offsets[size];
+        if (end + b.length > names.length)
+            names = Arrays.copyOf(names, Math.max(2*names.length, end + b.length));
+        System.arraycopy(b, 0, names, end, b.length);
+        codes[size] = codice;
+        salaries[size] = stipendio;
+        offsets[size + 1] = end + b.length;
+        return size++;
+    }
+
+    /** @return il numero di dipendenti */
+    public int size() { return size; }
+
+    /** @param row  indice di riga
+     * @return il codice del dipendente della riga */
+    public long codice(int row) { return codes[check(row)]; }
+
+    /** @param row  indice di riga
+     * @return lo stipendio del dipendente della riga */
+    public double stipendio(int row) { return salaries[check(row)]; }
+
+    /** @param row  indice di riga
+     * @return il nome e cognome del dipendente della riga */
+    public String nomeCognome(int row) {
+        check(row);
+        return new String(names, offsets[row], offsets[row+1] - offsets[row], StandardCharsets.UTF_8);
+    }
+
+    /** Ritorna un nuovo oggetto {@link Dipendente} con i dati della riga
+     * specificata. I contatti sono vuoti e il supervisore è null.
+     * @param row  indice di riga
+     * @return il dipendente della riga */
+    public Dipendente get(int row) {
+        return new Dipendente(nomeCognome(row), stipendio(row), codice(row));
+    }
+
+    /** Ritorna una lista non modificabile dei dipendenti delle righe date.
+     * Ogni {@code get} della lista ricostruisce il dipendente con
+     * {@link DipendenteTable#get(int)}.
+     * @param rows  indici di riga
+     * @return la lista dei dipendenti delle righe */
+    public List<Dipendente> view(int[] rows) {
+        return new AbstractList<Dipendente>() {
+            @Override
+            public Dipendente get(int i) { return DipendenteTable.this.get(rows[i]); }
+
+            @Override
+            public int size() { return rows.length; }
+        };
+    }
+
+    /** Ritorna il numero di dipendenti con stipendio in [min, max].
+     * @param min  minimo stipendio
+     * @param max  massimo stipendio
+     * @return il numero di dipendenti con stipendio in [min, max] */
+    public int contaPerStipendio(double min, double max) {
+        double[] s = salaries;
+        int n = size, c = 0;
+        for (int i = 0 ; i < n ; i++)            // Senza salti, vettorizzabile
+            c += (s[i] >= min & s[i] <= max) ? 1 : 0;
+        return c;
+    }
+
+    /** Ritorna gli indici di riga, in ordine crescente, dei dipendenti con
+     * stipendio in [min, max].
+     * @param min  minimo stipendio
+     * @param max  massimo stipendio
+     * @return gli indici di riga dei dipendenti trovati */
+    public int[] filtraPerStipendio(double min, double max) {
+        double[] s = salaries;
+        int[] rows = new int[contaPerStipendio(min, max)];
+        for (int i = 0, k = 0 ; k < rows.length ; i++)
+            if (s[i] >= min && s[i] <= max) rows[k++] = i;
+        return rows;
+    }
+
+    /** Ritorna gli indici di riga, in ordine crescente, dei dipendenti il cui
+     * stipendio soddisfa il predicato dato.
+     * @param p  un predicato sugli stipendi
+     * @return gli indici di riga dei dipendenti trovati */
+    public int[] filtra(DoublePredicate p) {
+        int[] rows = new int[Math.min(size, 16)];
+        int k = 0;
+        for (int i = 0 ; i < size ; i++)
+            if (p.test(salaries[i])) {
+                if (k == rows.length) rows = Arrays.copyOf(rows, 2*k);
+                rows[k++] = i;
+            }
+        return Arrays.copyOf(rows, k);
+    }
+
+    /** Ritorna gli indici di riga dei k dipendenti con gli stipendi più alti,
+     * in ordine di stipendio decrescente. Usa un heap di k indici, quindi
+     * richiede tempo proporzionale a n log k.
+     * @param k  numero di dipendenti
+     * @return gli indici di riga dei dipendenti trovati
+     * @throws IllegalArgumentException se k < 0 */
+    public int[] topK(int k) {
+        if (k < 0) throw new IllegalArgumentException("k must be >= 0");
+        k = Math.min(k, size);
+        int[] heap = new int[k];     // Heap con lo stipendio minimo in cima
+        if (k == 0) return heap;
+        for (int i = 0 ; i < k ; i++) heap[i] = i;
+        for (int i = k/2 - 1 ; i >= 0 ; i--) siftDown(heap, i, k);
+        double[] s = salaries;
+        for (int i = k ; i < size ; i++)
+            if (s[i] > s[heap[0]]) {
+                heap[0] = i;
+                siftDown(heap, 0, k);
+            }
+        for (int n = k - 1 ; n > 0 ; n--) {     // Ordina estraendo i minimi
+            int t = heap[0];
+            heap[0] = heap[n];
+            heap[n] = t;
+            siftDown(heap, 0, n);
+        }
+        return heap;
+    }
+
+    /** @return le statistiche (numero, somma, media, minimo e massimo) degli
+     * stipendi */
+    public DoubleSummaryStatistics statistiche() {
+        DoubleSummaryStatistics st = new DoubleSummaryStatistics();
+        double[] s = salaries;
+        for (int i = 0 ; i < size ; i++) st.accept(s[i]);
+        return st;
+    }
+
+    /** Ritorna la somma degli stipendi dei dipendenti con stipendio in
+     * [min, max].
+     * @param min  minimo stipendio
+     * @param max  massimo stipendio
+     * @return la somma degli stipendi in [min, max] */
+    public double sommaPerStipendio(double min, double max) {
+        double[] s = salaries;
+        int n = size;
+        double sum = 0;
+        for (int i = 0 ; i < n ; i++)
+            sum += (s[i] >= min & s[i] <= max) ? s[i] : 0;
+        return sum;
+    }
+
+
+    /** Fa scendere l'elemento i dell'heap di n elementi */
+    private void siftDown(int[] heap, int i, int n) {
+        double[] s = salaries;
+        int r = heap[i];
+        while (2*i + 1 < n) {
+            int c = 2*i + 1;
+            if (c + 1 < n && s[heap[c+1]] < s[heap[c]]) c++;
+            if (s[heap[c]] >= s[r]) break;
+            heap[i] = heap[c];
+            i = c;
+        }
+        heap[i] = r;
+    }
+
+    private int check(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row "+row);
+        return row;
+    }
+
+    private long[] codes;
+    private double[] salaries;
+    private byte[] names;       // I nomi e cognomi in UTF-8
+    private int[] offsets;      // Il nome della riga i è in [offsets[i], offsets[i+1])
+    private int size;
+}
@@ -10,10 +10,23 @@ public class Dirigente extends Dipendente {
         bonus = b;
     }
 
+    /** Crea un dirigente con i dati specificati. Da usarsi solamente se al
+     * dirigente è già stato assegnato un codice.
+     * @param nomeCognome  nome e cognome del dirigente
+     * @param stipendio  stipendio del dirigente, escluso il bonus
+     * @param b  bonus del dirigente
+     * @param codice  codice del dirigente */
+    public Dirigente(String nomeCognome, double stipendio, double b, long codice) {
+        super(nomeCognome, stipendio, codice);
+        bonus = b;
+    }
+
     /** @return il bonus di questo dirigente */
     public double getBonus() { return bonus; }
 
-    /** Imposta un nuovo bonus per questo dirigente.
+    /** Imposta un nuovo bonus per questo dirigente. Se il dirigente è in un
+     * {@link DipendenteStore}, usare {@link DipendenteStore#setBonus(long, double)}
+     * per mantenere aggiornato l'indice per stipendio.
      * @param b  l'importo del nuovo bonus */
     public void setBonus(double b) { bonus = b; }
 
@@ -1,6 +1,7 @@
 package mp;
 
 import mp.util.Utils;
+import mp.util.WordCounter;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -31,6 +32,12 @@ public class TestStreams {
         out.println("Numero dipendenti con stidendio >= 1200: " +
                 dips.stream().filter(d -> d.getStipendio() >= 1200).count());
 
+        // Lo stesso tramite l'indice per stipendio di un archivio
+        DipendenteStore store = new DipendenteStore();
+        store.aggiungiTutti(dips);
+        out.println("Numero dipendenti con stidendio >= 1200: " +
+                store.contaPerStipendio(1200, Double.POSITIVE_INFINITY));
+
         out.println("Tutti i dipendenti con stipendio >= 1200: ");
         dips.stream().filter(d -> d.getStipendio() >= 1200).forEach(out::println);
 
@@ -52,6 +59,15 @@ public class TestStreams {
         out.println("Dipendente con max stipendio: "+
                 (od.isPresent() ? od.get() : "non ci sono dipendenti"));
 
+        // Le stesse interrogazioni su una tabella per colonne
+        DipendenteTable table = DipendenteTable.of(dips);
+        out.println("Numero dipendenti con stidendio >= 1200: " +
+                table.contaPerStipendio(1200, Double.POSITIVE_INFINITY));
+        out.println("I 3 dipendenti con stipendio più alto: "+table.view(table.topK(3)));
+        out.println("Statistiche stipendi: "+table.statistiche());
+
+        //confrontoTabella(1_000_000);
+
         Path p = Paths.get("files", "alice_it_utf8.txt");
         List<String> lines = Files.readAllLines(p);   // Lista delle linee del file
 
@@ -94,6 +110,11 @@ public class TestStreams {
         // Mappa dei conteggi delle parole
         Map<String,Integer> wMap = Stream.of(ww).collect(toMap(s -> s, s -> 1, Integer::sum));
 
+        // Lo stesso con un contatore che non crea un Integer ad ogni incremento
+        WordCounter wCnt = new WordCounter();
+        Stream.of(ww).forEach(wCnt::add);
+        out.println("Numero parole distinte: "+wCnt.size());
+
         try (Stream<String> ll = Files.lines(p)) {
             out.println(ll.filter(l -> l.contains(w)).count());
         }
@@ -116,4 +137,31 @@ public class TestStreams {
         }
         return dips;
     }
+
+    /** Confronta i tempi di alcune interrogazioni sugli stipendi di n
+     * dipendenti casuali mantenuti in una {@code List<Dipendente>} e in una
+     * {@link DipendenteTable}.
+     * @param n  numero di dipendenti */
+    public static void confrontoTabella(int n) {
+        Random rnd = new Random(1);
+        List<Dipendente> dips = new ArrayList<>(n);
+        for (int i = 0 ; i < n ; i++)
+            dips.add(new Dipendente("Nome"+rnd.nextInt(1000)+" Cognome"+i, 1000 + rnd.nextInt(2000)));
+        DipendenteTable table = DipendenteTable.of(dips);
+        for (int r = 0 ; r < 5 ; r++) {     // Le prime ripetizioni scaldano il JIT
+            long t0 = System.nanoTime();
+            long c1 = dips.stream().filter(d -> d.getStipendio() >= 1200 && d.getStipendio() <= 1800).count();
+            List<Dipendente> top1 = dips.stream().sorted(comparingDouble(Dipendente::getStipendio)
+                    .reversed()).limit(10).collect(toList());
+            DoubleSummaryStatistics s1 = dips.stream().collect(summarizingDouble(Dipendente::getStipendio));
+            long t1 = System.nanoTime();
+            long c2 = table.contaPerStipendio(1200, 1800);
+            int[] top2 = table.topK(10);
+            DoubleSummaryStatistics s2 = table.statistiche();
+            long t2 = System.nanoTime();
+            out.println(String.format("List: %.1f ms  Tabella: %.1f ms  (conteggi %d %d, max %.0f %.0f, media %.1f %.1f)",
+                    (t1 - t0)/1e6, (t2 - t1)/1e6, c1, c2, top1.get(0).getStipendio(),
+                    table.stipendio(top2[0]), s1.getAverage(), s2.getAverage()));
+        }
+    }
 }
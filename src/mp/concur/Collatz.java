@@ -0,0 +1,141 @@
+package mp.concur;
+
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/** Metodi per calcolare il numero di passi della procedura della congettura di
+ * Collatz (vedi {@link CompIntensive#collatz(long, long)}). Rispetto a
+ * quest'ultimo:
+ * <ul>
+ *     <li>i numeri di passi degli interi piccoli sono mantenuti in una cache
+ *     condivisa, così la traiettoria di un intero si interrompe appena arriva
+ *     ad un intero già calcolato. La cache è un array di {@code short}: le
+ *     letture non sono sincronizzate e le scritture concorrenti sono innocue
+ *     perché ogni thread scrive lo stesso valore e la scrittura di uno
+ *     {@code short} è atomica;</li>
+ *     <li>dopo un numero dispari n, 3n+1 è pari quindi i due passi sono fatti
+ *     insieme, (3n+1)/2, e le divisioni per 2 consecutive sono fatte con uno
+ *     shift;</li>
+ *     <li>se 3n+1 non è rappresentabile in un {@code long}, il calcolo continua
+ *     con {@link BigInteger}, quindi il risultato è corretto per ogni intero
+ *     positivo;</li>
+ *     <li>{@link Collatz#maxSteps(long, long)} suddivide l'intervallo in molti
+ *     piccoli task Fork-Join, così il lavoro è bilanciato tramite il work
+ *     stealing anche se i numeri di passi variano molto.</li>
+ * </ul> */
+public class Collatz {
+    /** Ritorna il numero di passi della procedura di Collatz per l'intero dato.
+     * @param n  un intero positivo
+     * @return il numero di passi per arrivare a 1
+     * @throws IllegalArgumentException se n < 1 */
+    public static long steps(long n) {
+        if (n < 1) throw new IllegalArgumentException("n must be >= 1");
+        if (n < CACHE_SIZE && CACHE[(int)n] != 0) return CACHE[(int)n];
+        long m = n, s = 0;
+        while (m != 1) {
+            if (m < CACHE_SIZE && m != n) {
+                int c = CACHE[(int)m];
+                if (c != 0) {          // Il resto della traiettoria è noto
+                    s += c;
+                    break;
+                }
+            }
+            if ((m & 1) == 0) {
+                int tz = Long.numberOfTrailingZeros(m);
+                m >>>= tz;
+                s += tz;
+            } else if (m > MAX_SAFE) {
+                s += stepsBig(BigInteger.valueOf(m));
+                break;
+            } else {
+                m = (3*m + 1) >>> 1;
+                s += 2;
+            }
+        }
+        if (n < CACHE_SIZE && s <= Short.MAX_VALUE)
+            CACHE[(int)n] = (short)s;
+        return s;
+    }
+
+    /** Ritorna il massimo numero di passi della procedura di Collatz per gli
+     * interi nell'intervallo [a, b]. Equivalente a
+     * {@link CompIntensive#collatz(long, long)}.
+     * @param a  inizio intervallo
+     * @param b  fine intervallo
+     * @return il massimo numero di passi
+     * @throws IllegalArgumentException se a < 1 */
+    public static long maxSteps(long a, long b) {
+        return maxSteps(a, b, ForkJoinPool.commonPool());
+    }
+
+    /** Come {@link Collatz#maxSteps(long, long)} eseguendo i task con il pool
+     * specificato.
+     * @param a  inizio intervallo
+     * @param b  fine intervallo
+     * @param pool  il pool che esegue i task
+     * @return il massimo numero di passi
+     * @throws IllegalArgumentException se a < 1 */
+    public static long maxSteps(long a, long b, ForkJoinPool pool) {
+        if (a < 1) throw new IllegalArgumentException("a must be >= 1");
+        if (a > b) return 0;
+        return pool.invoke(new MaxTask(a, b));
+    }
+
+
+    /** Task che calcola il massimo numero di passi in [a, b] */
+    private static class MaxTask extends RecursiveTask<Long> {
+        MaxTask(long a, long b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        protected Long compute() {
+            if (b - a < GRAIN) {
+                long max = 0;
+                for (long i = a ; i <= b ; i++) {
+                    long s = steps(i);
+                    if (s > max) max = s;
+                    if (i == Long.MAX_VALUE) break;
+                }
+                return max;
+            }
+            long m = a + (b - a)/2;
+            MaxTask left = new MaxTask(a, m);
+            left.fork();
+            long right = new MaxTask(m + 1, b).compute();
+            return Math.max(right, left.join());
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        private final long a, b;
+    }
+
+    /** Ritorna il numero di passi per l'intero dato con aritmetica illimitata */
+    private static long stepsBig(BigInteger n) {
+        long s = 0;
+        while (!n.equals(BigInteger.ONE)) {
+            if (!n.testBit(0)) {
+                int tz = n.getLowestSetBit();
+                n = n.shiftRight(tz);
+                s += tz;
+            } else {
+                n = n.multiply(THREE).add(BigInteger.ONE).shiftRight(1);
+                s += 2;
+            }
+        }
+        return s;
+    }
+
+    private static final BigInteger THREE = BigInteger.valueOf(3);
+    /** Massimo n per cui 3n+1 è rappresentabile in un long */
+    private static final long MAX_SAFE = (Long.MAX_VALUE - 1)/3;
+    /** Numero minimo di interi di un task */
+    private static final long GRAIN = 1 << 12;
+    /** Dimensione della cache dei numeri di passi */
+    private static final int CACHE_SIZE = 1 << 23;
+    /** Cache dei numeri di passi, 0 se non ancora calcolato */
+    private static final short[] CACHE = new short[CACHE_SIZE];
+}
@@ -101,11 +101,38 @@ public class CompIntensive {
         monitor.stop();
     }
 
+    /** Esegue la funzione func sull'intervallo [a, b] tramite un
+     * {@link RangeReducer} e stampa il risultato e il campionamento dei tempi di
+     * esecuzione dei thread che hanno effettuato il calcolo.
+     * @param name  nome della funzione
+     * @param func  la funzione da eseguire sull'intervallo [a, b]
+     * @param a  inizio intervallo
+     * @param b  fine intervallo
+     * @param comb  operazione per ricombinare i risultati dei sotto-intervalli */
+    public static void testAdaptive(String name, LongBinaryOperator func, long a, long b,
+                                    LongBinaryOperator comb) {
+        out.println(String.format("Test %s  RangeReducer", name));
+        out.println("    interval ["+a+","+b+"]:");
+        ThreadsMonitor monitor = new ThreadsMonitor(100,true,5,out,
+                s->s.startsWith("ForkJoinPool"));
+        try {
+            out.println("    Result: "+REDUCER.reduce(a, b, func, comb));
+        } catch (RuntimeException e) {
+            out.println("    Error: "+e);
+        }
+        monitor.stop();
+    }
+
+    private static final RangeReducer REDUCER = new RangeReducer();
+
     public static void main(String[] args) {
         //test("collatz", 1, 1, CompIntensive::collatz, 1, 60_000_000, Math::max);
         //test("collatz", -1, -1, CompIntensive::collatz, 1, 60_000_000, Math::max);
+        //test("Collatz.maxSteps", 1, 1, Collatz::maxSteps, 1, 60_000_000, Math::max);
         //test("numPrimes", 1, 1, CompIntensive::numPrimes, 1, 20_000_000, Long::sum);
         //test("numPrimes", -1, -1, CompIntensive::numPrimes, 1, 20_000_000, Long::sum);
         test("numPrimes", -1, -10, CompIntensive::numPrimes, 1, 20_000_000, Long::sum);
+        //test("Primes.count", 1, 1, Primes::count, 1, 20_000_000, Long::sum);
+        //testAdaptive("numPrimes", CompIntensive::numPrimes, 1, 20_000_000, Long::sum);
     }
 }
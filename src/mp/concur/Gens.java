@@ -0,0 +1,221 @@
+package mp.concur;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Generatori di identificatori distinti a 64 bit per l'uso con molti thread
+ * contemporaneamente. A differenza di {@link TestSync.SyncGen} e
+ * {@link TestSync.AtomGen}, in cui tutti i thread modificano la stessa variabile
+ * e quindi si contendono la stessa linea di cache, questi generatori fanno in
+ * modo che thread diversi lavorino quasi sempre su dati diversi:
+ * <ul>
+ *     <li>{@link BlockGen} assegna ad ogni thread un blocco di valori
+ *     consecutivi che il thread consuma senza sincronizzazione;</li>
+ *     <li>{@link StripedGen} mantiene più contatori, come
+ *     {@link java.util.concurrent.atomic.LongAdder}, e ogni thread incrementa
+ *     il proprio;</li>
+ *     <li>{@link TimeGen} genera valori ordinati per tempo di generazione
+ *     componendo l'istante in millisecondi, un numero di nodo e un numero di
+ *     sequenza (come gli identificatori Snowflake).</li>
+ * </ul>
+ * I valori non sono consecutivi e solamente {@link TimeGen} li genera in
+ * ordine crescente tra thread diversi. */
+public class Gens {
+    /** Un generatore di interi distinti a 64 bit. Come {@link TestSync.Gen}
+     * ritorna il valore troncato a 32 bit, quindi i valori di
+     * {@link LongGen#getNext()} sono distinti solamente finché i valori generati
+     * sono compresi in un intervallo di ampiezza 2<sup>32</sup>. */
+    public interface LongGen extends TestSync.Gen {
+        /** @return un intero sempre differente */
+        long nextLong();
+
+        @Override
+        default int getNext() { return (int)nextLong(); }
+    }
+
+    /** Genera valori crescenti a partire da un valore iniziale, assegnandoli ai
+     * thread in blocchi. Ogni thread prende dal contatore condiviso, in modo
+     * sincronizzato, un blocco di valori consecutivi e poi li consuma uno alla
+     * volta senza sincronizzazione, quindi la contesa si ha solamente una volta
+     * ogni {@code blockSize} valori. I valori generati da uno stesso thread sono
+     * crescenti. Con un solo thread i valori sono consecutivi, salvo i salti
+     * dovuti a {@link BlockGen#ensureAbove(long)}; con più thread i valori dei
+     * blocchi non consumati (ad esempio di thread terminati) non sono mai
+     * generati. */
+    public static class BlockGen implements LongGen {
+        /** Crea un generatore che parte da 0 con blocchi di
+         * {@link BlockGen#DEFAULT_BLOCK} valori */
+        public BlockGen() { this(0, DEFAULT_BLOCK); }
+
+        /** Crea un generatore con il valore iniziale e l'ampiezza dei blocchi
+         * specificati.
+         * @param first  il primo valore generato
+         * @param blockSize  il numero di valori di ogni blocco
+         * @throws IllegalArgumentException se blockSize < 1 */
+        public BlockGen(long first, int blockSize) {
+            if (blockSize < 1) throw new IllegalArgumentException("blockSize must be >= 1");
+            this.blockSize = blockSize;
+            next = first;
+            floor = first;
+        }
+
+        @Override
+        public long nextLong() {
+            Block b = block.get();
+            if (b.cur == b.end || b.epoch != epoch) refill(b);
+            return b.cur++;
+        }
+
+        /** Fa in modo che tutti i valori generati in seguito siano maggiori del
+         * valore dato, se questo è maggiore o uguale a valori che potrebbero
+         * ancora essere generati. In tal caso i blocchi già assegnati ai thread
+         * sono invalidati e i loro valori non consumati non sono mai generati.
+         * Se v è già stato generato dal blocco corrente del thread che invoca il
+         * metodo (come quando si registra un valore appena ottenuto con
+         * {@link #nextLong()}), i blocchi non sono invalidati. Non ha effetto
+         * sui valori generati in concorrenza con l'invocazione di questo metodo.
+         * @param v  un valore da non generare più */
+        public synchronized void ensureAbove(long v) {
+            if (v < floor) return;      // Tutti i blocchi validi sono sopra v
+            Block b = block.get();
+            if (b.epoch == epoch && v >= b.start && v < b.cur)
+                return;                 // Già generato, i blocchi sono disgiunti
+            if (v == Long.MAX_VALUE) throw new IllegalStateException("Values exhausted");
+            next = Math.max(next, v + 1);
+            floor = next;
+            epoch++;
+        }
+
+        /** Numero di valori di un blocco per il costruttore senza argomenti */
+        public static final int DEFAULT_BLOCK = 1024;
+
+
+        /** Assegna un nuovo blocco di valori al thread del blocco b */
+        private synchronized void refill(Block b) {
+            if (next > Long.MAX_VALUE - blockSize) throw new IllegalStateException("Values exhausted");
+            b.start = b.cur = next;
+            next += blockSize;
+            b.end = next;
+            b.epoch = epoch;
+        }
+
+        /** Il blocco di un thread, valori in [start, end) di cui quelli in
+         * [cur, end) non ancora generati */
+        private static class Block {
+            long start, cur, end;
+            int epoch = -1;
+        }
+
+        private final int blockSize;
+        private final ThreadLocal<Block> block = ThreadLocal.withInitial(Block::new);
+        private long next;           // Inizio del prossimo blocco
+        private long floor;          // Inizio dei blocchi dell'epoca corrente
+        private volatile int epoch;  // Incrementata quando i blocchi sono invalidati
+    }
+
+    /** Genera valori non negativi ripartendo gli incrementi su più contatori
+     * (strisce), ognuno in una propria linea di cache. La striscia s con
+     * contatore c genera il valore {@code c*n + s}, dove n è il numero di
+     * strisce, quindi strisce diverse generano sempre valori diversi. Ogni
+     * thread usa la propria striscia e ne sceglie un'altra quando trova un
+     * altro thread che la sta incrementando (fallimento del compare-and-set),
+     * così con il tempo i thread si distribuiscono su strisce diverse. I valori
+     * non sono consecutivi e, tra thread diversi, non sono ordinati. */
+    public static class StripedGen implements LongGen {
+        /** Crea un generatore con un numero di strisce pari alla più piccola
+         * potenza di 2 non inferiore al doppio del numero di processori */
+        public StripedGen() {
+            this(Integer.highestOneBit(2*Runtime.getRuntime().availableProcessors() - 1) << 1);
+        }
+
+        /** Crea un generatore con il numero di strisce specificato.
+         * @param nStripes  numero di strisce
+         * @throws IllegalArgumentException se nStripes < 1 */
+        public StripedGen(int nStripes) {
+            if (nStripes < 1) throw new IllegalArgumentException("nStripes must be >= 1");
+            this.nStripes = nStripes;
+            counts = new AtomicLongArray(nStripes*PAD);
+        }
+
+        @Override
+        public long nextLong() {
+            int[] p = probe.get();
+            while (true) {
+                int s = (p[0] & Integer.MAX_VALUE) % nStripes;
+                long c = counts.get(s*PAD);
+                if (c > (Long.MAX_VALUE - s)/nStripes - 1)
+                    throw new IllegalStateException("Values exhausted");
+                if (counts.compareAndSet(s*PAD, c, c + 1)) return c*nStripes + s;
+                int h = p[0];            // Contesa, passa ad un'altra striscia
+                h ^= h << 13;
+                h ^= h >>> 17;
+                h ^= h << 5;
+                p[0] = h;
+            }
+        }
+
+
+        /** Distanza in long tra due contatori, 128 byte per evitare che due
+         * contatori condividano una linea di cache (anche con il prefetch delle
+         * linee adiacenti) */
+        private static final int PAD = 16;
+
+        private final int nStripes;
+        private final AtomicLongArray counts;    // Il contatore s è in s*PAD
+        /** Seme della striscia di ogni thread, mai 0 */
+        private final ThreadLocal<int[]> probe = ThreadLocal.withInitial(() ->
+                new int[] {(int)(Thread.currentThread().getId()*0x9E3779B97F4A7C15L >>> 32) | 1});
+    }
+
+    /** Genera valori a 64 bit ordinati per tempo di generazione. Ogni valore è
+     * composto, dal bit più significativo, da: il bit di segno a 0, 41 bit per i
+     * millisecondi trascorsi dal 1/1/2020 UTC (circa 69 anni), 10 bit per il
+     * numero di nodo e 12 bit per il numero di sequenza nello stesso
+     * millisecondo. Generatori con numeri di nodo diversi, ad esempio in
+     * processi o macchine diverse, generano valori sempre diversi. Lo stato è
+     * un'unica variabile atomica aggiornata con compare-and-set, senza
+     * attese: se in un millisecondo sono generati più di 4096 valori o se
+     * l'orologio di sistema torna indietro, i valori continuano ad essere
+     * crescenti usando i millisecondi successivi. */
+    public static class TimeGen implements LongGen {
+        /** Crea un generatore con numero di nodo 0 */
+        public TimeGen() { this(0); }
+
+        /** Crea un generatore con il numero di nodo specificato.
+         * @param node  numero di nodo, tra 0 e {@link TimeGen#MAX_NODE}
+         * @throws IllegalArgumentException se il numero di nodo non è valido */
+        public TimeGen(int node) {
+            if (node < 0 || node > MAX_NODE)
+                throw new IllegalArgumentException("node must be in [0, "+MAX_NODE+"]");
+            this.node = (long)node << SEQ_BITS;
+        }
+
+        @Override
+        public long nextLong() {
+            long now = (System.currentTimeMillis() - EPOCH) << SEQ_BITS;
+            while (true) {
+                long l = last.get(), n = Math.max(l + 1, now);
+                if (n >>> (SEQ_BITS + TIME_BITS) != 0) throw new IllegalStateException("Values exhausted");
+                if (last.compareAndSet(l, n))
+                    return (n >>> SEQ_BITS) << (NODE_BITS + SEQ_BITS) | node | (n & SEQ_MASK);
+            }
+        }
+
+        /** Ritorna l'istante di generazione di un valore.
+         * @param id  un valore generato da un {@code TimeGen}
+         * @return l'istante in millisecondi dal 1/1/1970 UTC */
+        public static long timeOf(long id) { return (id >>> (NODE_BITS + SEQ_BITS)) + EPOCH; }
+
+        /** Massimo numero di nodo */
+        public static final int MAX_NODE = (1 << 10) - 1;
+
+
+        private static final int TIME_BITS = 41, NODE_BITS = 10, SEQ_BITS = 12;
+        private static final long SEQ_MASK = (1L << SEQ_BITS) - 1;
+        private static final long EPOCH = 1577836800000L;    // 1/1/2020 UTC
+
+        private final long node;              // Numero di nodo già spostato
+        /** Millisecondi e sequenza dell'ultimo valore generato */
+        private final AtomicLong last = new AtomicLong();
+    }
+}
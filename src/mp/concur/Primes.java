@@ -0,0 +1,243 @@
+package mp.concur;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/** Metodi per i numeri primi basati sul crivello di Eratostene segmentato.
+ * Invece di provare tutti i divisori di ogni numero, come
+ * {@link CompIntensive#numPrimes(long, long)}, l'intervallo è suddiviso in
+ * segmenti abbastanza piccoli da stare nella cache del processore e in ogni
+ * segmento sono cancellati i multipli dei primi fino alla radice quadrata
+ * dell'estremo superiore. Ogni segmento rappresenta solamente i numeri dispari
+ * con un bit per numero. I segmenti sono elaborati in parallelo da task
+ * Fork-Join.
+ * <br>
+ * Per i test di primalità ({@link Primes#isPrime(long)}) i numeri inferiori a
+ * {@link Primes#CACHE_LIMIT} sono cercati in un insieme di bit calcolato una
+ * sola volta, gli altri sono verificati con il test di Miller-Rabin
+ * deterministico per tutti gli interi a 64 bit. */
+public class Primes {
+    /** I numeri inferiori a questo limite sono testati tramite un insieme di
+     * bit precalcolato */
+    public static final long CACHE_LIMIT = 1L << 25;
+
+    /** Massimo estremo superiore degli intervalli per
+     * {@link Primes#count(long, long)}, limitato dalla dimensione dei primi base */
+    public static final long MAX_COUNT = 1L << 52;
+
+    /** Ritorna il numero di primi nell'intervallo [a, b]. A differenza di
+     * {@link CompIntensive#numPrimes(long, long)}, che conta come primi anche 0
+     * e 1, i numeri minori di 2 non sono mai contati: ad esempio
+     * {@code numPrimes(1, n) == count(1, n) + 1}.
+     * @param a  inizio intervallo
+     * @param b  fine intervallo
+     * @return il numero di primi nell'intervallo [a, b] */
+    public static long count(long a, long b) {
+        return count(a, b, ForkJoinPool.commonPool());
+    }
+
+    /** Ritorna il numero di primi nell'intervallo [a, b] elaborando i segmenti
+     * con il pool specificato.
+     * @param a  inizio intervallo
+     * @param b  fine intervallo
+     * @param pool  il pool che esegue i task dei segmenti
+     * @return il numero di primi nell'intervallo [a, b]
+     * @throws IllegalArgumentException se b > {@link Primes#MAX_COUNT} */
+    public static long count(long a, long b, ForkJoinPool pool) {
+        if (a < 2) a = 2;
+        if (a > b) return 0;
+        if (b > MAX_COUNT)
+            throw new IllegalArgumentException("b must be <= "+MAX_COUNT);
+        long num = (a == 2 ? 1 : 0);          // Il 2 è l'unico primo pari
+        long lo = (a | 1), hi = b + 1;       // Dispari in [lo, hi)
+        if (lo >= hi) return num;
+        int[] base = basePrimes(sqrt(b));
+        long nSeg = (hi - lo + SEG_SPAN - 1)/SEG_SPAN;
+        return num + pool.invoke(new CountTask(base, lo, hi, 0, nSeg));
+    }
+
+    /** Ritorna {@code true} se n è un numero primo.
+     * @param n  un intero
+     * @return {@code true} se n è primo */
+    public static boolean isPrime(long n) {
+        if (n < 2) return false;
+        if ((n & 1) == 0) return n == 2;
+        if (n < CACHE_LIMIT) {
+            long[] c = Cache.BITS;    // Bit k a 1 se 2k+1 è composto
+            long k = n >> 1;
+            return (c[(int)(k >>> 6)] & (1L << k)) == 0;
+        }
+        return millerRabin(n);
+    }
+
+
+    /** Numero di bit (numeri dispari) di un segmento, 32KB */
+    private static final int SEG_BITS = 1 << 18;
+    /** Ampiezza dell'intervallo coperto da un segmento */
+    private static final long SEG_SPAN = 2L*SEG_BITS;
+
+    /** Task Fork-Join che conta i primi nei segmenti [s0, s1) dell'intervallo
+     * dei dispari [lo, hi). Divide i segmenti a metà finché ne rimane uno. */
+    private static class CountTask extends RecursiveTask<Long> {
+        CountTask(int[] base, long lo, long hi, long s0, long s1) {
+            this.base = base;
+            this.lo = lo;
+            this.hi = hi;
+            this.s0 = s0;
+            this.s1 = s1;
+        }
+
+        @Override
+        protected Long compute() {
+            if (s1 - s0 == 1) {
+                long sLo = lo + s0*SEG_SPAN, sHi = Math.min(hi, sLo + SEG_SPAN);
+                long[] bits = SEGMENT.get();
+                sieve(base, bits, sLo, sHi);
+                return (long)countZeros(bits, (int)((sHi - sLo + 1)/2));
+            }
+            long m = (s0 + s1)/2;
+            CountTask left = new CountTask(base, lo, hi, s0, m);
+            left.fork();
+            long right = new CountTask(base, lo, hi, m, s1).compute();
+            return right + left.join();
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] base;
+        private final long lo, hi, s0, s1;
+    }
+
+    /** Array dei bit di un segmento, uno per thread */
+    private static final ThreadLocal<long[]> SEGMENT =
+            ThreadLocal.withInitial(() -> new long[SEG_BITS/64]);
+
+    /** Cancella nei bit i multipli dei primi base dei numeri dispari in
+     * [lo, hi), lo dispari. Il bit k rappresenta lo + 2k. L'1 è cancellato. */
+    private static void sieve(int[] base, long[] bits, long lo, long hi) {
+        int nBits = (int)((hi - lo + 1)/2);
+        Arrays.fill(bits, 0, (nBits + 63) >>> 6, 0L);
+        if (lo == 1) bits[0] |= 1;
+        for (int i = 1 ; i < base.length ; i++) {     // base[0] = 2 è saltato
+            long p = base[i];
+            if (p*p >= hi) break;
+            long start = Math.max(p*p, (lo + p - 1)/p*p);
+            if ((start & 1) == 0) start += p;         // Solo multipli dispari
+            for (long k = (start - lo) >> 1 ; k < nBits ; k += p)
+                bits[(int)(k >>> 6)] |= 1L << k;
+        }
+    }
+
+    /** Ritorna il numero di bit a zero tra i primi nBits */
+    private static int countZeros(long[] bits, int nBits) {
+        int full = nBits >>> 6, ones = 0;
+        for (int i = 0 ; i < full ; i++)
+            ones += Long.bitCount(bits[i]);
+        int rest = nBits & 63;
+        if (rest > 0)
+            ones += Long.bitCount(bits[full] & ((1L << rest) - 1));
+        return nBits - ones;
+    }
+
+    /** Ritorna la parte intera della radice quadrata di n */
+    private static long sqrt(long n) {
+        long r = (long)Math.sqrt((double)n);
+        while (r*r > n) r--;
+        while ((r + 1)*(r + 1) <= n) r++;
+        return r;
+    }
+
+    /** Ritorna i primi fino ad almeno max. Sono calcolati con un semplice
+     * crivello e mantenuti per le invocazioni successive. */
+    private static int[] basePrimes(long max) {
+        int[] bp = basePrimes;
+        if (bp.length > 0 && bp[bp.length-1] >= max) return bp;
+        synchronized (Primes.class) {
+            bp = basePrimes;
+            if (bp.length > 0 && bp[bp.length-1] >= max) return bp;
+            int n = (int)Math.min(MAX_BASE, Math.max(2*max, 1 << 16));
+            boolean[] comp = new boolean[n + 1];
+            List<Integer> list = new ArrayList<>();
+            for (int i = 2 ; i <= n ; i++) {
+                if (comp[i]) continue;
+                list.add(i);
+                for (long j = (long)i*i ; j <= n ; j += i) comp[(int)j] = true;
+            }
+            bp = new int[list.size()];
+            for (int i = 0 ; i < bp.length ; i++) bp[i] = list.get(i);
+            basePrimes = bp;
+            return bp;
+        }
+    }
+
+    private static final int MAX_BASE = 1 << 26;   // Radice di MAX_COUNT
+    private static volatile int[] basePrimes = new int[0];
+
+    /** Insieme di bit dei dispari composti inferiori a {@link Primes#CACHE_LIMIT},
+     * calcolato al primo uso */
+    private static class Cache {
+        static final long[] BITS = new long[(int)(CACHE_LIMIT/2/64)];
+        static {
+            int[] base = basePrimes(sqrt(CACHE_LIMIT));
+            long[] seg = new long[SEG_BITS/64];
+            for (long lo = 1 ; lo < CACHE_LIMIT ; lo += SEG_SPAN) {
+                sieve(base, seg, lo, Math.min(CACHE_LIMIT, lo + SEG_SPAN));
+                System.arraycopy(seg, 0, BITS, (int)(lo/2/64),
+                        (int)Math.min(seg.length, BITS.length - lo/2/64));
+            }
+        }
+    }
+
+    /** Basi del test di Miller-Rabin sufficienti per tutti gli interi a 64 bit */
+    private static final long[] MR_BASES = {2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37};
+
+    /** Test di Miller-Rabin deterministico, n dispari > 37 */
+    private static boolean millerRabin(long n) {
+        for (long p : MR_BASES)
+            if (n % p == 0) return false;
+        long d = n - 1;
+        int s = Long.numberOfTrailingZeros(d);
+        d >>= s;
+        for (long a : MR_BASES) {
+            long x = powMod(a, d, n);
+            if (x == 1 || x == n - 1) continue;
+            boolean composite = true;
+            for (int r = 1 ; r < s && composite ; r++) {
+                x = mulMod(x, x, n);
+                if (x == n - 1) composite = false;
+            }
+            if (composite) return false;
+        }
+        return true;
+    }
+
+    private static long powMod(long a, long e, long m) {
+        long r = 1;
+        a %= m;
+        while (e > 0) {
+            if ((e & 1) != 0) r = mulMod(r, a, m);
+            a = mulMod(a, a, m);
+            e >>= 1;
+        }
+        return r;
+    }
+
+    /** Ritorna a*b mod m senza overflow, con 0 <= a, b < m */
+    private static long mulMod(long a, long b, long m) {
+        if ((a | b) >>> 31 == 0) return a*b % m;
+        long r = 0;
+        while (b > 0) {
+            if ((b & 1) != 0) {
+                r += a - m;          // r + a mod m, senza superare Long.MAX_VALUE
+                if (r < 0) r += m;
+            }
+            a += a - m;              // 2a mod m
+            if (a < 0) a += m;
+            b >>= 1;
+        }
+        return r;
+    }
+}
@@ -0,0 +1,172 @@
+package mp.concur;
+
+import java.util.concurrent.*;
+import java.util.function.LongBinaryOperator;
+
+/** Un {@code RangeReducer} esegue in parallelo una funzione su un intervallo di
+ * interi [a, b] e ricombina i risultati dei sotto-intervalli (vedi
+ * {@link CompIntensive#parallel(int, int, LongBinaryOperator, long, long, LongBinaryOperator)}).
+ * A differenza di quest'ultimo:
+ * <ul>
+ *     <li>usa sempre lo stesso {@link ForkJoinPool} invece di creare un
+ *     esecutore ad ogni invocazione;</li>
+ *     <li>non divide l'intervallo in parti uguali fissate in anticipo. Ogni task
+ *     esegue la funzione su porzioni del proprio intervallo di ampiezza
+ *     crescente misurandone il tempo e, se il lavoro che rimane è stimato
+ *     superiore a {@link RangeReducer#TARGET_NANOS}, cede metà del resto ad un
+ *     nuovo task. Così gli intervalli costosi sono suddivisi finemente e
+ *     quelli economici no;</li>
+ *     <li>i risultati sono ricombinati non appena ogni task termina,
+ *     nell'ordine in cui terminano. Per questo l'operazione di ricombinazione
+ *     deve essere associativa e commutativa (come {@code Long::sum} e
+ *     {@code Math::max});</li>
+ *     <li>se la funzione lancia un'eccezione, la computazione termina e
+ *     l'eccezione è propagata al chiamante;</li>
+ *     <li>una computazione può essere cancellata o avere una scadenza.</li>
+ * </ul> */
+public class RangeReducer {
+    /** Tempo di esecuzione obiettivo, in nanosecondi, di una porzione di
+     * intervallo. Se il lavoro rimanente di un task è stimato superiore, il
+     * task ne cede metà ad un nuovo task. */
+    public static final long TARGET_NANOS = 1_000_000;
+
+    /** Crea un {@code RangeReducer} che usa il pool comune
+     * {@link ForkJoinPool#commonPool()} */
+    public RangeReducer() { this(ForkJoinPool.commonPool()); }
+
+    /** Crea un {@code RangeReducer} che usa il pool specificato.
+     * @param pool  il pool che esegue i task */
+    public RangeReducer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Ritorna il risultato della funzione func sull'intervallo [a, b]
+     * ricombinando i risultati dei sotto-intervalli con l'operazione comb.
+     * @param a  inizio intervallo
+     * @param b  fine intervallo, deve essere >= a
+     * @param func  funzione da calcolare sui sotto-intervalli
+     * @param comb  operazione associativa e commutativa per ricombinare i
+     *              risultati dei sotto-intervalli
+     * @return il risultato della funzione sull'intervallo [a, b]
+     * @throws IllegalArgumentException se b < a
+     * @throws RuntimeException l'eccezione lanciata da func, se accade */
+    public long reduce(long a, long b, LongBinaryOperator func, LongBinaryOperator comb) {
+        return pool.invoke(new Root(a, b, func, comb));
+    }
+
+    /** Come {@link RangeReducer#reduce(long, long, LongBinaryOperator, LongBinaryOperator)}
+     * ma la computazione è cancellata se non termina entro il tempo dato.
+     * @param a  inizio intervallo
+     * @param b  fine intervallo, deve essere >= a
+     * @param func  funzione da calcolare sui sotto-intervalli
+     * @param comb  operazione per ricombinare i risultati dei sotto-intervalli
+     * @param timeout  tempo massimo di attesa
+     * @param unit  unità di misura di timeout
+     * @return il risultato della funzione sull'intervallo [a, b]
+     * @throws TimeoutException se il tempo massimo è scaduto
+     * @throws InterruptedException se il thread è interrotto durante l'attesa
+     * @throws RuntimeException l'eccezione lanciata da func, se accade */
+    public long reduce(long a, long b, LongBinaryOperator func, LongBinaryOperator comb,
+                       long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        Future<Long> f = submit(a, b, func, comb);
+        try {
+            return f.get(timeout, unit);
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof RuntimeException) throw (RuntimeException)c;
+            if (c instanceof Error) throw (Error)c;
+            throw new CompletionException(c);
+        } finally {
+            f.cancel(true);    // Se già terminata non ha effetto
+        }
+    }
+
+    /** Inizia la computazione della funzione func sull'intervallo [a, b] e
+     * ritorna il {@link Future} che permette di attenderne il risultato o di
+     * cancellarla. Se la funzione lancia un'eccezione, {@link Future#get()}
+     * lancia una {@link ExecutionException} che la contiene.
+     * @param a  inizio intervallo
+     * @param b  fine intervallo, deve essere >= a
+     * @param func  funzione da calcolare sui sotto-intervalli
+     * @param comb  operazione per ricombinare i risultati dei sotto-intervalli
+     * @return il {@link Future} della computazione
+     * @throws IllegalArgumentException se b < a */
+    public Future<Long> submit(long a, long b, LongBinaryOperator func, LongBinaryOperator comb) {
+        return pool.submit(new Root(a, b, func, comb));
+    }
+
+
+    /** Il task radice mantiene il risultato ricombinato di tutti i task */
+    private static class Root extends CountedCompleter<Long> {
+        Root(long a, long b, LongBinaryOperator func, LongBinaryOperator comb) {
+            if (b < a) throw new IllegalArgumentException("b must be >= a");
+            this.a = a;
+            this.b = b;
+            this.func = func;
+            this.comb = comb;
+        }
+
+        @Override
+        public void compute() {    // Il primo task è eseguito subito, la radice
+            new Part(this, this, a, b).compute();   // termina quando termina
+        }                                           // l'ultimo task
+
+        @Override
+        public synchronized Long getRawResult() { return result; }
+
+        /** Ricombina il risultato di un task con quelli già arrivati */
+        synchronized void merge(long r) {
+            result = has ? comb.applyAsLong(result, r) : r;
+            has = true;
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        final long a, b;
+        final LongBinaryOperator func, comb;
+        private long result;
+        private boolean has;      // Se true, almeno un risultato è arrivato
+    }
+
+    /** Task per un sotto-intervallo [lo, hi] */
+    private static class Part extends CountedCompleter<Void> {
+        Part(CountedCompleter<?> parent, Root root, long lo, long hi) {
+            super(parent);
+            this.root = root;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        public void compute() {
+            long lo = this.lo, hi = this.hi, size = 1, res = 0;
+            boolean has = false;
+            while (lo <= hi && !root.isDone()) {    // Se cancellata o fallita, termina
+                long end = hi - lo < size ? hi : lo + size - 1;
+                long time = System.nanoTime();
+                long r = root.func.applyAsLong(lo, end);
+                time = System.nanoTime() - time;
+                res = has ? root.comb.applyAsLong(res, r) : r;
+                has = true;
+                long done = end - lo + 1, rest = hi - end;
+                lo = end + 1;
+                if (rest > 1 && time*(double)rest/done > 2*TARGET_NANOS) {
+                    long mid = lo + rest/2;          // Cede la metà destra del resto
+                    addToPendingCount(1);
+                    new Part(this, root, mid, hi).fork();
+                    hi = mid - 1;
+                }
+                if (time < TARGET_NANOS && size < Long.MAX_VALUE/2) size *= 2;
+            }
+            if (has) root.merge(res);
+            tryComplete();
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        private final Root root;
+        private final long lo, hi;
+    }
+
+    private final ForkJoinPool pool;
+}
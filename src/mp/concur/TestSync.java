@@ -1,14 +1,17 @@
 package mp.concur;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static java.lang.System.out;
 
@@ -62,6 +65,55 @@ public class TestSync {
         out.println("Valori ripetuti: " + (nTasks - vals.size()));
     }
 
+    /** Misura il throughput di un tipo di generatore con 1, 2, 4, ... fino a
+     * maxThreads thread che richiedono contemporaneamente nPerThread valori
+     * ciascuno ad uno stesso generatore. Per ogni numero di thread stampa i
+     * valori generati al secondo e il numero di valori ripetuti. Per i
+     * generatori {@link Gens.LongGen} i valori sono richiesti con
+     * {@link Gens.LongGen#nextLong()}.
+     * @param gs  crea un nuovo generatore per ogni misura
+     * @param maxThreads  massimo numero di thread
+     * @param nPerThread  numero di valori richiesti da ogni thread */
+    public static void test_GenScaling(Supplier<? extends Gen> gs, int maxThreads, int nPerThread) {
+        for (int nThreads = 1 ; ; nThreads = Math.min(2*nThreads, maxThreads)) {
+            Gen g = gs.get();
+            long[][] vals = new long[nThreads][nPerThread];
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] threads = new Thread[nThreads];
+            for (int t = 0 ; t < nThreads ; t++) {
+                long[] v = vals[t];
+                threads[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) { return; }
+                    if (g instanceof Gens.LongGen) {
+                        Gens.LongGen lg = (Gens.LongGen)g;
+                        for (int i = 0 ; i < v.length ; i++) v[i] = lg.nextLong();
+                    } else
+                        for (int i = 0 ; i < v.length ; i++) v[i] = g.getNext();
+                });
+                threads[t].start();
+            }
+            long time = System.nanoTime();
+            start.countDown();
+            for (Thread t : threads)
+                try {
+                    t.join();
+                } catch (InterruptedException e) {}
+            time = System.nanoTime() - time;
+            long[] all = new long[nThreads*nPerThread];
+            for (int t = 0 ; t < nThreads ; t++)
+                System.arraycopy(vals[t], 0, all, t*nPerThread, nPerThread);
+            Arrays.sort(all);
+            int rep = 0;
+            for (int i = 1 ; i < all.length ; i++)
+                if (all[i] == all[i-1]) rep++;
+            out.println(String.format("%s  Threads: %d  Valori/s: %,.0f  Valori ripetuti: %d",
+                    g.getClass().getSimpleName(), nThreads, all.length*1e9/time, rep));
+            if (nThreads == maxThreads) break;
+        }
+    }
+
     public static class Do {
         public void doSomething() {
             for (long i = 0 ; i < 1_000_000_000 ; i++) ;  // Esegue un qualche task
@@ -96,6 +148,10 @@ public class TestSync {
         //test_Gen(new SimpleGen(), 2, 10_000);
         //test_Gen(new SyncGen(), 1000, 1_000_000);
         //test_Gen(new AtomGen(), 1000, 1_000_000);
+        //test_GenScaling(AtomGen::new, 16, 1_000_000);
+        //test_GenScaling(Gens.BlockGen::new, 16, 1_000_000);
+        //test_GenScaling(Gens.StripedGen::new, 16, 1_000_000);
+        //test_GenScaling(Gens.TimeGen::new, 16, 1_000_000);
         test_Do();
     }
 }
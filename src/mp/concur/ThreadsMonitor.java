@@ -1,16 +1,22 @@
 package mp.concur;
 
-import java.io.PrintStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import mp.util.Histogram;
+
+import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.function.BiConsumer;
 import java.util.function.Predicate;
 import java.util.function.ToLongFunction;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /** Un {@code ThreadsMonitor} monitora i tempi di esecuzione dei thread durante un
  * intervallo di tempo. Il monitoraggio inizia quando l'oggetto {@code ThreadsMonitor}
@@ -118,11 +124,44 @@ import java.util.stream.Stream;
  *     disponibili.</li>
  *     <li><code>Real time</code>: è il tempo reale, cioè la durata dell'intervallo
  *     di monitoraggio.</li>
- * </ul> */
+ * </ul>
+ * Per poter lasciare attivo il monitoraggio a lungo e con periodi brevi (anche
+ * 10 ms) su migliaia di thread:
+ * <ul>
+ *     <li>di ogni thread sono mantenuti solamente gli ultimi campionamenti, al più
+ *     tanti quanti la capacità specificata, in array circolari di {@code long}
+ *     che crescono solo se necessario. Il report mostra quindi gli ultimi
+ *     campionamenti mentre i tempi totali sono quelli dell'intero
+ *     monitoraggio;</li>
+ *     <li>i thread nuovi sono registrati con un'unica invocazione di
+ *     {@link ThreadMXBean#getThreadInfo(long[])} e, se la JVM lo permette
+ *     ({@link com.sun.management.ThreadMXBean}), i tempi di tutti i thread sono
+ *     letti con un'unica invocazione per campionamento. Leggere il tempo utente
+ *     è molto più costoso che leggere il tempo di CPU, quindi se il diagramma è
+ *     dei tempi di CPU e i thread sono molti, i tempi utente sono letti circa
+ *     ogni secondo (e il tempo utente totale è approssimato a meno di un secondo
+ *     per thread);</li>
+ *     <li>i campionamenti possono essere scritti, via via che sono effettuati, in
+ *     un file binario compatto (i tempi sono scritti come differenze rispetto ai
+ *     precedenti con codifica a lunghezza variabile) il cui report può essere
+ *     stampato in seguito tramite
+ *     {@link ThreadsMonitor#render(Path, boolean, int, int, PrintStream, Predicate)}.</li>
+ * </ul>
+ * Durante il monitoraggio lo stato dei thread selezionati dal filtro può essere
+ * osservato tramite {@link ThreadsMonitor#snapshot()}, che ritorna l'utilizzo
+ * recente di ogni thread, la saturazione dei processori, i tempi di attesa sui
+ * lock e gli istogrammi degli utilizzi nell'ultimo minuto. Le stesse informazioni
+ * possono essere esposte da un server HTTP locale
+ * ({@link ThreadsMonitor#serve(int)}). */
 public class ThreadsMonitor {
+    /** Numero massimo di campionamenti mantenuti per ogni thread se la capacità
+     * non è specificata */
+    public static final int DEFAULT_CAPACITY = 4096;
+
     /** Crea un {@link ThreadsMonitor} che crea ed inizia un thread per monitorare i
      * thread campionando i tempi di esecuzione. Il monitoraggio termina invocando
-     * il metodo {@link ThreadsMonitor#stop()}.
+     * il metodo {@link ThreadsMonitor#stop()}. Sono mantenuti al più
+     * {@link ThreadsMonitor#DEFAULT_CAPACITY} campionamenti per thread.
      * @param period  tempo in millisecondi del periodo di campionamento, cioè i
      *                tempi sono campionati ogni {@code period} millisecondi
      * @param cpu  se {@code true} riporta i tempi di CPU, altrimenti riporta i tempi
@@ -136,38 +175,34 @@ public class ThreadsMonitor {
      * del tempo di CPU dei thread */
     public ThreadsMonitor(int period, boolean cpu, int levels, PrintStream out,
                           Predicate<String> filter) {
-        chkArg(period >= 1, "period must be >= 1");
-        chkArg(levels >= 1, "levels must be >= 1");
-        Objects.requireNonNull(out, "out cannot be null");
-        Objects.requireNonNull(filter, "filter cannot be null");
-        if (!TSampler.THM.isThreadCpuTimeSupported())
-            throw new UnsupportedOperationException("JVM doesn't support CPU time measurement");
-        TSampler.THM.setThreadCpuTimeEnabled(true);
-        monitor = new Thread(() -> {    // Crea il thread di monitoraggio o campionatura
-            // Associa ad ogni id di un thread un oggetto TSampler per registrare i
-            Map<Long, TSampler> samplers = new HashMap<>();    // campionamenti dei tempi
-            int count = 0;    // Contatore dei campionamenti
-            double realTime = System.nanoTime();    // Tempo di inizio della campionatura
-            while (true) {    // Loop che termina non appena questo thread è interrotto
-                    // Esamina i thread attualmente attivi per registrare quelli non
-                for (long id : TSampler.THM.getAllThreadIds()) {  // ancora registrati
-                    if (samplers.containsKey(id)) continue;       // Se è già registrato, continua
-                    ThreadInfo tI = TSampler.THM.getThreadInfo(id);  // Se è nuovo, richiede le
-                    if (tI == null) continue;    // info, fallisce se nel frattempo è terminato
-                        // Lo aggiunge alla mappa dei thread registrati, creando un TSampler
-                    samplers.put(id, new TSampler(tI.getThreadName(), id, count));
-                }
-                samplers.values().forEach(TSampler::sample);    // Campiona tutti i thread registrati
-                count++;
-                try {
-                    Thread.sleep(period);    // Addormenta il thread fino al prossimo campionamento
-                } catch (InterruptedException e) { break; }  // Se interrotto, termina il campionamento
-            }
-                // Stampa i risultati della campionatura
-            print(samplers, System.nanoTime()-realTime, period, cpu, levels, out, filter);
-        });
-        monitor.setDaemon(true);   // Impostato come daemon thread non pone ostacoli alla
-        monitor.start();           // terminazione del programma. Inizia l'esecuzione
+        this(period, cpu, levels, DEFAULT_CAPACITY, (DataOutputStream)null,
+                Objects.requireNonNull(out, "out cannot be null"), filter);
+    }
+
+    /** Come {@link ThreadsMonitor#ThreadsMonitor(int, boolean, int, PrintStream, Predicate)}
+     * ma sono mantenuti al più {@code capacity} campionamenti per thread e, se
+     * {@code file} non è {@code null}, i campionamenti sono anche scritti nel
+     * file specificato, il cui report può essere stampato in seguito tramite
+     * {@link ThreadsMonitor#render(Path, boolean, int, int, PrintStream, Predicate)}.
+     * @param period  tempo in millisecondi del periodo di campionamento
+     * @param cpu  se {@code true} riporta i tempi di CPU, altrimenti riporta i tempi
+     *             utente
+     * @param levels  numero livelli (o tacche) dei diagrammi
+     * @param capacity  numero massimo di campionamenti mantenuti per ogni thread
+     * @param file  file in cui scrivere i campionamenti o {@code null}
+     * @param out  flusso in cui sono stampati i risultati del monitoraggio o
+     *             {@code null} se non devono essere stampati
+     * @param filter  filtro che seleziona i thread in base al loro nome
+     * @throws IOException se non è possibile creare il file
+     * @throws IllegalArgumentException se {@code period} < 1, {@code levels} < 1 o
+     * {@code capacity} < 2
+     * @throws NullPointerException se {@code filter} è {@code null}
+     * @throws UnsupportedOperationException se la JVM non supporta la misurazione
+     * del tempo di CPU dei thread */
+    public ThreadsMonitor(int period, boolean cpu, int levels, int capacity, Path file,
+                          PrintStream out, Predicate<String> filter) throws IOException {
+        this(period, cpu, levels, capacity, file != null ? open(file, period) : null,
+                out, filter);
     }
 
     /** Termina il monitoraggio iniziato con la creazione di questo
@@ -183,8 +218,289 @@ public class ThreadsMonitor {
         try {
             monitor.join();   // Aspetta che sia terminato
         } catch (InterruptedException e) {}
+        if (server != null) server.stop(0);
+    }
+
+    /** Ritorna un'istantanea dello stato attuale dei thread attivi selezionati
+     * dal filtro. La prima invocazione abilita, se supportata, la misurazione dei
+     * tempi di attesa sui lock ({@link ThreadMXBean#setThreadContentionMonitoringEnabled(boolean)}).
+     * @return un'istantanea dello stato attuale dei thread
+     * @throws IllegalStateException se il monitoraggio è terminato */
+    public Snapshot snapshot() {
+        if (monitor.getState() == Thread.State.TERMINATED)
+            throw new IllegalStateException("Monitor is already terminated");
+        ThreadMXBean thm = TSampler.THM;
+        if (thm.isThreadContentionMonitoringSupported() && !thm.isThreadContentionMonitoringEnabled())
+            thm.setThreadContentionMonitoringEnabled(true);
+        synchronized (samples) {
+            return samples.snapshot(Math.max(1, RECENT_MILLIS/period));
+        }
+    }
+
+    /** Avvia un server HTTP, raggiungibile solo dalla macchina locale, che
+     * ritorna le istantanee dello stato dei thread (vedi
+     * {@link ThreadsMonitor#snapshot()}): il percorso {@code /} in formato JSON e
+     * il percorso {@code /text} in formato testo. Il server termina con il
+     * monitoraggio.
+     * @param port  la porta del server, se 0 è scelta una porta libera
+     * @return la porta del server
+     * @throws IOException se non è possibile avviare il server
+     * @throws IllegalStateException se il server è già avviato o il
+     * monitoraggio è terminato */
+    public synchronized int serve(int port) throws IOException {
+        if (monitor.getState() == Thread.State.TERMINATED)
+            throw new IllegalStateException("Monitor is already terminated");
+        if (server != null)
+            throw new IllegalStateException("Server already started");
+        HttpServer hs = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        hs.createContext("/", ex -> reply(ex, "application/json", snapshot().toJson()));
+        hs.createContext("/text", ex -> reply(ex, "text/plain", snapshot().toString()));
+        hs.start();
+        server = hs;
+        return hs.getAddress().getPort();
+    }
+
+    /** Stampa sul flusso specificato il report dei campionamenti scritti nel file
+     * dato da un {@code ThreadsMonitor}. Se il file è incompleto, ad esempio
+     * perché il programma monitorato è terminato bruscamente, sono riportati i
+     * campionamenti letti fino a quel punto.
+     * @param file  il file scritto da un {@code ThreadsMonitor}
+     * @param cpu  se {@code true} riporta i tempi di CPU, altrimenti riporta i tempi
+     *             utente
+     * @param levels  numero livelli (o tacche) dei diagrammi
+     * @param capacity  numero massimo di campionamenti riportati per ogni thread,
+     *                  cioè gli ultimi
+     * @param out  flusso in cui stampare il report
+     * @param filter  filtro che seleziona i thread in base al loro nome
+     * @throws IOException se accade un errore nella lettura o il formato del file
+     * non è valido
+     * @throws IllegalArgumentException se {@code levels} < 1 o {@code capacity} < 2 */
+    public static void render(Path file, boolean cpu, int levels, int capacity,
+                              PrintStream out, Predicate<String> filter) throws IOException {
+        chkArg(levels >= 1, "levels must be >= 1");
+        chkArg(capacity >= 2, "capacity must be >= 2");
+        Samples s = new Samples(capacity, 1, null);
+        int period;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a threads monitor file: "+file);
+            period = in.readInt();
+            s.read(in);
+        }
+        double realTime = s.realTime >= 0 ? s.realTime : s.lastTime - s.firstTime;
+        print(s, realTime, period, cpu, levels, out, filter);
+    }
+
+    /** Scala degli utilizzi negli istogrammi delle istantanee: un utilizzo u
+     * (da 0 a 1) è registrato come {@code Math.round(u*UTIL_SCALE)} */
+    public static final int UTIL_SCALE = 10_000;
+
+    /** Istantanea dello stato dei thread attivi selezionati dal filtro di un
+     * {@link ThreadsMonitor} */
+    public static class Snapshot {
+        /** @return il tempo trascorso dall'inizio del monitoraggio in millisecondi */
+        public long uptime() { return uptime; }
+
+        /** @return il numero di processori disponibili */
+        public int processors() { return processors; }
+
+        /** @return il carico medio del sistema nell'ultimo minuto (lunghezza media
+         * della coda dei thread pronti più quelli in esecuzione), negativo se non
+         * disponibile */
+        public double loadAverage() { return load; }
+
+        /** @return la saturazione dei processori, cioè il carico medio diviso il
+         * numero di processori: se è maggiore di 1 dei thread pronti aspettano un
+         * processore libero. Negativa se non disponibile. */
+        public double saturation() { return load < 0 ? -1 : load/processors; }
+
+        /** @return la somma degli utilizzi di CPU recenti dei thread diviso il
+         * numero di processori */
+        public double cpuUtilization() {
+            double u = 0;
+            for (ThreadStat t : threads) u += t.cpu;
+            return u/processors;
+        }
+
+        /** @return lo stato dei thread, in ordine di id */
+        public List<ThreadStat> threads() { return threads; }
+
+        /** @return l'istogramma degli utilizzi di CPU dei thread in ogni periodo di
+         * campionamento dell'ultimo minuto, scalati di {@link ThreadsMonitor#UTIL_SCALE} */
+        public Histogram cpuHistogram() { return cpuHist; }
+
+        /** @return l'istogramma degli utilizzi utente dei thread nell'ultimo
+         * minuto, scalati di {@link ThreadsMonitor#UTIL_SCALE}. Il tempo utente
+         * ha spesso una risoluzione di 10ms, quindi con periodi brevi gli utilizzi
+         * sono approssimati. */
+        public Histogram userHistogram() { return userHist; }
+
+        /** @return il tempo in millisecondi dalla precedente istantanea, a cui si
+         * riferiscono i tempi di attesa sui lock */
+        public long interval() { return interval; }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+                    "Uptime %dms  CPU %5.1f%%  Load %.2f  Saturation %.2f  Processors %d\n",
+                    uptime, 100*cpuUtilization(), load, saturation(), processors));
+            sb.append("CPU utilization (%):  ").append(hist(cpuHist)).append('\n');
+            sb.append("User utilization (%): ").append(hist(userHist)).append('\n');
+            int width = 6;
+            for (ThreadStat t : threads) width = Math.max(width, t.name.length());
+            sb.append(String.format("%-"+width+"s %-13s %6s %6s %16s %16s  (last %dms)\n",
+                    "Thread", "State", "CPU%", "User%", "Blocked n/ms", "Waited n/ms", interval));
+            for (ThreadStat t : threads)
+                sb.append(String.format(Locale.ROOT, "%-"+width+"s %-13s %6.1f %6.1f %16s %16s\n",
+                        t.name, t.state, 100*t.cpu, 100*t.user, t.blockedCount+"/"+t.blockedTime,
+                        t.waitedCount+"/"+t.waitedTime));
+            return sb.toString();
+        }
+
+        /** @return l'istantanea in formato JSON */
+        public String toJson() {
+            StringBuilder sb = new StringBuilder("{");
+            sb.append(String.format(Locale.ROOT, "\"uptime\":%d,\"processors\":%d,"+
+                    "\"loadAverage\":%.3f,\"saturation\":%.3f,\"cpu\":%.4f,\"interval\":%d,",
+                    uptime, processors, load, saturation(), cpuUtilization(), interval));
+            sb.append("\"cpuHistogram\":");
+            json(cpuHist, sb);
+            sb.append(",\"userHistogram\":");
+            json(userHist, sb);
+            sb.append(",\"threads\":[");
+            for (ThreadStat t : threads) {
+                if (sb.charAt(sb.length()-1) != '[') sb.append(',');
+                sb.append("{\"id\":").append(t.id).append(",\"name\":");
+                jsonString(t.name, sb);
+                sb.append(String.format(Locale.ROOT, ",\"state\":\"%s\",\"cpu\":%.4f,"+
+                        "\"user\":%.4f,\"blockedCount\":%d,\"blockedTime\":%d,"+
+                        "\"waitedCount\":%d,\"waitedTime\":%d}", t.state, t.cpu, t.user,
+                        t.blockedCount, t.blockedTime, t.waitedCount, t.waitedTime));
+            }
+            return sb.append("]}").toString();
+        }
+
+        private static String hist(Histogram h) {
+            return String.format(Locale.ROOT, "n %d  mean %.1f  p50 %.1f  p90 %.1f  p99 %.1f  max %.1f",
+                    h.count(), h.mean()*100/UTIL_SCALE, pct(h, 50), pct(h, 90), pct(h, 99),
+                    Math.max(0, h.max())*100.0/UTIL_SCALE);
+        }
+
+        private static double pct(Histogram h, double p) {
+            return Math.max(0, h.percentile(p))*100.0/UTIL_SCALE;
+        }
+
+        private static void json(Histogram h, StringBuilder sb) {
+            sb.append(String.format(Locale.ROOT, "{\"count\":%d,\"mean\":%.4f,\"p50\":%.4f,"+
+                    "\"p90\":%.4f,\"p99\":%.4f,\"max\":%.4f}", h.count(), h.mean()/UTIL_SCALE,
+                    pct(h, 50)/100, pct(h, 90)/100, pct(h, 99)/100,
+                    Math.max(0, h.max())/(double)UTIL_SCALE));
+        }
+
+        private static void jsonString(String s, StringBuilder sb) {
+            sb.append('"');
+            for (int i = 0 ; i < s.length() ; i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+
+        private long uptime, interval;
+        private int processors;
+        private double load;
+        private final List<ThreadStat> threads = new ArrayList<>();
+        private Histogram cpuHist, userHist;
     }
 
+    /** Stato di un thread in un'istantanea (vedi {@link ThreadsMonitor#snapshot()}) */
+    public static class ThreadStat {
+        /** @return il nome del thread */
+        public String name() { return name; }
+
+        /** @return l'id del thread */
+        public long id() { return id; }
+
+        /** @return lo stato del thread */
+        public Thread.State state() { return state; }
+
+        /** @return l'utilizzo di CPU recente (circa nell'ultimo secondo), cioè
+         * la frazione del tempo in cui il thread è stato in esecuzione */
+        public double cpu() { return cpu; }
+
+        /** @return l'utilizzo utente recente (circa nell'ultimo secondo) */
+        public double user() { return user; }
+
+        /** @return il numero di volte che il thread si è bloccato in attesa di un
+         * lock dalla precedente istantanea */
+        public long blockedCount() { return blockedCount; }
+
+        /** @return il tempo in millisecondi in cui il thread è stato bloccato in
+         * attesa di un lock dalla precedente istantanea, -1 se non disponibile */
+        public long blockedTime() { return blockedTime; }
+
+        /** @return il numero di volte che il thread si è messo in attesa
+         * ({@code wait}, {@code join}, {@code park}) dalla precedente istantanea */
+        public long waitedCount() { return waitedCount; }
+
+        /** @return il tempo in millisecondi in cui il thread è stato in attesa
+         * dalla precedente istantanea, -1 se non disponibile */
+        public long waitedTime() { return waitedTime; }
+
+        private String name;
+        private long id, blockedCount, blockedTime, waitedCount, waitedTime;
+        private Thread.State state;
+        private double cpu, user;
+    }
+
+
+    /** Crea il thread di monitoraggio. Se {@code log} non è {@code null} i
+     * campionamenti sono scritti anche in esso. */
+    private ThreadsMonitor(int period, boolean cpu, int levels, int capacity,
+                           DataOutputStream log, PrintStream out, Predicate<String> filter) {
+        try {
+            chkArg(period >= 1, "period must be >= 1");
+            chkArg(levels >= 1, "levels must be >= 1");
+            chkArg(capacity >= 2, "capacity must be >= 2");
+            Objects.requireNonNull(filter, "filter cannot be null");
+            if (!TSampler.THM.isThreadCpuTimeSupported())
+                throw new UnsupportedOperationException("JVM doesn't support CPU time measurement");
+        } catch (RuntimeException e) {
+            if (log != null) try { log.close(); } catch (IOException ex) {}
+            throw e;
+        }
+        TSampler.THM.setThreadCpuTimeEnabled(true);
+        samples = new Samples(capacity,     // Se il diagramma è dei tempi di CPU,
+                cpu ? Math.max(1, 1000/period) : 1, log); // i tempi utente sono letti
+        samples.window(filter, Math.max(1, SLOT_MILLIS/period)); // circa ogni secondo
+        this.period = period;
+        monitor = new Thread(() -> {    // Crea il thread di monitoraggio o campionatura
+            double realTime = System.nanoTime();    // Tempo di inizio della campionatura
+            while (true) {    // Loop che termina non appena questo thread è interrotto
+                synchronized (samples) {    // Registra i thread nuovi e campiona tutti
+                    samples.sample();       // i thread
+                }
+                try {
+                    Thread.sleep(period);    // Addormenta il thread fino al prossimo campionamento
+                } catch (InterruptedException e) { break; }  // Se interrotto, termina il campionamento
+            }
+            realTime = System.nanoTime() - realTime;
+            synchronized (samples) {
+                samples.close((long)realTime);
+            }
+            if (out == null) return;
+                // Stampa i risultati della campionatura
+            print(samples, realTime, period, cpu, levels, out, filter);
+            if (samples.error != null)
+                out.println("Error writing samples: "+samples.error);
+        });
+        monitor.setDaemon(true);   // Impostato come daemon thread non pone ostacoli alla
+        monitor.start();           // terminazione del programma. Inizia l'esecuzione
+    }
 
     /** Un {@code TSampler} registra i campionamenti dei tempi di esecuzione di un
      * thread. */
@@ -209,75 +525,381 @@ public class ThreadsMonitor {
             delay = d;
         }
 
-        /** Effettua un campionamento dei tempi di esecuzione del thread */
-        void sample() {
-            long time = System.nanoTime();
-            long cpu = THM.getThreadCpuTime(id), user = THM.getThreadUserTime(id);
-            samples.add(new long[]{time, cpu, user});
+        /** Registra il k-esimo campionamento dei tempi di esecuzione del thread.
+         * @param k  indice del campionamento
+         * @param c  tempo di CPU
+         * @param u  tempo utente
+         * @param cap  numero massimo di campionamenti da mantenere */
+        void sample(long k, long c, long u, int cap) {
+            long i = k - delay;
+            int len = cpu.length;
+            if (i >= len && len < cap) {    // Array non ancora circolare e pieno
+                len = Math.min(cap, 2*len);
+                cpu = Arrays.copyOf(cpu, len);
+                user = Arrays.copyOf(user, len);
+            }
+            cpu[(int)(i % len)] = c;
+            user[(int)(i % len)] = u;
+            if (cpu0 < 0) {
+                cpu0 = c;
+                user0 = u;
+            }
+            cpuN = c;
+            userN = u;
         }
 
-        /** Ritorna in una stringa il diagramma dei tempi campionati.
+        /** Ritorna il tempo del k-esimo campionamento, che deve essere ancora
+         * mantenuto, o -1 se il thread era terminato.
+         * @param k  indice del campionamento
+         * @param c  se {@code true} il tempo di CPU, altrimenti il tempo utente
+         * @return il tempo del campionamento */
+        long get(long k, boolean c) {
+            if (end >= 0 && k >= end) return -1;
+            long[] a = c ? cpu : user;
+            return a[(int)((k - delay) % a.length)];
+        }
+
+        /** Ritorna in una stringa il diagramma dei tempi campionati mantenuti.
+         * @param s  i campionamenti
          * @param cpu  se {@code true} riporta i tempi di CPU, altrimenti riporta i tempi
          *             utente
          * @param levels  numero livelli (o tacche) del diagramma
          * @param width  lunghezza della giustificazione del nome del thread
-         * @return una stringa con il diagramma dei tempi campionati */
-        String report(boolean cpu, int levels, int width) {
-            List<Double> tLst = new ArrayList<>();   // Lista dei valori da riportare nel diagramma
-            double pt = -1, pcu = -1, max = 0;
-            for (long[] tt : samples) {         // Scorre tutti i campionamenti
-                double cu = tt[cpu ? 1 : 2];    // Il tempo da riportare (CPU o utente)
-                boolean terminated = cu < 0;    // Se il thread è terminato, il tempo è negativo
-                if (cu < 0) cu = pcu >= 0 ? pcu : 0;
-                if (pcu >= 0) {
-                    double t = terminated ? -1 : (cu - pcu)/(tt[0] - pt);  // Calcola il rapporto
-                    tLst.add(t);
-                    if (t > max) max = t;    // Per calcolare il numero massimo di tacche
-                }                            // necessarie per il diagramma
-                pcu = cu;
-                pt = tt[0];
+         * @param sb  dove aggiungere il diagramma */
+        void report(Samples s, boolean cpu, int levels, int width, StringBuilder sb) {
+            long lo = s.first();    // Colonna j: intervallo tra i campionamenti j-1 e j
+            double[] tt = new double[(int)Math.max(0, s.count - lo)];  // Valori del diagramma
+            double max = 0;
+            for (int j = 0 ; j < tt.length ; j++) {
+                long k = lo + j;
+                if (k <= delay) tt[j] = Double.NaN;       // Non ancora registrato
+                else if (end >= 0 && k >= end) tt[j] = -1;     // Terminato
+                else {
+                    tt[j] = (double)(get(k, cpu) - get(k-1, cpu))/(s.time(k) - s.time(k-1));
+                    if (tt[j] > max) max = tt[j];    // Per calcolare il numero massimo di
+                }                                    // tacche necessarie per il diagramma
             }
-            Function<String,String> dy = c -> Stream.generate(() -> c).limit(delay)
-                    .collect(Collectors.joining());
-            String s = "";
             for (int i = 0; i < levels; i++) {
                 double lev = (levels - i - 0.5)/levels;
                 if (i < levels-1 && max < lev) continue;
-                s += String.format("%-" + (width + 1) + "s\u2524%s", (i < levels-1 ? "" : name),
-                        dy.apply(i < levels-1 ? " " : "."));
-                for (double t : tLst)
-                    s += t >= lev ? "\u2503" : (i < levels-1 ? " " :
-                            (t > 0 ? "\u257b" : (t < 0 ? "." : "\u2581")));
-                s += "\n";
+                int n = sb.length();
+                if (i == levels-1) sb.append(name);
+                while (sb.length() - n < width + 1) sb.append(' ');
+                sb.append('\u2524');
+                for (double t : tt) {
+                    if (Double.isNaN(t)) sb.append(i < levels-1 ? ' ' : '.');
+                    else sb.append(t >= lev ? '\u2503' : (i < levels-1 ? ' ' :
+                            (t > 0 ? '\u257b' : (t < 0 ? '.' : '\u2581'))));
+                }
+                sb.append('\n');
             }
-            return s;
         }
 
         /** @return il tempo di CPU totale */
-        long totalCPU() { return total(1); }
+        long totalCPU() { return cpu0 >= 0 ? cpuN - cpu0 : 0; }
 
         /** @return il tempo utente totale */
-        long totalUser() { return total(2); }
-
-        /** Ritorna il tempo totale, di CPU o utente a seconda dell'indice i.
-         * @param i  se == 1 tempo di CPU, se == 2 tempo utente
-         * @return il tempo totale, di CPU o utente */
-        private long total(int i) {
-            long min = -1, max = -1;
-            for (long[] s : samples)
-                if (s[i] >= 0) {
-                    if (min == -1 || s[i] < min) min = s[i];
-                    if (max == -1 || s[i] > max) max = s[i];
+        long totalUser() { return user0 >= 0 ? userN - user0 : 0; }
+
+        /** Rilascia i campionamenti, chiamato quando sono tutti usciti dalla
+         * finestra dei campionamenti mantenuti */
+        void release() { cpu = user = null; }
+
+        final long id, delay;    // Id del thread e ritardo della registrazione
+        long end = -1;           // Indice del campionamento in cui è risultato terminato
+            // Array circolari dei tempi di CPU e utente campionati in nanosecondi,
+            // il campionamento k è nell'elemento di indice (k - delay) % length
+        private long[] cpu = new long[16], user = new long[16];
+            // Primi e ultimi tempi campionati, per i tempi totali
+        private long cpu0 = -1, user0 = -1, cpuN, userN;
+        boolean selected;        // Se selezionato dal filtro
+        long userT = -1, userV;  // Istante e valore dell'ultima lettura del tempo utente
+        long[] cont;    // Conteggi e tempi di blocco e attesa all'ultima istantanea
+    }
+
+    /** I thread registrati e i loro campionamenti. Gli istanti dei campionamenti
+     * sono comuni a tutti i thread e sono mantenuti in un array circolare. I
+     * thread attivi sono mantenuti in ordine di id, così che i tempi possano
+     * essere letti e scritti con un'unica operazione. */
+    private static class Samples {
+        Samples(int cap, int userEvery, DataOutputStream log) {
+            this.cap = cap;
+            this.userEvery = userEvery;
+            this.log = log;
+            times = new long[cap];
+        }
+
+        /** Registra i thread nuovi e campiona i tempi di tutti i thread attivi */
+        void sample() {
+            long[] all = TSampler.THM.getAllThreadIds();
+            int nNew = 0;
+            for (long id : all)
+                if (Arrays.binarySearch(ids, id) < 0) all[nNew++] = id;
+            if (nNew > 0) {    // Richiede le info di tutti i thread nuovi insieme
+                for (ThreadInfo tI : TSampler.THM.getThreadInfo(Arrays.copyOf(all, nNew)))
+                    if (tI != null)    // È null se nel frattempo è terminato
+                        add(tI.getThreadId(), tI.getThreadName());
+            }
+            long time = System.nanoTime();
+            long[] c = cpuTimes(ids), u;
+            boolean userRead = ids.length <= FEW_THREADS || count % userEvery == 0;
+            if (userRead) u = userTimes(ids);
+            else {     // Solo per i thread nuovi, per gli altri ripete l'ultimo
+                u = new long[ids.length];
+                long[] nIds = new long[ids.length];
+                int n = 0;
+                for (int i = 0 ; i < ids.length ; i++)
+                    if (act[i].user0 < 0) nIds[n++] = ids[i];
+                    else u[i] = act[i].userN;
+                long[] nu = n > 0 ? userTimes(Arrays.copyOf(nIds, n)) : null;
+                for (int i = 0, j = 0 ; j < n ; i++)
+                    if (act[i].user0 < 0) u[i] = nu[j++];
+            }
+            for (int i = 0 ; i < ids.length ; i++)
+                if (u[i] < 0) u[i] = act[i].user0 >= 0 ? act[i].userN : 0;
+            for (int i = ids.length - 1 ; i >= 0 ; i--)
+                if (c[i] < 0) end(i);    // Se il thread è terminato, il tempo è negativo
+            int n = 0;
+            for (int i = 0 ; i < c.length ; i++) {
+                if (c[i] < 0) continue;
+                c[n] = c[i];
+                u[n++] = u[i];
+            }
+            put(time, c, u, userRead);
+        }
+
+        /** Registra un thread nuovo */
+        void add(long id, String name) {
+            TSampler ts = new TSampler(name, id, count);
+            ts.selected = filter != null && filter.test(name);
+            list.add(ts);
+            int i = -Arrays.binarySearch(ids, id) - 1;
+            long[] nIds = new long[ids.length + 1];
+            TSampler[] nAct = new TSampler[ids.length + 1];
+            System.arraycopy(ids, 0, nIds, 0, i);
+            System.arraycopy(act, 0, nAct, 0, i);
+            System.arraycopy(ids, i, nIds, i + 1, ids.length - i);
+            System.arraycopy(act, i, nAct, i + 1, ids.length - i);
+            nIds[i] = id;
+            nAct[i] = ts;
+            ids = nIds;
+            act = nAct;
+            if (log == null) return;
+            try {
+                log.write(THREAD);
+                log.writeLong(id);
+                log.writeUTF(name);
+            } catch (IOException e) { logError(e); }
+        }
+
+        /** Registra la terminazione dell'i-esimo thread attivo */
+        void end(int i) {
+            TSampler ts = act[i];
+            ts.end = count;
+            long[] nIds = new long[ids.length - 1];
+            TSampler[] nAct = new TSampler[ids.length - 1];
+            System.arraycopy(ids, 0, nIds, 0, i);
+            System.arraycopy(act, 0, nAct, 0, i);
+            System.arraycopy(ids, i + 1, nIds, i, nIds.length - i);
+            System.arraycopy(act, i + 1, nAct, i, nIds.length - i);
+            ids = nIds;
+            act = nAct;
+            if (log == null) return;
+            try {
+                log.write(END);
+                log.writeLong(ts.id);
+            } catch (IOException e) { logError(e); }
+        }
+
+        /** Registra un campionamento, i tempi sono quelli dei thread attivi. Se
+         * userRead è {@code false}, i tempi utente non sono stati letti. */
+        void put(long time, long[] c, long[] u, boolean userRead) {
+            if (count == 0) firstTime = time;
+            if (cpuWin != null) record(time, c, u, userRead);
+            if (log != null) {
+                try {
+                    log.write(SAMPLE);
+                    writeVar(log, time - lastTime);
+                    for (int i = 0 ; i < act.length ; i++) {
+                        writeVar(log, c[i] - (act[i].cpu0 >= 0 ? act[i].cpuN : 0));
+                        writeVar(log, u[i] - (act[i].user0 >= 0 ? act[i].userN : 0));
+                    }
+                } catch (IOException e) { logError(e); }
+            }
+            times[(int)(count % cap)] = time;
+            lastTime = time;
+            for (int i = 0 ; i < act.length ; i++)
+                act[i].sample(count, c[i], u[i], cap);
+            count++;
+            if (count % cap == 0)     // Rilascia i thread terminati non più visibili
+                for (TSampler ts : list)
+                    if (ts.end >= 0 && ts.end <= first()) ts.release();
+        }
+
+        /** Legge i record scritti da un monitoraggio */
+        void read(DataInputStream in) throws IOException {
+            long[] c = new long[0], u = new long[0];
+            try {
+                for (int r = in.read() ; r >= 0 ; r = in.read()) {
+                    switch (r) {
+                        case THREAD: add(in.readLong(), in.readUTF()); break;
+                        case END:
+                            int i = Arrays.binarySearch(ids, in.readLong());
+                            if (i < 0) throw new IOException("Unknown thread");
+                            end(i);
+                            break;
+                        case SAMPLE:
+                            long time = lastTime + readVar(in);
+                            if (c.length < act.length) {
+                                c = new long[2*act.length];
+                                u = new long[2*act.length];
+                            }
+                            for (int j = 0 ; j < act.length ; j++) {
+                                c[j] = readVar(in) + (act[j].cpu0 >= 0 ? act[j].cpuN : 0);
+                                u[j] = readVar(in) + (act[j].user0 >= 0 ? act[j].userN : 0);
+                            }
+                            put(time, c, u, true);
+                            break;
+                        case STOP: realTime = readVar(in); break;
+                        default: throw new IOException("Invalid record "+r);
+                    }
                 }
-            return min != -1 ? max - min : 0;
+            } catch (EOFException e) { }   // File incompleto
         }
 
-        private final long id, delay;    // Id del thread e ritardo della registrazione.
-            // Lista dei campionamenti del thread, ogni elemento è un array di tre
-            // long che mantiene i tempi campionati in nanosecondi, il primo è il
-            // tempo reale del campionamento, il secondo è il tempo di CPU e il
-            // terzo è il tempo utente.
-        private final List<long[]> samples = new ArrayList<>();
+        /** Termina la scrittura dei campionamenti, se attiva */
+        void close(long realTime) {
+            this.realTime = realTime;
+            if (log == null) return;
+            try {
+                log.write(STOP);
+                writeVar(log, realTime);
+                log.close();
+            } catch (IOException e) { logError(e); }
+            log = null;
+        }
+
+        /** Attiva gli istogrammi degli utilizzi dei thread selezionati dal filtro
+         * su una finestra di {@link ThreadsMonitor#SLOTS} intervalli, ognuno di
+         * slotSamples campionamenti */
+        void window(Predicate<String> filter, int slotSamples) {
+            this.filter = filter;
+            this.slotSamples = slotSamples;
+            cpuWin = new Histogram[SLOTS];
+            userWin = new Histogram[SLOTS];
+            for (int i = 0 ; i < SLOTS ; i++) {
+                cpuWin[i] = new Histogram(2*UTIL_SCALE);
+                userWin[i] = new Histogram(2*UTIL_SCALE);
+            }
+        }
+
+        /** Registra negli istogrammi gli utilizzi dall'ultimo campionamento, per
+         * i tempi utente dall'ultima lettura */
+        private void record(long time, long[] c, long[] u, boolean userRead) {
+            int slot = (int)(count/slotSamples % SLOTS);
+            if (count % slotSamples == 0) {    // Inizia un nuovo intervallo della finestra
+                cpuWin[slot].clear();
+                userWin[slot].clear();
+            }
+            for (int i = 0 ; i < act.length ; i++) {
+                TSampler ts = act[i];
+                if (!ts.selected) continue;
+                if (ts.cpu0 >= 0)
+                    cpuWin[slot].record(util(c[i] - ts.cpuN, time - lastTime));
+                if (!userRead) continue;
+                if (ts.userT >= 0)
+                    userWin[slot].record(util(u[i] - ts.userV, time - ts.userT));
+                ts.userT = time;
+                ts.userV = u[i];
+            }
+        }
+
+        /** Ritorna l'istantanea dei thread attivi selezionati, gli utilizzi sono
+         * calcolati sugli ultimi recent campionamenti */
+        Snapshot snapshot(int recent) {
+            Snapshot s = new Snapshot();
+            long now = System.nanoTime();
+            s.uptime = count > 0 ? (now - firstTime)/1_000_000 : 0;
+            s.interval = snapTime > 0 ? (now - snapTime)/1_000_000 : s.uptime;
+            snapTime = now;
+            s.processors = Runtime.getRuntime().availableProcessors();
+            s.load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+            s.cpuHist = new Histogram(2*UTIL_SCALE);
+            s.userHist = new Histogram(2*UTIL_SCALE);
+            for (int i = 0 ; i < SLOTS ; i++) {
+                s.cpuHist.add(cpuWin[i]);
+                s.userHist.add(userWin[i]);
+            }
+            List<TSampler> sel = new ArrayList<>();
+            for (TSampler ts : act)
+                if (ts.selected && ts.cpu0 >= 0) sel.add(ts);
+            long[] sIds = new long[sel.size()];
+            for (int i = 0 ; i < sIds.length ; i++) sIds[i] = sel.get(i).id;
+            ThreadInfo[] info = sIds.length > 0 ? TSampler.THM.getThreadInfo(sIds) : new ThreadInfo[0];
+            long k1 = count - 1;
+            for (int i = 0 ; i < sIds.length ; i++) {
+                TSampler ts = sel.get(i);
+                ThreadStat t = new ThreadStat();
+                t.name = ts.name;
+                t.id = ts.id;
+                long k0 = Math.max(ts.delay, Math.max(count - cap, k1 - recent));
+                if (k0 < k1) {
+                    double dt = time(k1) - time(k0);
+                    t.cpu = (ts.get(k1, true) - ts.get(k0, true))/dt;
+                    t.user = (ts.get(k1, false) - ts.get(k0, false))/dt;
+                }
+                if (info[i] == null) t.state = Thread.State.TERMINATED;
+                else {
+                    ThreadInfo tI = info[i];
+                    t.state = tI.getThreadState();
+                    long[] cc = {tI.getBlockedCount(), tI.getBlockedTime(),
+                            tI.getWaitedCount(), tI.getWaitedTime()};
+                    long[] pc = ts.cont != null ? ts.cont : new long[4];
+                    t.blockedCount = cc[0] - pc[0];
+                    t.blockedTime = cc[1] < 0 ? -1 : cc[1] - Math.max(0, pc[1]);
+                    t.waitedCount = cc[2] - pc[2];
+                    t.waitedTime = cc[3] < 0 ? -1 : cc[3] - Math.max(0, pc[3]);
+                    ts.cont = cc;
+                }
+                s.threads.add(t);
+            }
+            return s;
+        }
+
+        /** Ritorna l'utilizzo scalato per gli istogrammi */
+        private static long util(long d, long dt) {
+            return dt > 0 ? Math.max(0, Math.round((double)d*UTIL_SCALE/dt)) : 0;
+        }
+
+        /** @return l'indice del primo campionamento mantenuto */
+        long first() { return Math.max(1, count - cap + 1); }
+
+        /** @return l'istante del k-esimo campionamento */
+        long time(long k) { return times[(int)(k % cap)]; }
+
+        /** Registra l'errore e termina la scrittura dei campionamenti */
+        private void logError(IOException e) {
+            error = e;
+            try { log.close(); } catch (IOException ex) {}
+            log = null;
+        }
+
+        final int cap;              // Numero massimo di campionamenti mantenuti
+        final int userEvery;        // Ogni quanti campionamenti legge i tempi utente
+        final long[] times;         // Istanti dei campionamenti, array circolare
+        final List<TSampler> list = new ArrayList<>();    // Tutti i thread registrati
+        long count;                 // Numero di campionamenti
+        long firstTime, lastTime, realTime = -1;
+        IOException error;          // Errore di scrittura, se accaduto
+        private long[] ids = new long[0];               // Id dei thread attivi, ordinati
+        private TSampler[] act = new TSampler[0];       // Thread attivi, in ordine di id
+        private DataOutputStream log;                   // Se non null, vi scrive i record
+            // Filtro dei thread degli istogrammi e istogrammi degli utilizzi della
+            // finestra, un elemento per ogni intervallo di slotSamples campionamenti
+        private Predicate<String> filter;
+        private Histogram[] cpuWin, userWin;
+        private int slotSamples;
+        private long snapTime;                          // Istante dell'ultima istantanea
     }
 
     private static void chkArg(boolean cond, String msg) {
@@ -286,38 +908,124 @@ public class ThreadsMonitor {
     }
 
     /** Stampa sul flusso specificato i risultati del monitoraggio.
-     * @param samplers  mappa dei thread e delle relative campionature
+     * @param samples  i thread e le relative campionature
      * @param realTime  tempo reale dell'intervallo di monitoraggio
      * @param period  priodo delle campionature
      * @param cpu  {@code true} se tempi di CPU, altrimenti tempi utente
      * @param levels  numero livelli dei diagrammi
      * @param out  flusso in cui stampare i risultati
      * @param filter  filtro che seleziona i thread da riportare */
-    private static void print(Map<Long, TSampler> samplers, double realTime, int period,
+    private static void print(Samples samples, double realTime, int period,
                               boolean cpu, int levels, PrintStream out, Predicate<String> filter) {
         Predicate<TSampler> sF = r -> filter.test(r.name);
-        int width = samplers.values().stream().filter(sF).map(r -> r.name.length())
+        int width = samples.list.stream().filter(sF).map(r -> r.name.length())
                 .max(Comparator.naturalOrder()).orElse(0);
-        String s = String.format("Period %dms  %s time charts  Levels %d\n",
-                period, (cpu ? "CPU" : "User"), levels);
-        for (TSampler ts : samplers.values()) {
+        StringBuilder sb = new StringBuilder(String.format("Period %dms  %s time charts  Levels %d\n",
+                period, (cpu ? "CPU" : "User"), levels));
+        for (TSampler ts : samples.list) {
             if (!filter.test(ts.name)) continue;
-            s += ts.report(cpu, levels, width) + "\n";
+            if (ts.end >= 0 && ts.end <= samples.first()) continue;   // Non più visibile
+            ts.report(samples, cpu, levels, width, sb);
+            sb.append('\n');
         }
         double machineTime = realTime * Runtime.getRuntime().availableProcessors();
-        BiFunction<String, ToLongFunction<TSampler>, String> total = (nm, t) -> {
-            long totalT = samplers.values().stream().filter(sF).mapToLong(t)
+        BiConsumer<String, ToLongFunction<TSampler>> total = (nm, t) -> {
+            long totalT = samples.list.stream().filter(sF).mapToLong(t)
                     .reduce(Long::sum).orElse(0);
-            return String.format(nm + "Total %dms  Percentage %5.1f%%\n",
-                    totalT/1_000_000, 100.0*(totalT/machineTime));
+            sb.append(String.format(nm + "Total %dms  Percentage %5.1f%%\n",
+                    totalT/1_000_000, 100.0*(totalT/machineTime)));
         };
-        s += total.apply("CPU time:     ", TSampler::totalCPU);
-        s += total.apply("User time:    ", TSampler::totalUser);
-        s += String.format("Machine time: Total %dms  Percentage %5.1f%%\n",
-                Math.round(machineTime/1_000_000), 100.0);
-        s += String.format("Real time: %dms\n", Math.round(realTime/1_000_000));
-        out.println(s);
+        total.accept("CPU time:     ", TSampler::totalCPU);
+        total.accept("User time:    ", TSampler::totalUser);
+        sb.append(String.format("Machine time: Total %dms  Percentage %5.1f%%\n",
+                Math.round(machineTime/1_000_000), 100.0));
+        sb.append(String.format("Real time: %dms\n", Math.round(realTime/1_000_000)));
+        out.println(sb);
     }
 
+    /** Invia la risposta ad una richiesta HTTP */
+    private static void reply(HttpExchange ex, String type, String body) throws IOException {
+        byte[] b = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", type+"; charset=utf-8");
+        ex.sendResponseHeaders(200, b.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(b);
+        }
+    }
+
+    /** Crea il file in cui scrivere i campionamenti e ne scrive l'intestazione */
+    private static DataOutputStream open(Path file, int period) throws IOException {
+        DataOutputStream log = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file), 1 << 16));
+        log.writeInt(MAGIC);
+        log.writeInt(period);
+        return log;
+    }
+
+    /** Ritorna i tempi di CPU dei thread dati, -1 per quelli terminati */
+    private static long[] cpuTimes(long[] ids) {
+        if (BATCH != null) return BATCH.getThreadCpuTime(ids);
+        long[] t = new long[ids.length];
+        for (int i = 0 ; i < ids.length ; i++)
+            t[i] = TSampler.THM.getThreadCpuTime(ids[i]);
+        return t;
+    }
+
+    /** Ritorna i tempi utente dei thread dati, -1 per quelli terminati */
+    private static long[] userTimes(long[] ids) {
+        if (BATCH != null) return BATCH.getThreadUserTime(ids);
+        long[] t = new long[ids.length];
+        for (int i = 0 ; i < ids.length ; i++)
+            t[i] = TSampler.THM.getThreadUserTime(ids[i]);
+        return t;
+    }
+
+    /** Scrive un intero in formato zig-zag a lunghezza variabile, 7 bit per byte */
+    private static void writeVar(DataOutputStream out, long v) throws IOException {
+        v = (v << 1) ^ (v >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.write((int)(v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int)v);
+    }
+
+    /** Legge un intero scritto da {@link ThreadsMonitor#writeVar(DataOutputStream, long)} */
+    private static long readVar(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int s = 0 ; ; s += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long)(b & 0x7F) << s;
+            if (b < 0x80) break;
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Se la JVM lo permette, l'estensione di {@link ThreadMXBean} che legge i
+     * tempi di più thread con un'unica invocazione, altrimenti {@code null} */
+    private static final com.sun.management.ThreadMXBean BATCH = batchBean();
+
+    private static com.sun.management.ThreadMXBean batchBean() {
+        try {
+            return TSampler.THM instanceof com.sun.management.ThreadMXBean ?
+                    (com.sun.management.ThreadMXBean)TSampler.THM : null;
+        } catch (LinkageError e) { return null; }
+    }
+
+    /** Fino a questo numero di thread i tempi utente sono letti ad ogni
+     * campionamento */
+    private static final int FEW_THREADS = 64;
+    /** Numero di intervalli della finestra degli istogrammi e loro durata in
+     * millisecondi */
+    private static final int SLOTS = 6, SLOT_MILLIS = 10_000;
+    /** Durata in millisecondi su cui è calcolato l'utilizzo recente dei thread */
+    private static final int RECENT_MILLIS = 1000;
+    private static final int MAGIC = 0x54484d31;    // "THM1"
+        // Tipi dei record del file dei campionamenti
+    private static final int THREAD = 1, END = 2, SAMPLE = 3, STOP = 4;
+
     private final Thread monitor;
+    private final Samples samples;
+    private final int period;
+    private HttpServer server;    // Il server HTTP, se avviato
 }
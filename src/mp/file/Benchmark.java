@@ -0,0 +1,368 @@
+package mp.file;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import static mp.util.Utils.toGMKB;
+
+/** Un {@code Benchmark} misura le prestazioni di un metodo, in particolare di
+ * quelli che calcolano il numero totale di byte contenuti in una directory (vedi
+ * {@link Utils#totalSize(Path)}). Il metodo è prima invocato un certo numero di
+ * volte senza misurarlo (riscaldamento), così che il codice sia compilato dal
+ * JIT e le cache del file system siano piene, poi è invocato il numero di volte
+ * specificato misurando per ogni invocazione:
+ * <ul>
+ *     <li>il tempo, con {@link System#nanoTime()};</li>
+ *     <li>i byte allocati da tutti i thread, anche da quelli che terminano
+ *     durante l'invocazione, tramite il totale dei byte allocati dalla JVM
+ *     ({@code getTotalThreadAllocatedBytes()}, da Java 21). Con JVM precedenti
+ *     sono sommati i byte allocati dai thread attivi, tramite
+ *     {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long[])},
+ *     e le allocazioni dei thread che terminano durante l'invocazione non sono
+ *     conteggiate (se la JVM lo permette);</li>
+ *     <li>il numero e il tempo delle garbage collection, tramite
+ *     {@link GarbageCollectorMXBean}, e la durata della pausa più lunga, tramite
+ *     le notifiche dei garbage collector.</li>
+ * </ul>
+ * Così si può capire se un metodo è diventato più veloce o ha solamente spostato
+ * lavoro sul garbage collector. I risultati possono essere aggiunti ad un file
+ * CSV per confrontare esecuzioni diverse. */
+public class Benchmark {
+    /** Crea un {@code Benchmark}.
+     * @param warmup  numero di invocazioni di riscaldamento
+     * @param iterations  numero di invocazioni misurate
+     * @throws IllegalArgumentException se {@code warmup} < 0 o {@code iterations} < 1 */
+    public Benchmark(int warmup, int iterations) {
+        if (warmup < 0) throw new IllegalArgumentException("warmup must be >= 0");
+        if (iterations < 1) throw new IllegalArgumentException("iterations must be >= 1");
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    /** I risultati delle misurazioni di un metodo */
+    public static class Result {
+        /** @return il nome del metodo */
+        public String name() { return name; }
+
+        /** @return il valore ritornato dall'ultima invocazione */
+        public long value() { return value; }
+
+        /** @return i tempi delle invocazioni in nanosecondi */
+        public long[] nanos() { return nanos.clone(); }
+
+        /** @return i byte allocati durante ogni invocazione, -1 se non disponibili */
+        public long[] allocated() { return allocated.clone(); }
+
+        /** @return il tempo medio in nanosecondi */
+        public double mean() {
+            double s = 0;
+            for (long t : nanos) s += t;
+            return s/nanos.length;
+        }
+
+        /** @return la deviazione standard dei tempi in nanosecondi */
+        public double stddev() {
+            if (nanos.length < 2) return 0;
+            double m = mean(), s = 0;
+            for (long t : nanos) s += (t - m)*(t - m);
+            return Math.sqrt(s/(nanos.length - 1));
+        }
+
+        /** Ritorna il percentile p dei tempi, cioè il minimo tempo maggiore o
+         * uguale ad almeno il p% dei tempi.
+         * @param p  il percentile, tra 0 e 100
+         * @return il percentile p dei tempi in nanosecondi */
+        public long percentile(double p) {
+            if (!(p >= 0 && p <= 100)) throw new IllegalArgumentException("p must be in [0, 100]");
+            long[] s = nanos.clone();
+            Arrays.sort(s);
+            return s[Math.max(0, (int)Math.ceil(p/100*s.length) - 1)];
+        }
+
+        /** @return la media dei byte allocati per invocazione, -1 se non disponibili */
+        public double meanAllocated() {
+            double s = 0;
+            for (long a : allocated) {
+                if (a < 0) return -1;
+                s += a;
+            }
+            return s/allocated.length;
+        }
+
+        /** @return il numero di garbage collection durante le invocazioni misurate */
+        public long gcCount() { return gcCount; }
+
+        /** @return il tempo totale in millisecondi delle garbage collection durante
+         * le invocazioni misurate */
+        public long gcTime() { return gcTime; }
+
+        /** @return la durata in millisecondi della pausa più lunga dovuta ad una
+         * garbage collection, 0 se non ci sono state pause, -1 se non disponibile */
+        public long maxPause() { return maxPause; }
+
+        /** @return il picco del numero di thread addizionali */
+        public int peakThreads() { return peakThreads; }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s  Value %d\n"+
+                    "Time (ms): mean %.2f  stddev %.2f  min %.2f  p50 %.2f  p90 %.2f  p99 %.2f  max %.2f\n"+
+                    "Allocated/op: %s  GC: count %d  time %dms  max pause %dms  Peak threads +%d",
+                    name, value, mean()/1e6, stddev()/1e6, percentile(0)/1e6, percentile(50)/1e6,
+                    percentile(90)/1e6, percentile(99)/1e6, percentile(100)/1e6,
+                    meanAllocated() < 0 ? "n/a" : toGMKB((long)meanAllocated()),
+                    gcCount, gcTime, maxPause, peakThreads);
+        }
+
+        /** @return i risultati in una riga CSV con le colonne di {@link Benchmark#CSV_HEADER} */
+        public String toCsv() {
+            return String.format(Locale.ROOT, "%s,%s,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.0f,%d,%d,%d,%d",
+                    time, csvField(name), nanos.length, value, mean()/1e6, stddev()/1e6,
+                    percentile(0)/1e6, percentile(50)/1e6, percentile(90)/1e6,
+                    percentile(99)/1e6, percentile(100)/1e6, meanAllocated(), gcCount,
+                    gcTime, maxPause, peakThreads);
+        }
+
+        private static String csvField(String s) {
+            if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+            return '"'+s.replace("\"", "\"\"")+'"';
+        }
+
+        private String name, time;
+        private long value, gcCount, gcTime, maxPause;
+        private long[] nanos, allocated;
+        private int peakThreads;
+    }
+
+    /** Intestazione delle righe CSV dei risultati */
+    public static final String CSV_HEADER = "time,name,iterations,value,mean_ms,stddev_ms,"+
+            "min_ms,p50_ms,p90_ms,p99_ms,max_ms,alloc_bytes,gc_count,gc_ms,gc_max_pause_ms,peak_threads";
+
+    /** Misura un metodo che calcola il numero totale di byte di una directory.
+     * @param name  nome del metodo
+     * @param ts  il metodo
+     * @param p  percorso della directory
+     * @return i risultati delle misurazioni */
+    public Result run(String name, Function<Path,Long> ts, Path p) {
+        return run(name, () -> ts.apply(p));
+    }
+
+    /** Misura un'operazione che ritorna un {@code long}.
+     * @param name  nome dell'operazione
+     * @param task  l'operazione
+     * @return i risultati delle misurazioni */
+    public Result run(String name, LongSupplier task) {
+        Result r = new Result();
+        r.name = name;
+        r.time = Instant.now().toString();
+        for (int i = 0 ; i < warmup ; i++)
+            r.value = task.getAsLong();
+        System.gc();         // Per non misurare la raccolta dei rifiuti del riscaldamento
+        r.nanos = new long[iterations];
+        r.allocated = new long[iterations];
+        int nt = THM.getThreadCount();
+        THM.resetPeakThreadCount();
+        long gcCount = -gcCount(), gcTime = -gcTime();
+        PauseListener pl = new PauseListener();
+        try {
+            long me = Thread.currentThread().getId();
+            for (int i = 0 ; i < iterations ; i++) {
+                long total = totalAllocated(), mine = -1;
+                long[] ids = null, before = null;
+                if (total < 0 && ATHM != null) {    // Fotografia dei thread attivi
+                    ids = THM.getAllThreadIds();
+                    before = ATHM.getThreadAllocatedBytes(ids);
+                    mine = ATHM.getThreadAllocatedBytes(me);    // Per ultimo
+                }
+                long time = System.nanoTime();
+                r.value = task.getAsLong();
+                r.nanos[i] = System.nanoTime() - time;
+                r.allocated[i] = total >= 0 ? totalAllocated() - total :
+                        allocatedSince(me, mine, ids, before);
+            }
+        } finally {
+            pl.remove(DRAIN_MILLIS);
+        }
+        r.gcCount = gcCount + gcCount();
+        r.gcTime = gcTime + gcTime();
+        r.maxPause = pl.maxPause;
+        r.peakThreads = THM.getPeakThreadCount() - nt;
+        return r;
+    }
+
+    /** Aggiunge i risultati in fondo al file CSV specificato. Se il file non
+     * esiste, lo crea scrivendo prima l'intestazione {@link Benchmark#CSV_HEADER}.
+     * @param file  il percorso del file
+     * @param results  i risultati
+     * @throws IOException se accade un errore nella scrittura */
+    public static void appendCsv(Path file, List<Result> results) throws IOException {
+        boolean header = !Files.exists(file);
+        try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (header) {
+                w.write(CSV_HEADER);
+                w.newLine();
+            }
+            for (Result r : results) {
+                w.write(r.toCsv());
+                w.newLine();
+            }
+        }
+    }
+
+
+    /** Registra la durata della pausa più lunga tramite le notifiche dei garbage
+     * collector. Le notifiche sono asincrone, perciò prima di rimuovere il
+     * listener si attendono quelle delle raccolte già avvenute. */
+    private static class PauseListener implements NotificationListener {
+        PauseListener() {
+            synchronized (this) {
+                for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+                    if (gc instanceof NotificationEmitter) {
+                        lastId.put(gc, gc.getCollectionCount());
+                        ((NotificationEmitter)gc).addNotificationListener(this, null, gc);
+                    }
+                maxPause = lastId.isEmpty() ? -1 : 0;
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification n, Object handback) {
+            if (!GC_NOTIFICATION.equals(n.getType())) return;
+            CompositeData cd = (CompositeData)n.getUserData();
+            CompositeData info = (CompositeData)cd.get("gcInfo");
+            long id = (Long)info.get("id");     // Numero della raccolta del collector
+            boolean pause = !String.valueOf(cd.get("gcAction")).contains("concurrent");
+            long d = (Long)info.get("duration");
+            synchronized (this) {
+                lastId.merge((GarbageCollectorMXBean)handback, id, Math::max);
+                if (pause && d > maxPause) maxPause = d;
+                notifyAll();
+            }
+        }
+
+        /** Attende, al più per il tempo dato, le notifiche delle raccolte già
+         * avvenute e poi rimuove il listener dai garbage collector
+         * @param millis  massimo tempo di attesa in millisecondi */
+        synchronized void remove(long millis) {
+            long end = System.currentTimeMillis() + millis;
+            try {
+                for (GarbageCollectorMXBean gc : lastId.keySet()) {
+                    long count = gc.getCollectionCount(), wait;
+                    while (lastId.get(gc) < count && (wait = end - System.currentTimeMillis()) > 0)
+                        wait(wait);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            for (GarbageCollectorMXBean gc : lastId.keySet())
+                try {
+                    ((NotificationEmitter)gc).removeNotificationListener(this);
+                } catch (Exception ex) { }
+        }
+
+        private final Map<GarbageCollectorMXBean,Long> lastId = new HashMap<>();
+        private long maxPause;
+    }
+
+    /** @return i byte allocati finora da tutti i thread della JVM, anche
+     * terminati, -1 se non disponibili */
+    private static long totalAllocated() {
+        if (TOTAL_ALLOCATED == null) return -1;
+        try {
+            return (long)TOTAL_ALLOCATED.invokeExact(ATHM);
+        } catch (Throwable t) { return -1; }
+    }
+
+    /** Ritorna i byte allocati dai thread attivi dopo la fotografia data: i
+     * thread ids con i byte before allocati da ognuno e i byte mine allocati
+     * dal thread me. Ritorna -1 se non disponibili. Per i thread nuovi conta
+     * tutti i byte allocati. I byte del thread me sono letti per primi, così
+     * gli array creati qui non sono conteggiati. */
+    private static long allocatedSince(long me, long mine, long[] ids, long[] before) {
+        if (ids == null || mine < 0) return -1;
+        long sum = ATHM.getThreadAllocatedBytes(me) - mine;
+        long[] nowIds = THM.getAllThreadIds();
+        long[] now = ATHM.getThreadAllocatedBytes(nowIds);
+        for (int i = 0 ; i < nowIds.length ; i++) {
+            if (nowIds[i] == me || now[i] < 0) continue;
+            long b = 0;
+            for (int j = 0 ; j < ids.length ; j++)     // Pochi thread
+                if (ids[j] == nowIds[i]) {
+                    b = Math.max(0, before[j]);
+                    break;
+                }
+            sum += now[i] - b;
+        }
+        return sum;
+    }
+
+    private static long gcCount() {
+        long c = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            c += Math.max(0, gc.getCollectionCount());
+        return c;
+    }
+
+    private static long gcTime() {
+        long t = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            t += Math.max(0, gc.getCollectionTime());
+        return t;
+    }
+
+    /** Se la JVM lo permette, l'estensione di {@link ThreadMXBean} che fornisce
+     * i byte allocati dai thread, altrimenti {@code null} */
+    private static com.sun.management.ThreadMXBean allocBean() {
+        try {
+            ThreadMXBean thm = ManagementFactory.getThreadMXBean();
+            if (!(thm instanceof com.sun.management.ThreadMXBean)) return null;
+            com.sun.management.ThreadMXBean athm = (com.sun.management.ThreadMXBean)thm;
+            if (!athm.isThreadAllocatedMemorySupported()) return null;
+            athm.setThreadAllocatedMemoryEnabled(true);
+            return athm;
+        } catch (LinkageError | UnsupportedOperationException e) { return null; }
+    }
+
+    /** Se la JVM lo fornisce (da Java 21), il metodo
+     * {@code getTotalThreadAllocatedBytes()} di {@link #ATHM}, altrimenti
+     * {@code null} */
+    private static MethodHandle totalAllocatedHandle() {
+        if (ATHM == null) return null;
+        try {
+            MethodHandle mh = MethodHandles.publicLookup().findVirtual(
+                    com.sun.management.ThreadMXBean.class, "getTotalThreadAllocatedBytes",
+                    MethodType.methodType(long.class));
+            long t = (long)mh.invokeExact(ATHM);
+            return t >= 0 ? mh : null;
+        } catch (Throwable t) { return null; }
+    }
+
+    /** Tipo delle notifiche dei garbage collector, come
+     * {@code GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION} */
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+    private static final long DRAIN_MILLIS = 1000;   // Attesa massima delle notifiche
+    private static final ThreadMXBean THM = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean ATHM = allocBean();
+    private static final MethodHandle TOTAL_ALLOCATED = totalAllocatedHandle();
+
+    private final int warmup, iterations;
+}
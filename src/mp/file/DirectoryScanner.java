@@ -0,0 +1,356 @@
+package mp.file;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/** Un {@code DirectoryScanner} calcola il numero totale di byte contenuti in una
+ * directory (vedi {@link Utils#totalSize(Path)}) con una strategia scelta ad
+ * ogni invocazione tra quelle definite da {@link Strategy}. A differenza dei
+ * metodi {@code totalSize*} di {@link Utils}, che creano e chiudono un esecutore
+ * ad ogni invocazione, un {@code DirectoryScanner} mantiene i propri thread fino
+ * all'invocazione di {@link DirectoryScanner#close()}. Tutte le strategie usano
+ * lo stesso metodo per esaminare il contenuto di una directory e per ogni
+ * strategia sono registrate le statistiche dei tempi e del numero di file e
+ * directory esaminati (vedi {@link DirectoryScanner#stats(Strategy)}).
+ * <br>
+ * Il contenuto di una directory può essere esaminato in due modi. Come nei
+ * metodi di {@link Utils}, invocando per ogni elemento
+ * {@link Files#isDirectory}, {@link Files#isRegularFile} e {@link Files#size},
+ * ognuno dei quali richiede al sistema operativo gli attributi del file (una
+ * system call {@code stat}). Oppure, in modalità <i>attributi</i>, leggendo
+ * una sola volta gli attributi di ogni elemento tramite
+ * {@link Files#readAttributes(Path, Class, LinkOption...)}. Sui file system di
+ * rete, dove ogni {@code stat} ha una latenza elevata, la seconda modalità è
+ * molto più veloce. Le statistiche riportano il numero di {@code stat}
+ * effettuate e quelle risparmiate rispetto alla prima modalità.
+ * Esempio di uso:
+ * <pre>
+ * try (DirectoryScanner ds = new DirectoryScanner(0)) {
+ *     long size = ds.totalSize(dir, DirectoryScanner.Strategy.FORK_JOIN);
+ *     System.out.println(ds.stats(DirectoryScanner.Strategy.FORK_JOIN));
+ * }
+ * </pre> */
+public class DirectoryScanner implements AutoCloseable {
+    /** Le strategie per visitare l'albero di una directory */
+    public enum Strategy {
+        /** Visita sequenziale nel thread di invocazione */
+        SEQUENTIAL,
+        /** Un task Fork-Join per ogni directory */
+        FORK_JOIN,
+        /** Un task per ogni directory e una coda delle directory da visitare */
+        QUEUE
+    }
+
+    /** Statistiche delle scansioni eseguite con una strategia */
+    public static class Stats {
+        /** @return il numero di scansioni eseguite */
+        public long scans() { return scans; }
+
+        /** @return il numero totale di file regolari esaminati */
+        public long files() { return files; }
+
+        /** @return il numero totale di directory esaminate */
+        public long dirs() { return dirs; }
+
+        /** @return il tempo totale delle scansioni in nanosecondi */
+        public long nanos() { return nanos; }
+
+        /** @return il numero di richieste degli attributi dei file ({@code stat}) */
+        public long statCalls() { return statCalls; }
+
+        /** @return il numero di richieste degli attributi dei file che sono state
+         * risparmiate rispetto all'uso di {@link Files#isDirectory},
+         * {@link Files#isRegularFile} e {@link Files#size} */
+        public long statSaved() { return statSaved; }
+
+        /** @return il numero medio di file regolari esaminati al secondo */
+        public double filesPerSec() { return nanos > 0 ? files*1e9/nanos : 0; }
+
+        /** @return il numero medio di directory esaminate al secondo */
+        public double dirsPerSec() { return nanos > 0 ? dirs*1e9/nanos : 0; }
+
+        @Override
+        public String toString() {
+            return String.format("Scans %d  Files %d (%.0f/s)  Dirs %d (%.0f/s)  "+
+                    "Stat %d (saved %d)  Time %.2fs", scans, files, filesPerSec(), dirs,
+                    dirsPerSec(), statCalls, statSaved, nanos/1e9);
+        }
+
+        private long scans, files, dirs, statCalls, statSaved, nanos;
+    }
+
+    /** Crea un {@code DirectoryScanner} in modalità attributi con il numero di
+     * thread specificato.
+     * @param nThreads  numero di thread, se <= 0, è il numero di processori */
+    public DirectoryScanner(int nThreads) { this(nThreads, true); }
+
+    /** Crea un {@code DirectoryScanner} con il numero di thread specificato.
+     * @param nThreads  numero di thread, se <= 0, è il numero di processori
+     * @param attributes  se {@code true}, gli attributi di ogni elemento di una
+     *                    directory sono letti una sola volta */
+    public DirectoryScanner(int nThreads, boolean attributes) {
+        this.attributes = attributes;
+        if (nThreads <= 0) nThreads = Runtime.getRuntime().availableProcessors();
+        fjPool = new ForkJoinPool(nThreads);
+        pool = Executors.newFixedThreadPool(nThreads, r -> {
+            Thread t = new Thread(r, "scanner-"+threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (Strategy s : Strategy.values())
+            stats.put(s, new Stats());
+    }
+
+    /** Ritorna il numero totale di byte contenuti nella directory specificata
+     * calcolato con la strategia data. Se non è una directory, ritorna 0. I link
+     * simbolici non sono seguiti, solamente i file regolari sono conteggiati e
+     * tutti gli errori di I/O sono ignorati.
+     * @param d  percorso di una directory
+     * @param s  la strategia
+     * @return il numero totale di byte contenuti nella directory
+     * @throws IllegalStateException se questo scanner è stato chiuso
+     * @throws CancellationException se il thread di invocazione è interrotto
+     * durante una scansione {@link Strategy#QUEUE}. Lo stato di interruzione
+     * del thread è mantenuto. */
+    public long totalSize(Path d, Strategy s) {
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("Scanner is closed");
+            active++;
+        }
+        Counts c = new Counts(attributes);
+        long time = System.nanoTime();
+        long size;
+        try {
+            switch (s) {
+                case FORK_JOIN: size = fjPool.invoke(new DirTask(d, c)); break;
+                case QUEUE: size = queue(d, c); break;
+                default: size = sequential(d, c); break;
+            }
+        } finally {
+            synchronized (this) {
+                if (--active == 0 && closed) shutdown();
+            }
+        }
+        time = System.nanoTime() - time;
+        Stats st = stats.get(s);
+        synchronized (st) {
+            st.scans++;
+            st.files += c.files.sum();
+            st.dirs += c.dirs.sum();
+            st.statCalls += c.statCalls.sum();
+            st.statSaved += c.statSaved.sum();
+            st.nanos += time;
+        }
+        return size;
+    }
+
+    /** Ritorna una copia delle statistiche registrate per la strategia data.
+     * @param s  una strategia
+     * @return le statistiche delle scansioni eseguite con la strategia */
+    public Stats stats(Strategy s) {
+        Stats st = stats.get(s), copy = new Stats();
+        synchronized (st) {
+            copy.scans = st.scans;
+            copy.files = st.files;
+            copy.dirs = st.dirs;
+            copy.statCalls = st.statCalls;
+            copy.statSaved = st.statSaved;
+            copy.nanos = st.nanos;
+        }
+        return copy;
+    }
+
+    /** Ritorna la strategia che finora ha esaminato più file al secondo tra
+     * quelle usate almeno una volta.
+     * @return la strategia più veloce o {@code null} se nessuna è stata usata */
+    public Strategy fastest() {
+        Strategy best = null;
+        double max = -1;
+        for (Strategy s : Strategy.values()) {
+            Stats st = stats(s);
+            if (st.scans > 0 && st.filesPerSec() > max) {
+                max = st.filesPerSec();
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    /** Chiude questo scanner: nuove scansioni non sono più accettate. Le
+     * scansioni in corso sono completate e i thread terminano al termine
+     * dell'ultima di esse. */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (active == 0) shutdown();
+    }
+
+
+    /** Termina i thread, con il lock di questo scanner */
+    private void shutdown() {
+        pool.shutdown();
+        fjPool.shutdown();
+    }
+
+    /** Contatori dei file, delle directory e delle {@code stat} di una scansione */
+    private static class Counts {
+        Counts(boolean attr) { attributes = attr; }
+
+        final boolean attributes;    // Se true, modalità attributi
+        final LongAdder files = new LongAdder(), dirs = new LongAdder();
+        final LongAdder statCalls = new LongAdder(), statSaved = new LongAdder();
+    }
+
+    /** Esamina il contenuto della directory specificata. Per ogni sub-directory
+     * invoca {@code subDir} e ritorna la somma dei byte dei file regolari
+     * direttamente contenuti nella directory. È il metodo usato da tutte le
+     * strategie.
+     * @param d  percorso di una directory
+     * @param c  i contatori da aggiornare
+     * @param subDir  invocato per ogni sub-directory
+     * @return la somma dei byte dei file regolari contenuti nella directory */
+    private static long scanDir(Path d, Counts c, Consumer<Path> subDir) {
+        c.dirs.increment();
+        return c.attributes ? scanDirAttr(d, c, subDir) : scanDirFiles(d, c, subDir);
+    }
+
+    /** Esamina il contenuto di una directory con {@link Files#isDirectory},
+     * {@link Files#isRegularFile} e {@link Files#size}, cioè con fino a tre
+     * {@code stat} per ogni elemento. */
+    private static long scanDirFiles(Path d, Counts c, Consumer<Path> subDir) {
+        long size = 0, files = 0, stat = 0;
+        try (Stream<Path> list = Files.list(d)) {
+            for (Path e : list.toArray(Path[]::new)) {
+                stat++;
+                if (Files.isDirectory(e, NOL)) {
+                    subDir.accept(e);
+                } else {
+                    stat++;
+                    if (Files.isRegularFile(e, NOL)) {
+                        stat++;
+                        size += Files.size(e);
+                        files++;
+                    }
+                }
+            }
+        } catch (IOException ex) { }  // Ignora errori di I/O
+        c.files.add(files);
+        c.statCalls.add(stat);
+        return size;
+    }
+
+    /** Esamina il contenuto di una directory leggendo gli attributi di ogni
+     * elemento una sola volta, cioè con una sola {@code stat} per elemento. */
+    private static long scanDirAttr(Path d, Counts c, Consumer<Path> subDir) {
+        long size = 0, files = 0, stat = 0, saved = 0;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(d)) {
+            for (Path e : ds) {
+                BasicFileAttributes a;
+                try {
+                    stat++;
+                    a = Files.readAttributes(e, BasicFileAttributes.class, NOL);
+                } catch (IOException ex) { continue; }  // Es. file rimosso
+                if (a.isDirectory()) {
+                    subDir.accept(e);
+                } else if (a.isRegularFile()) {
+                    size += a.size();
+                    files++;
+                    saved += 2;     // isDirectory, isRegularFile e size
+                } else
+                    saved++;        // isDirectory e isRegularFile
+            }
+        } catch (IOException | DirectoryIteratorException ex) { }
+        c.files.add(files);
+        c.statCalls.add(stat);
+        c.statSaved.add(saved);
+        return size;
+    }
+
+    /** Visita sequenziale con una pila esplicita delle directory da visitare */
+    private static long sequential(Path d, Counts c) {
+        Deque<Path> stack = new ArrayDeque<>();
+        stack.push(d);
+        long size = 0;
+        while (!stack.isEmpty())
+            size += scanDir(stack.pop(), c, stack::push);
+        return size;
+    }
+
+    /** Task Fork-Join per una directory */
+    private static class DirTask extends RecursiveTask<Long> {
+        DirTask(Path d, Counts c) {
+            dir = d;
+            counts = c;
+        }
+
+        @Override
+        protected Long compute() {
+            List<DirTask> tasks = new ArrayList<>();
+            long size = scanDir(dir, counts, e -> tasks.add(new DirTask(e, counts)));
+            for (DirTask t : ForkJoinTask.invokeAll(tasks))
+                size += t.join();
+            return size;
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final Counts counts;
+    }
+
+    /** Visita con un task per ogni directory eseguito dal pool di thread di
+     * questo scanner. Come in {@link Utils#totalSizeQueue(Path)} i task
+     * accodano le sub-directory ma il thread di invocazione attende sulla coda
+     * invece di interrogarla continuamente. Se il thread è interrotto lancia
+     * {@link CancellationException}: i task già sottomessi sono completati ma
+     * il loro risultato, parziale, è scartato. */
+    private long queue(Path d, Counts c) {
+        BlockingQueue<Optional<Path>> queue = new LinkedBlockingQueue<>();
+        LongAdder size = new LongAdder();
+        Consumer<Path> task = p -> {
+            try {
+                size.add(scanDir(p, c, e -> queue.add(Optional.of(e))));
+            } finally {
+                queue.add(Optional.empty());   // Per marcare la fine del task
+            }
+        };
+        long pending = 1;
+        pool.execute(() -> task.accept(d));
+        try {
+            while (pending > 0) {
+                Optional<Path> op = queue.take();
+                if (op.isPresent()) {
+                    pending++;
+                    pool.execute(() -> task.accept(op.get()));
+                } else
+                    pending--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Scan interrupted");
+        }
+        return size.sum();
+    }
+
+    private static final LinkOption NOL = LinkOption.NOFOLLOW_LINKS;
+
+    private final boolean attributes;   // Se true, modalità attributi
+    private final ForkJoinPool fjPool;
+    private final ExecutorService pool;
+    private final Map<Strategy, Stats> stats = new EnumMap<>(Strategy.class);
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private boolean closed;     // Con il lock di questo scanner
+    private int active;         // Scansioni in corso
+}
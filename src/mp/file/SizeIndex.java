@@ -0,0 +1,286 @@
+package mp.file;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** Un {@code SizeIndex} mantiene un indice delle dimensioni delle directory per
+ * calcolare in modo incrementale il numero totale di byte contenuti in una
+ * directory (vedi {@link Utils#totalSize(Path)}). Per ogni directory esaminata
+ * l'indice registra la data di ultima modifica (mtime), la somma dei byte dei
+ * file regolari direttamente contenuti e i nomi delle sub-directory. Quando la
+ * stessa directory è richiesta di nuovo, solamente le directory il cui mtime è
+ * cambiato sono riesaminate, per le altre basta leggerne gli attributi.
+ * <br>
+ * Il mtime di una directory cambia solo quando vi sono creati, rimossi o
+ * rinominati degli elementi, non quando è modificato il contenuto di un file.
+ * Per accorgersi anche di questi cambiamenti si può attivare la sorveglianza
+ * tramite {@link java.nio.file.WatchService} (vedi {@link SizeIndex#watch(Path)}).
+ * Con la sorveglianza attiva, le directory in cui non è avvenuto alcun evento
+ * non sono neanche lette: il costo di una richiesta è proporzionale al numero di
+ * directory cambiate.
+ * <br>
+ * L'indice può essere salvato in un file binario compatto
+ * ({@link SizeIndex#save(Path)}) e ricaricato ({@link SizeIndex#load(Path)}).
+ * I metodi sono thread-safe. */
+public class SizeIndex implements AutoCloseable {
+    /** Crea un indice vuoto */
+    public SizeIndex() { }
+
+    /** Ritorna il numero totale di byte contenuti nella directory specificata.
+     * Se non è una directory, ritorna 0. I link simbolici non sono seguiti,
+     * solamente i file regolari sono conteggiati e tutti gli errori di I/O sono
+     * ignorati. Le directory non cambiate dall'ultima richiesta non sono
+     * riesaminate.
+     * @param d  percorso di una directory
+     * @return il numero totale di byte contenuti nella directory */
+    public synchronized long totalSize(Path d) {
+        d = d.toAbsolutePath().normalize();
+        drainEvents();
+        visited = rescanned = 0;
+        return total(d);
+    }
+
+    /** @return il numero di directory di cui sono stati letti gli attributi
+     * durante l'ultima invocazione di {@link SizeIndex#totalSize(Path)} */
+    public synchronized long lastVisited() { return visited; }
+
+    /** @return il numero di directory riesaminate durante l'ultima invocazione
+     * di {@link SizeIndex#totalSize(Path)} */
+    public synchronized long lastRescanned() { return rescanned; }
+
+    /** @return il numero di directory nell'indice */
+    public int size() { return index.size(); }
+
+    /** Attiva la sorveglianza delle directory dell'indice tramite un
+     * {@link WatchService} del file system della directory data. Le directory
+     * esaminate in seguito sono anch'esse sorvegliate. Una directory che non può
+     * essere sorvegliata (ad es. per il limite del sistema operativo) è
+     * riesaminata ad ogni richiesta e il totale dei suoi antenati è ricalcolato.
+     * @param root  una directory del file system da sorvegliare
+     * @throws IOException se non è possibile creare il {@link WatchService}
+     * @throws IllegalStateException se la sorveglianza è già attiva */
+    public synchronized void watch(Path root) throws IOException {
+        if (watcher != null)
+            throw new IllegalStateException("Already watching");
+        watcher = root.getFileSystem().newWatchService();
+        for (Map.Entry<Path,Entry> me : index.entrySet()) {
+            me.getValue().total = -1;    // Cambiamenti precedenti non osservati
+            register(me.getKey());
+        }
+    }
+
+    /** Termina la sorveglianza, se attiva. */
+    @Override
+    public synchronized void close() {
+        if (watcher == null) return;
+        try {
+            watcher.close();
+        } catch (IOException e) { }
+        watcher = null;
+        keys.clear();
+        for (Entry e : index.values()) e.total = -1;
+    }
+
+    /** Salva l'indice nel file specificato. Il formato è binario: ogni albero
+     * dell'indice è scritto a partire dalla sua radice, di cui è scritto il
+     * percorso, mentre di ogni altra directory è scritto solamente il nome.
+     * @param file  il percorso del file
+     * @throws IOException se accade un errore nella scrittura */
+    public synchronized void save(Path file) throws IOException {
+        List<Path> roots = new ArrayList<>();
+        for (Path p : index.keySet())
+            if (p.getParent() == null || !index.containsKey(p.getParent()))
+                roots.add(p);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(roots.size());
+            for (Path r : roots) {
+                out.writeUTF(r.toString());
+                write(out, r, index.get(r));
+            }
+        }
+    }
+
+    /** Ritorna l'indice letto dal file specificato. Se il file non esiste,
+     * ritorna un indice vuoto.
+     * @param file  il percorso di un file scritto da {@link SizeIndex#save(Path)}
+     * @return l'indice letto dal file
+     * @throws IOException se accade un errore nella lettura o il formato del file
+     * non è valido */
+    public static SizeIndex load(Path file) throws IOException {
+        SizeIndex si = new SizeIndex();
+        if (!Files.exists(file)) return si;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a size index: "+file);
+            for (int n = in.readInt() ; n > 0 ; n--) {
+                Path r = Paths.get(in.readUTF());
+                si.read(in, r);
+            }
+        }
+        return si;
+    }
+
+
+    /** Informazioni di una directory nell'indice */
+    private static class Entry {
+        Entry(long mtime, long files, String[] subs) {
+            this.mtime = mtime;
+            this.files = files;
+            this.subs = subs;
+        }
+
+        long mtime;          // Data di ultima modifica in microsecondi
+        final long files;    // Somma dei byte dei file regolari direttamente contenuti
+        final String[] subs; // Nomi delle sub-directory
+        long total = -1;     // Totale, valido se >= 0: solo se la directory e
+                             // tutte le sue sub-directory sono sorvegliate
+    }
+
+    /** Ritorna il totale della directory d aggiornando l'indice */
+    private long total(Path d) {
+        Entry e = index.get(d);
+        if (e != null && watcher != null && e.total >= 0)
+            return e.total;    // Nessun evento dall'ultima richiesta
+        BasicFileAttributes a;
+        try {
+            visited++;
+            a = Files.readAttributes(d, BasicFileAttributes.class, NOL);
+        } catch (IOException ex) {
+            remove(d);
+            return 0;
+        }
+        if (!a.isDirectory()) {
+            remove(d);
+            return 0;
+        }
+        long mtime = a.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+        if (e != null && watcher != null && !keys.containsKey(d)) {
+            register(d);       // Non sorvegliata: il mtime non rivela i cambiamenti
+            e.mtime = -1;      // del contenuto dei file, quindi la riesamina
+        }
+        if (e == null || e.mtime != mtime) {   // Nuova o cambiata, la riesamina
+            Entry old = e;
+            e = scan(d, mtime);
+            index.put(d, e);
+            if (old != null) {       // Rimuove le sub-directory scomparse
+                Set<String> now = new HashSet<>(Arrays.asList(e.subs));
+                for (String s : old.subs)
+                    if (!now.contains(s)) remove(d.resolve(s));
+            }
+        }
+        long size = e.files;
+        boolean watched = watcher != null && keys.containsKey(d);
+        for (String s : e.subs) {
+            Path sd = d.resolve(s);
+            size += total(sd);
+            Entry se = index.get(sd);
+            watched &= se != null && se.total >= 0;
+        }
+        e.total = watched ? size : -1;      // Altrimenti non è affidabile
+        return size;
+    }
+
+    /** Esamina il contenuto della directory d e ne ritorna le informazioni */
+    private Entry scan(Path d, long mtime) {
+        rescanned++;
+        register(d);
+        long files = 0;
+        List<String> subs = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(d)) {
+            for (Path p : ds) {
+                try {
+                    BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class, NOL);
+                    if (a.isDirectory()) subs.add(p.getFileName().toString());
+                    else if (a.isRegularFile()) files += a.size();
+                } catch (IOException ex) { }
+            }
+        } catch (IOException | DirectoryIteratorException ex) { }
+        return new Entry(mtime, files, subs.toArray(new String[subs.size()]));
+    }
+
+    /** Rimuove dall'indice la directory d e tutte le sue sub-directory */
+    private void remove(Path d) {
+        Entry e = index.remove(d);
+        if (e == null) return;
+        WatchKey k = keys.remove(d);
+        if (k != null) k.cancel();
+        for (String s : e.subs)
+            remove(d.resolve(s));
+    }
+
+    /** Se la sorveglianza è attiva, registra la directory d. La registrazione
+     * può fallire, ad es. se è esaurito il limite di directory sorvegliate del
+     * sistema operativo: allora la directory è trattata come non sorvegliata e
+     * la registrazione è ritentata alla prossima richiesta. */
+    private void register(Path d) {
+        if (watcher == null || keys.containsKey(d)) return;
+        try {
+            keys.put(d, d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+        } catch (IOException | UnsupportedOperationException ex) { }
+    }
+
+    /** Invalida le directory in cui sono avvenuti eventi dall'ultima richiesta:
+     * devono essere riesaminate, e i totali di tutti i loro antenati devono
+     * essere ricalcolati. */
+    private void drainEvents() {
+        if (watcher == null) return;
+        WatchKey k;
+        while ((k = watcher.poll()) != null) {
+            Path d = (Path)k.watchable();
+            boolean overflow = false;
+            for (WatchEvent<?> ev : k.pollEvents())
+                if (ev.kind() == StandardWatchEventKinds.OVERFLOW) overflow = true;
+            if (!k.reset()) keys.remove(d);
+            if (overflow) {          // Eventi persi, invalida tutto
+                for (Entry e : index.values()) e.mtime = e.total = -1;
+                continue;
+            }
+            Entry e = index.get(d);
+            if (e != null) e.mtime = -1;    // Forza la riesamina
+            for (Path p = d ; p != null ; p = p.getParent()) {
+                Entry pe = index.get(p);
+                if (pe != null) pe.total = -1;
+            }
+        }
+    }
+
+    /** Scrive ricorsivamente le informazioni della directory d */
+    private void write(DataOutputStream out, Path d, Entry e) throws IOException {
+        out.writeLong(e.mtime);
+        out.writeLong(e.files);
+        out.writeInt(e.subs.length);
+        for (String s : e.subs) {
+            out.writeUTF(s);
+            Entry se = index.get(d.resolve(s));
+            out.writeBoolean(se != null);
+            if (se != null) write(out, d.resolve(s), se);
+        }
+    }
+
+    /** Legge ricorsivamente le informazioni della directory d */
+    private void read(DataInputStream in, Path d) throws IOException {
+        long mtime = in.readLong(), files = in.readLong();
+        String[] subs = new String[in.readInt()];
+        index.put(d, new Entry(mtime, files, subs));
+        for (int i = 0 ; i < subs.length ; i++) {
+            subs[i] = in.readUTF();
+            if (in.readBoolean()) read(in, d.resolve(subs[i]));
+        }
+    }
+
+    private static final int MAGIC = 0x53495831;   // "SIX1"
+    private static final LinkOption NOL = LinkOption.NOFOLLOW_LINKS;
+
+    private final Map<Path,Entry> index = new ConcurrentHashMap<>();
+    private final Map<Path,WatchKey> keys = new HashMap<>();
+    private WatchService watcher;          // null se la sorveglianza non è attiva
+    private long visited, rescanned;       // Statistiche dell'ultima richiesta
+}
@@ -6,6 +6,8 @@ import java.lang.management.ThreadMXBean;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
@@ -35,6 +37,82 @@ public class TestFiles {
         //test_ts("totalSizeConcur", Utils::totalSizeConcur, dir, 10);
         //test_ts("totalSizeQueue", Utils::totalSizeQueue, dir, 10);
         test_ts("totalSizeForkJoin", Utils::totalSizeForkJoin, dir, 10);
+        //test_scanner(dir, 10);
+        //test_index(dir, Paths.get("sizeindex.bin"), 10);
+        //test_bench(dir, Paths.get("bench.csv"), 3, 10);
+    }
+
+    /** Misura con un {@link Benchmark} tutti i metodi che calcolano il numero
+     * totale di byte di una directory, stampa i risultati e li aggiunge al file
+     * CSV dato.
+     * @param p  percorso della directory
+     * @param csv  percorso del file CSV
+     * @param warmup  numero di invocazioni di riscaldamento
+     * @param n  numero di invocazioni misurate */
+    public static void test_bench(Path p, Path csv, int warmup, int n) {
+        Benchmark b = new Benchmark(warmup, n);
+        List<Benchmark.Result> results = new ArrayList<>();
+        Map<String,Function<Path,Long>> methods = new LinkedHashMap<>();
+        methods.put("totalSize", Utils::totalSize);
+        methods.put("totalSizeNR", Utils::totalSizeNR);
+        methods.put("totalSizeNaiveConcur", Utils::totalSizeNaiveConcur);
+        methods.put("totalSizeConcur", Utils::totalSizeConcur);
+        methods.put("totalSizeQueue", Utils::totalSizeQueue);
+        methods.put("totalSizeForkJoin", Utils::totalSizeForkJoin);
+        out.println("Benchmark  Directory: "+p);
+        for (Map.Entry<String,Function<Path,Long>> e : methods.entrySet()) {
+            Benchmark.Result r = b.run(e.getKey(), e.getValue(), p);
+            out.println(r);
+            results.add(r);
+        }
+        try (DirectoryScanner ds = new DirectoryScanner(0)) {
+            for (DirectoryScanner.Strategy s : DirectoryScanner.Strategy.values()) {
+                Benchmark.Result r = b.run("DirectoryScanner "+s, d -> ds.totalSize(d, s), p);
+                out.println(r);
+                results.add(r);
+            }
+        }
+        try {
+            Benchmark.appendCsv(csv, results);
+        } catch (IOException e) { out.println(e); }
+    }
+
+    /** Mette alla prova un {@link SizeIndex} salvato nel file dato: lo carica,
+     * calcola n volte il numero totale di byte della directory con la
+     * sorveglianza attiva, stampando il numero di directory riesaminate, e
+     * infine lo salva.
+     * @param p  percorso della directory
+     * @param file  percorso del file dell'indice
+     * @param n  numero di volte che il totale è calcolato */
+    public static void test_index(Path p, Path file, int n) {
+        try (SizeIndex si = SizeIndex.load(file)) {
+            out.println("Directory nell'indice: "+si.size());
+            si.watch(p);
+            test_ts("SizeIndex", d -> {
+                long size = si.totalSize(d);
+                out.println("Visitate "+si.lastVisited()+"  Riesaminate "+si.lastRescanned());
+                return size;
+            }, p, n);
+            si.save(file);
+        } catch (IOException e) { out.println(e); }
+    }
+
+    /** Mette alla prova tutte le strategie di un {@link DirectoryScanner} sulla
+     * directory data, sia in modalità attributi che non, e stampa le statistiche
+     * di ognuna e la più veloce.
+     * @param p  percorso della directory
+     * @param n  numero di volte che ogni strategia è invocata */
+    public static void test_scanner(Path p, int n) {
+        for (boolean attr : new boolean[] {false, true}) {
+            try (DirectoryScanner ds = new DirectoryScanner(0, attr)) {
+                for (DirectoryScanner.Strategy s : DirectoryScanner.Strategy.values()) {
+                    test_ts("DirectoryScanner "+s+(attr ? " attributi" : ""),
+                            d -> ds.totalSize(d, s), p, n);
+                    out.println(ds.stats(s));
+                }
+                out.println("Strategia più veloce: "+ds.fastest());
+            }
+        }
     }
 
     /** Mette alla prova un metodo che preso in input il percorso di una directory
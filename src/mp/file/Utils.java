@@ -1,6 +1,18 @@
 package mp.file;
 
+import mp.util.WordCounter;
+
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
@@ -64,6 +76,76 @@ public class Utils {
         return map;
     }
 
+    /** Come {@link Utils#wordMap(Path, String)} ma conteggia le occorrenze delle
+     * parole nel contatore dato, senza creare un {@link Integer} ad ogni
+     * incremento.
+     * @param p  il percorso del file
+     * @param cs  il charset per decodificare i caratteri
+     * @param wc  il contatore in cui sono conteggiate le parole
+     * @throws IOException se la lettura del file va in errore */
+    public static void wordMap(Path p, String cs, WordCounter wc) throws IOException {
+        try (Scanner scan = new Scanner(p, cs)) {
+            scan.useDelimiter("[^\\p{IsLetter}]+");    // Caratteri che non sono lettere
+            while (scan.hasNext())
+                wc.add(scan.next());
+        }
+    }
+
+    /** Come {@link Utils#wordMap(Path, String)} ma il file è letto tramite
+     * memory-mapping e suddiviso in parti che sono elaborate in parallelo (vedi
+     * {@link Utils#wordCounts(Path, Charset)}). Molto più veloce per file grandi.
+     * @param p  il percorso del file
+     * @param cs  il charset per decodificare i caratteri
+     * @return  una mappa che conta le occorenze delle parole
+     * @throws IOException se la lettura del file va in errore */
+    public static Map<String,Integer> wordMapParallel(Path p, String cs) throws IOException {
+        return wordCounts(p, Charset.forName(cs)).toMap();
+    }
+
+    /** Ritorna un {@link WordCounter} con il numero di occorrenze di ogni parola
+     * del file specificato. Le parole sono definite come in {@link Utils#wordMap(Path, String)}.
+     * Il file è letto tramite memory-mapping ed è suddiviso in parti che
+     * terminano su un carattere di spaziatura, quindi mai all'interno di una
+     * parola. Le parti sono decodificate e divise in parole in parallelo, senza
+     * espressioni regolari, e infine i conteggi delle parti sono sommati. Ogni
+     * parte è al più di {@link Integer#MAX_VALUE} byte: una parola più lunga è
+     * spezzata. Se il charset non codifica i caratteri ASCII con un solo byte
+     * (es. UTF-16), il file non è suddiviso ma letto e decodificato in sequenza.
+     * @param p  il percorso del file
+     * @param cs  il charset per decodificare i caratteri
+     * @return  un contatore delle occorenze delle parole
+     * @throws IOException se la lettura del file va in errore */
+    public static WordCounter wordCounts(Path p, Charset cs) throws IOException {
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            if (!asciiCompatible(cs)) {     // Non si può dividere sui byte
+                Reader r = Channels.newReader(ch, decoder(cs), -1);
+                return countWords(cb -> r.read(cb) < 0);
+            }
+            long size = ch.size();
+            int np = Runtime.getRuntime().availableProcessors();
+            long nChunks = Math.max(1, Math.min(4L*np, size/MIN_CHUNK));
+            nChunks = Math.max(nChunks, (size + MAX_CHUNK - 1)/MAX_CHUNK);
+            List<Callable<WordCounter>> tasks = new ArrayList<>();
+            long start = 0;
+            for (long i = 1 ; start < size ; i++) {
+                long end = i >= nChunks ? size : chunkEnd(ch, Math.max(start, size*i/nChunks), size);
+                end = Math.min(end, start + Integer.MAX_VALUE);    // Limite di map()
+                MappedByteBuffer bb = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                tasks.add(() -> countWords(bb, cs));
+                start = end;
+            }
+            WordCounter counts = new WordCounter();
+            for (Future<WordCounter> f : ForkJoinPool.commonPool().invokeAll(tasks))
+                counts.addAll(f.get());              // Somma i conteggi delle parti
+            return counts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
     /** Ritorna il numero totale di byte contenuti nella directory specificata. Se
      * non è una directory, ritorna 0. I link simbolici non sono seguiti, solamente
      * i file regolari sono conteggiati e tutti gli errori di I/O sono ignorati.
@@ -242,5 +324,109 @@ public class Utils {
     }
 
 
+    /** Ritorna true se il charset codifica i caratteri ASCII con un solo byte e
+     * i byte di valore inferiore a 0x21 sono sempre caratteri di spaziatura o di
+     * controllo, cioè non fanno mai parte della codifica di altri caratteri né
+     * cambiano lo stato del decodificatore. Per sicurezza sono accettati solo
+     * UTF-8, US-ASCII, ISO-8859-* e windows-125*: i charset con sequenze di
+     * escape (come ISO-2022-JP) o con stato sono esclusi e sono letti in modo
+     * sequenziale. */
+    private static boolean asciiCompatible(Charset cs) {
+        String n = cs.name();
+        return n.equals("UTF-8") || n.equals("US-ASCII") || n.startsWith("ISO-8859-")
+                || n.startsWith("windows-125");
+    }
+
+    /** Ritorna la posizione, a partire da pos, che segue il primo byte di
+     * spaziatura, o size se non c'è */
+    private static long chunkEnd(FileChannel ch, long pos, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        while (pos < size) {
+            buf.clear();
+            int n = ch.read(buf, pos);
+            if (n <= 0) break;
+            for (int i = 0 ; i < n ; i++) {
+                byte b = buf.get(i);
+                if (b >= 0 && b <= ' ') return pos + i + 1;
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    /** Decodifica i byte dati e ritorna un contatore delle parole */
+    private static WordCounter countWords(ByteBuffer bb, Charset cs) throws IOException {
+        CharsetDecoder dec = decoder(cs);
+        return countWords(cb -> {
+            if (!dec.decode(bb, cb, true).isUnderflow()) return false;
+            dec.flush(cb);
+            return true;
+        });
+    }
+
+    /** Una sorgente di caratteri decodificati */
+    private interface CharSource {
+        /** Aggiunge caratteri al buffer, che ha sempre spazio disponibile.
+         * @return true se la sorgente è terminata */
+        boolean fill(CharBuffer cb) throws IOException;
+    }
+
+    /** Ritorna un contatore delle parole dei caratteri della sorgente. I
+     * caratteri sono letti a blocchi in un array; una parola che arriva
+     * alla fine del blocco è spostata all'inizio prima di leggere il
+     * blocco seguente. */
+    private static WordCounter countWords(CharSource src) throws IOException {
+        WordCounter counts = new WordCounter();
+        char[] buf = new char[1 << 16];
+        CharBuffer cb = CharBuffer.wrap(buf);
+        int from = 0, ws = -1;      // Inizio scansione e inizio parola corrente
+        boolean end = false;
+        while (!end) {
+            end = src.fill(cb);
+            int n = cb.position();
+            for (int i = from ; i < n ; i++) {
+                if (isLetter(buf[i])) {
+                    if (ws < 0) ws = i;
+                } else if (ws >= 0) {
+                    counts.add(buf, ws, i - ws);
+                    ws = -1;
+                }
+            }
+            if (end) {
+                if (ws >= 0) counts.add(buf, ws, n - ws);
+            } else {
+                int keep = ws >= 0 ? n - ws : 0;   // La parola incompleta
+                if (keep > buf.length/2) buf = Arrays.copyOf(buf, 2*buf.length);
+                System.arraycopy(buf, n - keep, buf, 0, keep);
+                cb = CharBuffer.wrap(buf);
+                cb.position(keep);
+                from = keep;
+                ws = ws >= 0 ? 0 : -1;
+            }
+        }
+        return counts;
+    }
+
+    /** @return un decoder del charset che sostituisce i byte non validi */
+    private static CharsetDecoder decoder(Charset cs) {
+        return cs.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /** Ritorna true se il carattere è una lettera secondo
+     * {@link Character#isLetter(char)}, usando una tabella per i caratteri Latin-1 */
+    private static boolean isLetter(char c) {
+        return c < 256 ? LATIN1_LETTERS[c] : Character.isLetter(c);
+    }
+
+    private static final boolean[] LATIN1_LETTERS = new boolean[256];
+    static {
+        for (char c = 0 ; c < 256 ; c++)
+            LATIN1_LETTERS[c] = Character.isLetter(c);
+    }
+
+    private static final long MIN_CHUNK = 1 << 20;   // Dimensione minima di una parte
+    private static final long MAX_CHUNK = 1 << 28;   // Dimensione massima di una parte
+
     private static final LinkOption NOL = LinkOption.NOFOLLOW_LINKS;
 }
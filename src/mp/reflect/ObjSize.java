@@ -1,57 +1,485 @@
 package mp.reflect;
 
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /** La classe definisce il metodo {@link ObjSize#estimate(Object)} che ritorna la
  * una stima della dimensione in bytes di un oggetto dato. Partendo dalla classe
  * dell'oggetto conteggia la dimensione dell'oggetto base, dei suoi campi e per i
  * campi riferimento conteggia le dimensioni dei valori facendo attenzione a non
  * conteggiare più volte lo stesso valore (oggetto). Per fare ciò esegue una visita
- * a partire dall'oggetto seguendo i puntatori contenuti nei campi riferimento. */
+ * a partire dall'oggetto seguendo i puntatori contenuti nei campi riferimento.
+ * <br>
+ * La visita usa una pila esplicita invece della ricorsione, quindi anche
+ * strutture concatenate molto profonde (liste con milioni di nodi) non
+ * esauriscono lo stack del thread. Le informazioni delle classi sono calcolate
+ * una sola volta e mantenute in un {@link ClassValue}, i campi riferimento sono
+ * letti tramite {@link MethodHandle} e gli elementi degli array di riferimenti
+ * sono letti direttamente, senza {@link Array#get(Object, int)}. I metodi sono
+ * thread-safe.
+ * <br>
+ * Tutti i campi riferimento degli oggetti visitati devono essere accessibili:
+ * da Java 9 i package dei moduli che li dichiarano devono essere aperti, ad
+ * esempio per le stringhe e le collezioni della piattaforma
+ * <pre>
+ *     --add-opens=java.base/java.lang=ALL-UNNAMED
+ *     --add-opens=java.base/java.util=ALL-UNNAMED
+ * </pre>
+ * Se un campo non è accessibile la stima non è possibile e i metodi lanciano
+ * {@link IllegalStateException}, invece di ritornare una stima per difetto.
+ * <br>
+ * {@link ObjSize#estimate(Object, ForkJoinPool)} esegue la visita in parallelo:
+ * gli array di riferimenti grandi, come le tabelle delle collezioni, sono
+ * suddivisi in parti visitate da task diversi e un task che ha molti oggetti da
+ * visitare ne cede metà ad un nuovo task.
+ * <br>
+ * Le dimensioni sono calcolate con il modello {@link Layout} della JVM in
+ * esecuzione: dimensione dell'intestazione, dei riferimenti e allineamento
+ * dipendono dalle opzioni della JVM e i campi sono disposti come fa HotSpot,
+ * riempiendo i buchi lasciati dall'allineamento.
+ * {@link ObjSize#histogram(Object)} ripartisce la dimensione per classe. */
 public class ObjSize {
     /** Ritorna una stima della dimensione in byte dell'oggetto specificato.
      * @param o  un oggetto
-     * @return una stima della dimensione in byte dell'oggetto specificato */
+     * @return una stima della dimensione in byte dell'oggetto specificato
+     * @throws IllegalStateException se un campo di un oggetto visitato non è
+     * accessibile */
     public static long estimate(Object o) {
+        return walk(o, null);
+    }
+
+    /** Ritorna la ripartizione per classe della dimensione dell'oggetto
+     * specificato e di tutti gli oggetti raggiungibili, conteggiati come in
+     * {@link ObjSize#estimate(Object)}.
+     * @param o  un oggetto
+     * @return l'istogramma per classe degli oggetti raggiungibili
+     * @throws IllegalStateException se un campo di un oggetto visitato non è
+     * accessibile */
+    public static ClassHistogram histogram(Object o) {
+        ClassHistogram h = new ClassHistogram();
+        walk(o, h);
+        return h;
+    }
+
+    /** @return il modello della disposizione degli oggetti della JVM in
+     * esecuzione */
+    public static Layout layout() { return LAYOUT; }
+
+    /** Il modello della disposizione in memoria degli oggetti di una JVM
+     * HotSpot a 64 bit:
+     * <ul>
+     *     <li>un oggetto inizia con un'intestazione di 8 byte (mark word)
+     *     seguita dal puntatore alla classe, di 4 byte se i puntatori alle
+     *     classi sono compressi ({@code UseCompressedClassPointers}), 8
+     *     altrimenti. Con {@code UseCompactObjectHeaders} il puntatore alla
+     *     classe è nella mark word;</li>
+     *     <li>un riferimento occupa 4 byte se i riferimenti sono compressi
+     *     ({@code UseCompressedOops}), 8 altrimenti;</li>
+     *     <li>i campi della superclasse precedono quelli della classe, che
+     *     sono disposti in ordine di dimensione decrescente, i riferimenti
+     *     dopo i campi primitivi. Ogni campo è allineato alla propria
+     *     dimensione e occupa il primo spazio libero sufficiente, anche tra
+     *     l'intestazione e i campi della superclasse (come HotSpot dalla
+     *     versione 15);</li>
+     *     <li>un array ha dopo l'intestazione la lunghezza (4 byte) e poi gli
+     *     elementi;</li>
+     *     <li>la dimensione di ogni oggetto è arrotondata al multiplo di
+     *     {@code ObjectAlignmentInBytes}.</li>
+     * </ul>
+     * Non è modellato lo spazio aggiunto attorno ai campi annotati con
+     * {@code @Contended}, usati solamente da alcune classi del JDK (come
+     * {@link Thread}), la cui dimensione è quindi sottostimata. */
+    public static class Layout {
+        /** Crea un modello con le opzioni specificate.
+         * @param compressedOops  se i riferimenti sono compressi
+         * @param compressedClassPointers  se i puntatori alle classi sono compressi
+         * @param compactHeaders  se le intestazioni sono compatte (8 byte)
+         * @param alignment  allineamento degli oggetti in byte, potenza di 2 >= 8
+         * @throws IllegalArgumentException se l'allineamento non è valido */
+        public Layout(boolean compressedOops, boolean compressedClassPointers,
+                      boolean compactHeaders, int alignment) {
+            if (alignment < 8 || Integer.bitCount(alignment) != 1)
+                throw new IllegalArgumentException("alignment must be a power of 2 >= 8");
+            this.compressedOops = compressedOops;
+            this.compressedClassPointers = compressedClassPointers;
+            this.compactHeaders = compactHeaders;
+            this.alignment = alignment;
+            refSize = compressedOops ? 4 : 8;
+            headerSize = compactHeaders ? 8 : (compressedClassPointers ? 12 : 16);
+        }
+
+        /** Ritorna il modello della JVM in esecuzione, le cui opzioni sono
+         * lette tramite {@link HotSpotDiagnosticMXBean}. Se non disponibili,
+         * usa i valori predefiniti di HotSpot a 64 bit con heap inferiore a
+         * 32GB: riferimenti e puntatori alle classi compressi, allineamento 8.
+         * @return il modello della JVM in esecuzione */
+        public static Layout current() {
+            HotSpotDiagnosticMXBean hs = null;
+            try {
+                hs = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            } catch (RuntimeException | LinkageError e) { }
+            return new Layout(option(hs, "UseCompressedOops", "true").equals("true"),
+                    option(hs, "UseCompressedClassPointers", "true").equals("true"),
+                    option(hs, "UseCompactObjectHeaders", "false").equals("true"),
+                    Integer.parseInt(option(hs, "ObjectAlignmentInBytes", "8")));
+        }
+
+        /** @return true se i riferimenti sono compressi */
+        public boolean compressedOops() { return compressedOops; }
+
+        /** @return true se i puntatori alle classi sono compressi */
+        public boolean compressedClassPointers() { return compressedClassPointers; }
+
+        /** @return true se le intestazioni sono compatte */
+        public boolean compactHeaders() { return compactHeaders; }
+
+        /** @return l'allineamento degli oggetti in byte */
+        public int alignment() { return alignment; }
+
+        /** @return la dimensione di un riferimento in byte */
+        public int refSize() { return refSize; }
+
+        /** @return la dimensione dell'intestazione di un oggetto in byte */
+        public int headerSize() { return headerSize; }
+
+        /** Ritorna la dimensione in byte di un campo o elemento del tipo dato.
+         * @param type  un tipo primitivo o riferimento
+         * @return la dimensione in byte di un valore del tipo */
+        public int sizeOf(Class<?> type) {
+            return type.isPrimitive() ? (int)primitive(type) : refSize;
+        }
+
+        /** Ritorna la posizione in byte del primo elemento di un array.
+         * @param componentType  il tipo degli elementi
+         * @return la posizione in byte del primo elemento */
+        public int arrayBaseOffset(Class<?> componentType) {
+            int len = headerSize + 4;         // Dopo il campo length
+            return compactHeaders ? alignUp(len, sizeOf(componentType)) : alignUp(len, 8);
+        }
+
+        /** Ritorna la dimensione in byte di un array.
+         * @param componentType  il tipo degli elementi
+         * @param length  il numero di elementi
+         * @return la dimensione in byte dell'array */
+        public long arraySize(Class<?> componentType, int length) {
+            return align(arrayBaseOffset(componentType) + (long)length*sizeOf(componentType));
+        }
+
+        /** Ritorna la dimensione in byte di un oggetto della classe data,
+         * esclusi gli oggetti riferiti dai suoi campi (shallow size).
+         * @param c  una classe che non è un array
+         * @return la dimensione in byte di un oggetto della classe
+         * @throws IllegalArgumentException se c è una classe array, un'interfaccia
+         * o un tipo primitivo */
+        public long shallowSize(Class<?> c) {
+            if (c.isArray() || c.isInterface() || c.isPrimitive())
+                throw new IllegalArgumentException("Not an instance class: "+c.getName());
+            return align(shape(c).end);
+        }
+
+        @Override
+        public String toString() {
+            return "Layout[compressedOops="+compressedOops+",compressedClassPointers="+
+                    compressedClassPointers+",compactHeaders="+compactHeaders+
+                    ",alignment="+alignment+",header="+headerSize+",ref="+refSize+"]";
+        }
+
+
+        /** Le posizioni libere e la fine dei campi di un oggetto di una classe */
+        private static class Shape {
+            Shape(int end, List<int[]> holes) {
+                this.end = end;
+                this.holes = holes;
+            }
+
+            final int end;              // Fine dell'ultimo campo
+            final List<int[]> holes;    // Buchi liberi [inizio, fine) in ordine
+        }
+
+        /** Ritorna la disposizione della classe c, calcolata da quella della
+         * superclasse aggiungendo i campi di c */
+        private Shape shape(Class<?> c) {
+            Shape sh = shapes.get(c);
+            if (sh != null) return sh;
+            Shape sup = c.getSuperclass() == null ? new Shape(headerSize, new ArrayList<>())
+                    : shape(c.getSuperclass());
+            List<int[]> holes = new ArrayList<>();
+            for (int[] h : sup.holes) holes.add(h.clone());
+            int end = sup.end;
+            List<Class<?>> prims = new ArrayList<>();
+            int nRefs = 0;
+            for (Field f : c.getDeclaredFields()) {
+                if (Modifier.isStatic(f.getModifiers())) continue;
+                if (f.getType().isPrimitive()) prims.add(f.getType());
+                else nRefs++;
+            }
+            prims.sort((a, b) -> Long.compare(primitive(b), primitive(a)));
+            for (Class<?> t : prims) end = place(holes, end, (int)primitive(t));
+            for (int i = 0 ; i < nRefs ; i++) end = place(holes, end, refSize);
+            sh = new Shape(end, holes);
+            Shape prev = shapes.putIfAbsent(c, sh);
+            return prev != null ? prev : sh;
+        }
+
+        /** Dispone un campo di dimensione size nel primo buco sufficiente o
+         * alla fine e ritorna la nuova fine */
+        private static int place(List<int[]> holes, int end, int size) {
+            for (int i = 0 ; i < holes.size() ; i++) {
+                int[] h = holes.get(i);
+                int a = alignUp(h[0], size);
+                if (a + size > h[1]) continue;
+                holes.remove(i);              // Divide il buco
+                if (a + size < h[1]) holes.add(i, new int[] {a + size, h[1]});
+                if (h[0] < a) holes.add(i, new int[] {h[0], a});
+                return end;
+            }
+            int a = alignUp(end, size);
+            if (end < a) holes.add(new int[] {end, a});
+            return a + size;
+        }
+
+        private long align(long s) {
+            long r = s % alignment;
+            return r == 0 ? s : s + alignment - r;
+        }
+
+        private static int alignUp(int s, int a) { return (s + a - 1)/a*a; }
+
+        /** Ritorna il valore di un'opzione della JVM o def se non disponibile */
+        private static String option(HotSpotDiagnosticMXBean hs, String name, String def) {
+            if (hs == null) return def;
+            try {
+                return hs.getVMOption(name).getValue();
+            } catch (RuntimeException e) {
+                return def;
+            }
+        }
+
+        private final boolean compressedOops, compressedClassPointers, compactHeaders;
+        private final int alignment, refSize, headerSize;
+        private final Map<Class<?>,Shape> shapes = new ConcurrentHashMap<>();
+    }
+
+    /** Ripartizione per classe del numero e della dimensione degli oggetti */
+    public static class ClassHistogram {
+        /** @return la dimensione totale in byte */
+        public long total() { return total; }
+
+        /** @return il numero totale di oggetti */
+        public long count() { return count; }
+
+        /** @return le classi degli oggetti in ordine di dimensione totale
+         * decrescente */
+        public List<Class<?>> classes() {
+            List<Class<?>> cc = new ArrayList<>(map.keySet());
+            cc.sort((a, b) -> Long.compare(map.get(b)[1], map.get(a)[1]));
+            return cc;
+        }
+
+        /** @param c  una classe
+         * @return il numero di oggetti della classe */
+        public long count(Class<?> c) {
+            long[] v = map.get(c);
+            return v != null ? v[0] : 0;
+        }
+
+        /** @param c  una classe
+         * @return la dimensione totale in byte degli oggetti della classe */
+        public long bytes(Class<?> c) {
+            long[] v = map.get(c);
+            return v != null ? v[1] : 0;
+        }
+
+        /** Ritorna una tabella con le prime 20 classi per dimensione totale */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "%12s %14s %6s  %s%n", "objects", "bytes", "%", "class"));
+            List<Class<?>> cc = classes();
+            for (Class<?> c : cc.subList(0, Math.min(20, cc.size())))
+                sb.append(String.format(Locale.ROOT, "%12d %14d %6.2f  %s%n", count(c), bytes(c),
+                        100.0*bytes(c)/Math.max(1, total), c.getTypeName()));
+            sb.append(String.format(Locale.ROOT, "%12d %14d         Total", count, total));
+            return sb.toString();
+        }
+
+
+        void add(Class<?> c, long size) {
+            long[] v = map.computeIfAbsent(c, k -> new long[2]);
+            v[0]++;
+            v[1] += size;
+            count++;
+            total += size;
+        }
+
+        private final Map<Class<?>,long[]> map = new HashMap<>();
+        private long count, total;
+    }
+
+    /** Come {@link ObjSize#estimate(Object)} ma esegue la visita in parallelo
+     * con il pool comune {@link ForkJoinPool#commonPool()}.
+     * @param o  un oggetto
+     * @return una stima della dimensione in byte dell'oggetto specificato */
+    public static long estimateParallel(Object o) {
+        return estimate(o, ForkJoinPool.commonPool());
+    }
+
+    /** Come {@link ObjSize#estimate(Object)} ma esegue la visita in parallelo
+     * con task del pool specificato.
+     * @param o  un oggetto
+     * @param pool  il pool che esegue i task
+     * @return una stima della dimensione in byte dell'oggetto specificato */
+    public static long estimate(Object o, ForkJoinPool pool) {
+        if (o == null) return 0;
+        ConcurrentMarks marks = new ConcurrentMarks();
+        marks.mark(o);
+        return pool.invoke(new VisitTask(marks, new Object[] {o}, 0, 1));
+    }
+
+
+    /** Visita sequenzialmente gli oggetti raggiungibili da o e ne ritorna la
+     * dimensione totale, registrandola nell'istogramma h se non null */
+    private static long walk(Object o, ClassHistogram h) {
+        if (o == null) return 0;
         // Per registrare gli oggetti la cui dimensione è stata già conteggiata
-        IdentityHashMap<Object,Void> counted = new IdentityHashMap<>();
-        class Size {
-            long compute(Object o) {  // Ritorna la dimensione dell'oggetto o
-                if (o == null || counted.containsKey(o))  // Se è già stato
-                    return 0;            // conteggiato, non lo riconteggia
-                long size = 0;
-                counted.put(o,null);     // Lo aggiunge agli oggetti conteggiati
-                Class<?> c = o.getClass();   // La classe dell'oggetto
-                if (c.isArray()) {           // Se è un array
-                    // Addiziona la dimensione di Object e del campo length
-                    size += align(OBJ_SIZE+primitive(int.class));
-                    int len = Array.getLength(o);        // Ottiene la lunghezza e
-                    Class<?> cc = c.getComponentType();  // il tipo delle componenti
-                    if (cc.isPrimitive()) {  // Se il tipo delle componenti è primitivo
-                        // Addiziona le dimensioni degli elementi
-                        size += align(len*primitive(cc));
-                    } else {          // Se il tipo delle componenti è riferimento
-                        // Addiziona le dimensioni delle componenti riferimento
-                        size += align(len*REF_SIZE);
-                        // Per ogni elemento calcola (ricorsivamente) la dimensione
-                        for (int i = 0 ; i < len ; i++) // e l'addiziona
-                            size += new Size().compute(Array.get(o, i));
-                    }
-                } else {                     // Se non è un array
-                    CInfo ci = getCInfo(c);  // L'info della classe
-                    size += ci.size;         // Addiziona la dimensione del guscio
-                    for (Field f : ci.refFields)  // Per ogni campo riferimento
-                        try {     // addiziona la dimensione del valore calcolandolo
-                            size += new Size().compute(f.get(o));  // ricorsivamente
-                        } catch (IllegalAccessException e) {}
+        IdentityHashMap<Object,Boolean> counted = new IdentityHashMap<>();
+        Marks marks = x -> counted.put(x, Boolean.TRUE) == null;
+        ArrayDeque<Object> stack = new ArrayDeque<>();   // Oggetti da visitare
+        marks.mark(o);
+        stack.push(o);
+        long size = 0;
+        while (!stack.isEmpty()) {
+            Object x = stack.pop();
+            long s = visit(x, stack, marks);
+            if (h != null) h.add(x.getClass(), s);
+            size += s;
+        }
+        return size;
+    }
+
+    /** Registra gli oggetti già conteggiati */
+    private interface Marks {
+        /** Registra l'oggetto e ritorna true se non era già registrato */
+        boolean mark(Object x);
+    }
+
+    /** Insieme di oggetti thread-safe suddiviso in strisce, ognuna con il
+     * proprio lock, scelte in base all'identity hash code */
+    private static class ConcurrentMarks implements Marks {
+        @SuppressWarnings("unchecked")
+        ConcurrentMarks() {
+            stripes = (IdentityHashMap<Object,Boolean>[])new IdentityHashMap<?,?>[STRIPES];
+            for (int i = 0 ; i < STRIPES ; i++) stripes[i] = new IdentityHashMap<>();
+        }
+
+        @Override
+        public boolean mark(Object x) {
+            int h = System.identityHashCode(x);
+            IdentityHashMap<Object,Boolean> s = stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+            synchronized (s) {
+                return s.put(x, Boolean.TRUE) == null;
+            }
+        }
+
+        private static final int STRIPES = 256;
+        private final IdentityHashMap<Object,Boolean>[] stripes;
+    }
+
+    /** Task che visita gli oggetti a[lo, hi), già registrati se a è una lista
+     * di oggetti da visitare, non ancora registrati se a è parte di un array */
+    private static class VisitTask extends RecursiveTask<Long> {
+        VisitTask(ConcurrentMarks marks, Object[] a, int lo, int hi) {
+            this(marks, a, lo, hi, false);
+        }
+
+        VisitTask(ConcurrentMarks marks, Object[] a, int lo, int hi, boolean slice) {
+            this.marks = marks;
+            this.a = a;
+            this.lo = lo;
+            this.hi = hi;
+            this.slice = slice;
+        }
+
+        @Override
+        protected Long compute() {
+            ArrayDeque<Object> stack = new ArrayDeque<>();
+            List<ForkJoinTask<Long>> forked = new ArrayList<>();
+            for (int i = lo ; i < hi ; i++) {
+                Object x = a[i];
+                if (x != null && (!slice || marks.mark(x))) stack.push(x);
+            }
+            long size = 0;
+            while (!stack.isEmpty()) {
+                Object x = stack.pop();
+                if (x instanceof Object[] && ((Object[])x).length > SPLIT) {
+                    Object[] arr = (Object[])x;    // Array grande, lo suddivide
+                    size += LAYOUT.arraySize(arr.getClass().getComponentType(), arr.length);
+                    for (int j = 0 ; j < arr.length ; j += SPLIT)
+                        forked.add(new VisitTask(marks, arr, j, Math.min(arr.length, j + SPLIT), true).fork());
+                    continue;
+                }
+                size += visit(x, stack, marks);
+                if (stack.size() > DONATE) {     // Cede metà degli oggetti
+                    Object[] half = new Object[stack.size()/2];
+                    for (int j = 0 ; j < half.length ; j++) half[j] = stack.pollLast();
+                    forked.add(new VisitTask(marks, half, 0, half.length).fork());
                 }
-                return size;
             }
+            for (int j = forked.size() - 1 ; j >= 0 ; j--)
+                size += forked.get(j).join();
+            return size;
+        }
+
+        private static final long serialVersionUID = 1L;
+
+        private final ConcurrentMarks marks;
+        private final Object[] a;
+        private final int lo, hi;
+        private final boolean slice;
+    }
+
+    /** Numero di elementi oltre il quale un array è suddiviso tra più task */
+    private static final int SPLIT = 1 << 12;
+    /** Numero di oggetti da visitare oltre il quale un task ne cede metà */
+    private static final int DONATE = 1 << 10;
+
+    /** Ritorna la dimensione dell'oggetto o esclusi i valori dei riferimenti e
+     * aggiunge alla pila i valori dei riferimenti non ancora registrati */
+    private static long visit(Object o, Deque<Object> stack, Marks marks) {
+        Class<?> c = o.getClass();   // La classe dell'oggetto
+        if (c.isArray()) {           // Se è un array
+            Class<?> cc = c.getComponentType();  // Il tipo delle componenti
+            if (cc.isPrimitive())
+                return LAYOUT.arraySize(cc, Array.getLength(o));
+            Object[] a = (Object[])o;    // Legge direttamente gli elementi
+            for (Object x : a)
+                if (x != null && marks.mark(x)) stack.push(x);
+            return LAYOUT.arraySize(cc, a.length);
+        }
+        CInfo ci = C_INFOS.get(c);   // L'info della classe
+        try {
+            for (MethodHandle g : ci.refGetters) {
+                Object x = (Object)g.invokeExact(o);
+                if (x != null && marks.mark(x)) stack.push(x);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
         }
-        return new Size().compute(o);
+        return ci.size;              // La dimensione del guscio
     }
 
     /** Info di una classe. I campi statici sono ignorati */
@@ -60,40 +488,40 @@ public class ObjSize {
          * un oggetto della classe esclusa la dimensione dei valori dei campi
          * di tipo riferimento */
         final long size;
-        /** Lista di tutti i campi di tipo riferimento */
-        final List<Field> refFields;
+        /** I getter, di tipo (Object)Object, di tutti i campi di tipo
+         * riferimento accessibili */
+        final MethodHandle[] refGetters;
 
-        CInfo(long size, List<Field> rFF) {
+        CInfo(long size, MethodHandle[] rGG) {
             this.size = size;
-            refFields = rFF;
+            refGetters = rGG;
         }
     }
 
-    /** Ritorna l'info della classe specificata. Se non è stata già calcolata,
-     * la calcola e prima di ritornarla la registra.
+    /** Calcola l'info della classe specificata a partire da quella della
+     * superclasse.
      * @param c  una classe
-     * @return l'info della classe specificata */
-    private static CInfo getCInfo(Class<?> c) {
-        if (!cInfos.containsKey(c)) {   // Se l'info non è già stata calcolata
-            CInfo supCI = getCInfo(c.getSuperclass()); // Info della superclasse
-            long size = supCI.size;  // La dimensione del guscio comprende quella
-                                     // della superclasse e i campi riferimento
-                                     // comprendono quelli della superclasse
-            List<Field> rFF = new ArrayList<>(supCI.refFields);
-            for (Field f : c.getDeclaredFields()) { // Per ogni campo non statico,
-                if (Modifier.isStatic(f.getModifiers())) continue;
-                Class<?> cf = f.getType();    // ottiene il tipo del campo;
-                if (cf.isPrimitive()) {       // se il tipo è primitivo, addiziona
-                    size += primitive(cf);    // la dimensione a quella del guscio;
-                } else {                      // se non è un tipo primitivo,
-                    f.setAccessible(true);    // permette l'accesso al valore e
-                    size += REF_SIZE;         // addiziona la dimensione del campo
-                    rFF.add(f);               // a quella del guscio e aggiunge il
-                }                             // campo alla lista dei campi.
-            }                                             // Registra l'info
-            cInfos.put(c, new CInfo(align(size), rFF));   // della classe
-        }
-        return cInfos.get(c);
+     * @return l'info della classe specificata
+     * @throws IllegalStateException se un campo riferimento non è accessibile */
+    private static CInfo computeCInfo(Class<?> c) {
+        if (c == Object.class) return new CInfo(LAYOUT.shallowSize(c), new MethodHandle[0]);
+        CInfo supCI = C_INFOS.get(c.getSuperclass()); // Info della superclasse
+        // I campi riferimento comprendono quelli della superclasse
+        List<MethodHandle> rGG = new ArrayList<>(Arrays.asList(supCI.refGetters));
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        for (Field f : c.getDeclaredFields()) { // Per ogni campo riferimento
+            if (Modifier.isStatic(f.getModifiers()) || f.getType().isPrimitive()) continue;
+            try {                         // non statico, il suo getter
+                f.setAccessible(true);
+                rGG.add(lookup.unreflectGetter(f)
+                        .asType(MethodType.methodType(Object.class, Object.class)));
+            } catch (IllegalAccessException | RuntimeException e) {
+                Package p = c.getPackage();
+                throw new IllegalStateException("Field "+f+" is not accessible" +
+                        (p != null ? ", open package "+p.getName()+" with --add-opens" : ""), e);
+            }
+        }
+        return new CInfo(LAYOUT.shallowSize(c), rGG.toArray(new MethodHandle[0]));
     }
 
     /** Ritorna la dimensione in byte del tipo primitivo specificato.
@@ -111,24 +539,12 @@ public class ObjSize {
         else throw new IllegalArgumentException();
     }
 
-    /** Ritorna l'aggiustamento della dimensione specificata rispetto alla
-     * dimensione di allineamento.
-     * @param s  una dimensione in bytes
-     * @return l'aggiustamento della dimensione specificata rispetto alla
-     * dimensione di allineamento */
-    private static long align(long s) {
-        long r = s % ALIGN_SIZE;
-        return r == 0 ? s : s + ALIGN_SIZE - r;
-    }
-
-    private static final long REF_SIZE = 8;   // Dimensione variabile riferimento
-    private static final long ALIGN_SIZE = 8; // Dimensione di allineamento
-    private static final long OBJ_SIZE = 12;  // Dimensione Object (16)
+    /** Il modello della JVM in esecuzione */
+    private static final Layout LAYOUT = Layout.current();
 
-    /** Mappa per registrare le informazioni delle classi ed evitare così di
-     * ricalcolarle più volte. */
-    private static final Map<Class<?>, CInfo> cInfos = new HashMap<>();
-    static {
-        cInfos.put(Object.class,new CInfo(OBJ_SIZE, new ArrayList<>()));
-    }
+    /** Le informazioni delle classi, calcolate una sola volta per classe */
+    private static final ClassValue<CInfo> C_INFOS = new ClassValue<CInfo>() {
+        @Override
+        protected CInfo computeValue(Class<?> type) { return computeCInfo(type); }
+    };
 }
@@ -1,29 +1,69 @@
 package mp.reflect;
 
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 /** Metodi di utilità basati sulla reflection */
 public class Utils {
+    /** Ritorna una stringa con il nome semplice della classe dell'oggetto e i
+     * nomi e i valori dei suoi campi non statici, compresi quelli ereditati a
+     * partire dalla superclasse più in alto, ad esempio
+     * {@code Dirigente[nomeCognome=Ugo Gio,stipendio=1200.0,...,bonus=100.0]}.
+     * I campi non accessibili (ad esempio di classi di moduli non aperti) sono
+     * omessi. Il piano di accesso ai campi di ogni classe, cioè i loro nomi e i
+     * {@link MethodHandle} per leggerli, è calcolato al primo uso e mantenuto in
+     * un {@link ClassValue}, i valori dei campi primitivi sono letti senza
+     * boxing e la stringa è costruita in uno {@link StringBuilder} riusato.
+     * <br>
+     * I valori dei campi sono convertiti con il loro {@code toString()}. Se
+     * questo invoca a sua volta questo metodo, come per i supervisori dei
+     * dipendenti, un oggetto che è già in corso di conversione nello stesso
+     * thread non è convertito di nuovo ma è rappresentato come
+     * {@code NomeClasse@hash}, così i cicli non causano una ricorsione infinita.
+     * @param x  un oggetto o null
+     * @return una stringa che rappresenta l'oggetto */
     public static String toString(Object x) {
-        if (x == null) return ""+x;
-        String s = "";
-        Class<?> c = x.getClass();
-        s += c.getSimpleName();
-        Field[] ff = c.getDeclaredFields();
-        if (ff.length > 0) {
-            s += "[";
-            for (int i = 0 ; i < ff.length ; i++) {
-                ff[i].setAccessible(true);
-                try {
-                    s += (i == 0 ? "" : ",") + ff[i].getName() + "=" + ff[i].get(x);
-                } catch (IllegalAccessException e) {}
-            }
-            s += "]";
+        ToStringState st = TO_STRING.get();
+        if (st.depth > 0) {                   // Invocato dentro un toString
+            StringBuilder sb = new StringBuilder();
+            appendTo(sb, x);
+            return sb.toString();
         }
+        StringBuilder sb = st.sb;
+        sb.setLength(0);
+        appendTo(sb, x);
+        String s = sb.toString();
+        if (sb.capacity() > MAX_REUSED) st.sb = new StringBuilder();
         return s;
     }
 
+    /** Aggiunge allo {@link StringBuilder} la stringa di
+     * {@link Utils#toString(Object)}.
+     * @param sb  dove aggiungere la stringa
+     * @param x  un oggetto o null
+     * @return lo {@link StringBuilder} sb */
+    public static StringBuilder appendTo(StringBuilder sb, Object x) {
+        if (x == null) return sb.append("null");
+        ToStringState st = TO_STRING.get();
+        ToStringPlan plan = PLANS.get(x.getClass());
+        if (st.busy.put(x, Boolean.TRUE) != null) return cycle(sb, x);
+        st.depth++;
+        try {
+            plan.append(sb, x, st.busy);
+        } finally {
+            st.depth--;
+            st.busy.remove(x);
+        }
+        return sb;
+    }
+
     /** Equivalente a {@link Utils#classToString(Class, String)
      * classToString(Class.forName(cName),"")}.
      * @param cName  il nome completo di una classe/interfaccia
@@ -122,4 +162,92 @@ public class Utils {
     }
 
     private static String typeToStr(Type t) { return simple(t.toString()); }
+
+    /** Aggiunge la rappresentazione di un oggetto già in corso di conversione */
+    private static StringBuilder cycle(StringBuilder sb, Object x) {
+        return sb.append(PLANS.get(x.getClass()).name).append('@')
+                .append(Integer.toHexString(System.identityHashCode(x)));
+    }
+
+    /** Il piano per convertire in stringa gli oggetti di una classe */
+    private static class ToStringPlan {
+        ToStringPlan(Class<?> c) {
+            name = c.getSimpleName();
+            List<Class<?>> hier = new ArrayList<>();
+            for (Class<?> k = c ; k != null && k != Object.class ; k = k.getSuperclass())
+                hier.add(0, k);
+            List<String> pp = new ArrayList<>();
+            List<MethodHandle> gg = new ArrayList<>();
+            List<Class<?>> tt = new ArrayList<>();
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            for (Class<?> k : hier)
+                for (Field f : k.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers()) || f.isSynthetic()) continue;
+                    MethodHandle g;
+                    try {
+                        f.setAccessible(true);
+                        g = lookup.unreflectGetter(f);
+                    } catch (IllegalAccessException | RuntimeException e) {
+                        continue;             // Campo non accessibile, omesso
+                    }
+                    Class<?> t = f.getType().isPrimitive() ? f.getType() : Object.class;
+                    gg.add(g.asType(MethodType.methodType(t, Object.class)));
+                    tt.add(t);
+                    pp.add((pp.isEmpty() ? "[" : ",") + f.getName() + "=");
+                }
+            prefixes = pp.toArray(new String[0]);
+            getters = gg.toArray(new MethodHandle[0]);
+            types = tt.toArray(new Class<?>[0]);
+        }
+
+        void append(StringBuilder sb, Object x, Map<Object,Boolean> busy) {
+            sb.append(name);
+            try {
+                for (int i = 0 ; i < getters.length ; i++) {
+                    sb.append(prefixes[i]);
+                    MethodHandle g = getters[i];
+                    Class<?> t = types[i];
+                    if (t == Object.class) {
+                        Object v = (Object)g.invokeExact(x);
+                        if (v instanceof String) sb.append((String)v);
+                        else if (v != null && busy.containsKey(v)) cycle(sb, v);
+                        else sb.append(v);
+                    }
+                    else if (t == int.class) sb.append((int)g.invokeExact(x));
+                    else if (t == long.class) sb.append((long)g.invokeExact(x));
+                    else if (t == double.class) sb.append((double)g.invokeExact(x));
+                    else if (t == boolean.class) sb.append((boolean)g.invokeExact(x));
+                    else if (t == char.class) sb.append((char)g.invokeExact(x));
+                    else if (t == float.class) sb.append((float)g.invokeExact(x));
+                    else if (t == byte.class) sb.append((byte)g.invokeExact(x));
+                    else sb.append((short)g.invokeExact(x));
+                }
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+            if (getters.length > 0) sb.append(']');
+        }
+
+        final String name;             // Nome semplice della classe
+        final String[] prefixes;       // Separatore, nome del campo e "="
+        final MethodHandle[] getters;  // Di tipo (Object)T con T primitivo o Object
+        final Class<?>[] types;        // I tipi T dei getters
+    }
+
+    /** Lo stato di {@link Utils#toString(Object)} di un thread */
+    private static class ToStringState {
+        final Map<Object,Boolean> busy = new IdentityHashMap<>();   // In conversione
+        StringBuilder sb = new StringBuilder();   // Riusato al livello più esterno
+        int depth;                                // Livello di annidamento
+    }
+
+    private static final ClassValue<ToStringPlan> PLANS = new ClassValue<ToStringPlan>() {
+        @Override
+        protected ToStringPlan computeValue(Class<?> type) { return new ToStringPlan(type); }
+    };
+    private static final ThreadLocal<ToStringState> TO_STRING = ThreadLocal.withInitial(ToStringState::new);
+    /** Capacità massima dello StringBuilder riusato */
+    private static final int MAX_REUSED = 1 << 16;
 }
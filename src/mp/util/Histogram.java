@@ -0,0 +1,131 @@
+package mp.util;
+
+import java.util.Arrays;
+
+/** Un {@code Histogram} registra valori interi non negativi per calcolarne i
+ * percentili con memoria e tempo di registrazione costanti, come gli istogrammi
+ * HDR (High Dynamic Range). I valori inferiori a 128 hanno ognuno il proprio
+ * intervallo (bucket), gli altri sono raggruppati in intervalli la cui ampiezza
+ * raddoppia ad ogni potenza di 2, 64 intervalli per ogni potenza. Così l'errore
+ * relativo di un percentile è inferiore a 1/64 (circa 1,6%) qualunque sia
+ * l'ordine di grandezza dei valori. I valori superiori al massimo specificato alla creazione
+ * sono registrati come se fossero uguali al massimo.
+ * <br>
+ * Per ottenere percentili su finestre di tempo scorrevoli si possono mantenere
+ * più istogrammi, uno per ogni sotto-intervallo della finestra, e sommarli con
+ * {@link Histogram#add(Histogram)}. Non è thread-safe. */
+public class Histogram {
+    /** Crea un istogramma vuoto per valori fino al massimo specificato.
+     * @param highest  il massimo valore registrabile
+     * @throws IllegalArgumentException se {@code highest} < 1 */
+    public Histogram(long highest) {
+        if (highest < 1) throw new IllegalArgumentException("highest must be >= 1");
+        this.highest = highest;
+        counts = new long[index(highest) + 1];
+        clear();
+    }
+
+    /** Registra un valore.
+     * @param v  il valore
+     * @throws IllegalArgumentException se {@code v} < 0 */
+    public void record(long v) { record(v, 1); }
+
+    /** Registra n volte un valore.
+     * @param v  il valore
+     * @param n  il numero di volte
+     * @throws IllegalArgumentException se {@code v} < 0 o {@code n} < 0 */
+    public void record(long v, long n) {
+        if (v < 0) throw new IllegalArgumentException("Value must be >= 0");
+        if (n < 0) throw new IllegalArgumentException("n must be >= 0");
+        if (n == 0) return;
+        if (v > highest) v = highest;
+        counts[index(v)] += n;
+        count += n;
+        sum += v*(double)n;
+        if (v < min) min = v;
+        if (v > max) max = v;
+    }
+
+    /** Aggiunge a questo istogramma i valori registrati nell'istogramma dato.
+     * @param h  un istogramma con lo stesso massimo
+     * @throws IllegalArgumentException se il massimo dei due istogrammi è diverso */
+    public void add(Histogram h) {
+        if (h.highest != highest)
+            throw new IllegalArgumentException("Histograms must have the same highest value");
+        for (int i = 0 ; i < counts.length ; i++)
+            counts[i] += h.counts[i];
+        count += h.count;
+        sum += h.sum;
+        if (h.min < min) min = h.min;
+        if (h.max > max) max = h.max;
+    }
+
+    /** Rimuove tutti i valori registrati */
+    public void clear() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = -1;
+    }
+
+    /** @return il numero di valori registrati */
+    public long count() { return count; }
+
+    /** @return il minimo valore registrato, -1 se vuoto */
+    public long min() { return count > 0 ? min : -1; }
+
+    /** @return il massimo valore registrato, -1 se vuoto */
+    public long max() { return max; }
+
+    /** @return la media dei valori registrati, 0 se vuoto */
+    public double mean() { return count > 0 ? sum/count : 0; }
+
+    /** Ritorna il valore del percentile p, cioè il massimo valore equivalente
+     * (nello stesso intervallo) al minimo valore registrato che è maggiore o
+     * uguale ad almeno il p% dei valori registrati.
+     * @param p  il percentile, tra 0 e 100
+     * @return il valore del percentile, -1 se vuoto
+     * @throws IllegalArgumentException se p non è tra 0 e 100 */
+    public long percentile(double p) {
+        if (!(p >= 0 && p <= 100)) throw new IllegalArgumentException("p must be in [0, 100]");
+        if (count == 0) return -1;
+        long rank = Math.max(1, (long)Math.ceil(p/100*count)), c = 0;
+        for (int i = 0 ; i < counts.length ; i++) {
+            c += counts[i];
+            if (c >= rank) return Math.max(min, Math.min(max, highestEquivalent(i)));
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n %d  mean %.1f  p50 %d  p90 %d  p99 %d  p99.9 %d  max %d",
+                count, mean(), percentile(50), percentile(90), percentile(99),
+                percentile(99.9), max);
+    }
+
+
+    /** Ritorna l'indice dell'intervallo del valore v */
+    private static int index(long v) {
+        if (v < LINEAR) return (int)v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift << SUB_BITS) + (int)(v >>> shift);
+    }
+
+    /** Ritorna il massimo valore dell'intervallo di indice i */
+    private static long highestEquivalent(int i) {
+        if (i < LINEAR) return i;
+        int shift = (i >>> SUB_BITS) - 1;
+        long lo = (long)(i - (shift << SUB_BITS)) << shift;
+        return lo + (1L << shift) - 1;
+    }
+
+    private static final int SUB_BITS = 6;               // 64 intervalli per potenza di 2
+    private static final int LINEAR = 2 << SUB_BITS;     // Valori con il proprio intervallo
+
+    private final long highest;
+    private final long[] counts;    // Numero di valori registrati in ogni intervallo
+    private long count, min, max;
+    private double sum;
+}
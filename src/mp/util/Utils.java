@@ -89,6 +89,14 @@ public class Utils {
         return d >= n || n % d != 0;
     }
 
+    /** Come {@link Utils#prime(long)} ma molto più veloce per test ripetuti e
+     * per numeri grandi (vedi {@link mp.concur.Primes#isPrime(long)}).
+     * @param n un intero
+     * @return true se n è primo */
+    public static boolean primeFast(long n) {
+        return mp.concur.Primes.isPrime(n);
+    }
+
     /** Costanti che specificano i diversi tipi di allineamento. */
     public static enum Align {
         LEFT, RIGHT, CENTER, CENTRE
@@ -144,36 +152,101 @@ public class Utils {
     }
 
     /** Ritorna l'insieme delle sotto-stringhe di una data stringa che hanno una
-     * data lunghezza e sono composte solamente da lettere.
+     * data lunghezza e sono composte solamente da lettere. La stringa è
+     * scandita una sola volta (vedi
+     * {@link Utils#subwordsCount(String, int[], WordCounter[])}).
      * @param s  una stringa
      * @param len  lunghezza delle sotto-stringhe
-     * @return l'insieme delle sotto-stringhe */
+     * @return l'insieme delle sotto-stringhe
+     * @throws IllegalArgumentException se len < 1 */
     public static Set<String> subwords(String s, int len) {
-        Set<String> subSet = new HashSet<>();
-        for (int i = 0 ; i <= s.length() - len ; i++) {
-            String sub = s.substring(i, i + len);
-            if (isWord(sub)) subSet.add(sub);
-        }
+        WordCounter wc = new WordCounter();
+        subwordsCount(s, len, wc);
+        Set<String> subSet = new HashSet<>(wc.size()*4/3 + 1);
+        wc.forEach((w, n) -> subSet.add(w));
         return subSet;
     }
 
     /** Ritorna una mappa che ad ogni sotto-stringa di lettere della stringa data e
-     * della lunghezza specificata associa il numero di occorrenze.
+     * della lunghezza specificata associa il numero di occorrenze. La stringa è
+     * scandita una sola volta (vedi
+     * {@link Utils#subwordsCount(String, int[], WordCounter[])}).
      * @param s  una stringa
      * @param len  lunghezza delle sotto-stringhe
-     * @return  mappa che conta le occorrenze delle sotto-stringhe */
+     * @return  mappa che conta le occorrenze delle sotto-stringhe
+     * @throws IllegalArgumentException se len < 1 */
     public static Map<String,Integer> subwordsCount(String s, int len) {
-        Map<String, Integer> count = new HashMap<>();
-        for (int i = 0 ; i <= s.length() - len ; i++) {
-            String sub = s.substring(i, i + len);
-            if (isWord(sub)) {
-                if (count.containsKey(sub))
-                    count.put(sub, count.get(sub)+1);
-                else
-                    count.put(sub, 1);
+        WordCounter wc = new WordCounter();
+        subwordsCount(s, len, wc);
+        return wc.toMap();
+    }
+
+    /** Come {@link Utils#subwordsCount(String, int)} ma conteggia le occorrenze
+     * delle sotto-stringhe nel contatore dato senza creare una stringa per ogni
+     * sotto-stringa.
+     * @param s  una stringa
+     * @param len  lunghezza delle sotto-stringhe
+     * @param wc  il contatore in cui sono conteggiate le sotto-stringhe */
+    public static void subwordsCount(String s, int len, WordCounter wc) {
+        subwordsCount(s, new int[] {len}, new WordCounter[] {wc});
+    }
+
+    /** Ritorna, per ognuna delle lunghezze date, un contatore delle occorrenze
+     * delle sotto-stringhe di lettere della stringa data che hanno quella
+     * lunghezza. La stringa è scandita una sola volta (vedi
+     * {@link Utils#subwordsCount(String, int[], WordCounter[])}).
+     * @param s  una stringa
+     * @param lens  le lunghezze delle sotto-stringhe
+     * @return  i contatori, uno per ogni lunghezza e nello stesso ordine */
+    public static WordCounter[] subwordsCount(String s, int...lens) {
+        WordCounter[] wcs = new WordCounter[lens.length];
+        for (int k = 0 ; k < lens.length ; k++)
+            wcs[k] = new WordCounter();
+        subwordsCount(s, lens, wcs);
+        return wcs;
+    }
+
+    /** Conteggia, per ognuna delle lunghezze date, le occorrenze delle
+     * sotto-stringhe di lettere della stringa data che hanno quella lunghezza.
+     * La stringa è scandita una sola volta mantenendo la lunghezza della
+     * sequenza di lettere che termina nella posizione corrente e l'hash
+     * (lo stesso di {@link String#hashCode()}) dei prefissi. L'hash di una
+     * finestra è così ottenuto con una sottrazione (<i>rolling hash</i>) e
+     * nessuna sotto-stringa è creata, a meno che non sia incontrata per la prima
+     * volta. Gli hash dei prefissi sono mantenuti solamente per le ultime
+     * posizioni in un buffer circolare.
+     * @param s  una stringa
+     * @param lens  le lunghezze delle sotto-stringhe, ognuna >= 1
+     * @param wcs  i contatori, uno per ogni lunghezza e nello stesso ordine
+     * @throws IllegalArgumentException se una lunghezza è < 1 o il numero di
+     * lunghezze è diverso dal numero di contatori */
+    public static void subwordsCount(String s, int[] lens, WordCounter[] wcs) {
+        if (lens.length != wcs.length)
+            throw new IllegalArgumentException("lens and counters must have the same length");
+        int maxLen = 0;
+        for (int len : lens) {
+            if (len < 1) throw new IllegalArgumentException("Length must be >= 1");
+            maxLen = Math.max(maxLen, len);
+        }
+        int[] pow = new int[lens.length];   // 31^len per ogni lunghezza
+        for (int k = 0 ; k < lens.length ; k++) {
+            pow[k] = 1;
+            for (int j = 0 ; j < lens[k] ; j++) pow[k] *= 31;
+        }
+        int size = Integer.highestOneBit(maxLen)*2, mask = size - 1;
+        int[] prefix = new int[size];  // prefix[j & mask] = hash di s[0..j)
+        int run = 0, h = 0;            // Lettere consecutive e hash del prefisso
+        for (int i = 0 ; i < s.length() ; i++) {
+            char c = s.charAt(i);
+            run = Character.isLetter(c) ? run + 1 : 0;
+            h = 31*h + c;
+            prefix[(i + 1) & mask] = h;
+            for (int k = 0 ; k < lens.length ; k++) {
+                int len = lens[k];
+                if (run >= len)        // La finestra [i+1-len, i+1) è di sole lettere
+                    wcs[k].add(s, i + 1 - len, i + 1, h - prefix[(i + 1 - len) & mask]*pow[k]);
             }
         }
-        return count;
     }
 
     /** Ritorna una mappa che contiene un campione random della mappa data.
@@ -225,6 +298,7 @@ public class Utils {
         //test_readDistinct();
         //test_subwords();
         //test_subwordsCount();
+        //test_subwordsCountBulk();
     }
 
     /**
@@ -301,4 +375,14 @@ public class Utils {
         int len = input.nextInt();
         out.println(subwordsCount(line, len));
     }
+
+    private static void test_subwordsCountBulk() {
+        Scanner input = new Scanner(System.in);
+        out.print("Test metodo subwordsCount() per più lunghezze, digita una linea di testo: ");
+        String line = input.nextLine();
+        int[] lens = {1, 2, 3, 4, 5};
+        WordCounter[] wcs = subwordsCount(line, lens);
+        for (int k = 0 ; k < lens.length ; k++)
+            out.println(lens[k]+": "+wcs[k]);
+    }
 }
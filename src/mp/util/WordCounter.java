@@ -0,0 +1,253 @@
+package mp.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.ObjIntConsumer;
+
+/** Un {@code WordCounter} conta le occorrenze di stringhe (parole). A differenza
+ * di una {@code Map<String,Integer>} non crea un oggetto {@link Integer} ad ogni
+ * incremento né un oggetto per ogni associazione: le chiavi, i conteggi e gli
+ * hash delle chiavi sono mantenuti in tre array paralleli e le collisioni sono
+ * risolte con l'indirizzamento aperto (scansione lineare). Inoltre una parola
+ * può essere conteggiata direttamente da una porzione di un array di
+ * caratteri, di un array di byte (un carattere per byte, come ISO-8859-1) o di
+ * una {@link CharSequence}: la stringa è creata solamente la prima volta che la
+ * parola è incontrata.
+ * <br>
+ * L'hash di una parola è lo stesso di {@link String#hashCode()}. Per semplicità
+ * le chiavi non possono essere rimosse. Non è thread-safe. */
+public class WordCounter {
+    /** Crea un contatore vuoto */
+    public WordCounter() { this(16); }
+
+    /** Crea un contatore vuoto con spazio per il numero di parole specificato.
+     * @param expected  numero atteso di parole distinte
+     * @throws IllegalArgumentException se expected è maggiore del massimo
+     * numero di parole distinte, circa 6.4e8 */
+    public WordCounter(int expected) {
+        if (expected > MAX_CAPACITY*LOAD)
+            throw new IllegalArgumentException("Too many expected words: "+expected);
+        int cap = 16;
+        while (cap*LOAD < expected) cap *= 2;
+        init(cap);
+    }
+
+    /** Incrementa di uno il conteggio della parola data.
+     * @param w  una parola
+     * @return il nuovo conteggio della parola
+     * @throws NullPointerException se {@code w} è {@code null} */
+    public int add(String w) { return add(w, 1); }
+
+    /** Incrementa di n il conteggio della parola data.
+     * @param w  una parola
+     * @param n  l'incremento
+     * @return il nuovo conteggio della parola
+     * @throws NullPointerException se {@code w} è {@code null} */
+    public int add(String w, int n) {
+        Objects.requireNonNull(w, "Word cannot be null");
+        int h = w.hashCode();
+        int i = find(h, w, 0, w.length());
+        if (keys[i] == null) return insert(i, h, w, n);
+        return counts[i] += n;
+    }
+
+    /** Incrementa di uno il conteggio della parola formata dai caratteri di
+     * {@code s} dall'indice {@code start} (incluso) all'indice {@code end}
+     * (escluso). Equivale a {@code add(s.subSequence(start, end).toString())}
+     * ma la stringa è creata solo se la parola è nuova.
+     * @param s  una sequenza di caratteri
+     * @param start  indice iniziale, incluso
+     * @param end  indice finale, escluso
+     * @return il nuovo conteggio della parola */
+    public int add(CharSequence s, int start, int end) {
+        int h = 0;
+        for (int j = start ; j < end ; j++)
+            h = 31*h + s.charAt(j);
+        return add(s, start, end, h);
+    }
+
+    /** Come {@link WordCounter#add(CharSequence, int, int)} ma l'hash della
+     * parola è dato. Permette di conteggiare parole il cui hash è calcolato in
+     * modo incrementale, ad esempio con un <i>rolling hash</i> su una finestra
+     * che scorre lungo la sequenza.
+     * @param s  una sequenza di caratteri
+     * @param start  indice iniziale, incluso
+     * @param end  indice finale, escluso
+     * @param h  l'hash della parola, deve essere uguale a quello ritornato da
+     *           {@link String#hashCode()} per la stessa parola
+     * @return il nuovo conteggio della parola */
+    public int add(CharSequence s, int start, int end, int h) {
+        int i = find(h, s, start, end);
+        if (keys[i] == null)
+            return insert(i, h, s.subSequence(start, end).toString(), 1);
+        return ++counts[i];
+    }
+
+    /** Incrementa di uno il conteggio della parola formata dai {@code len}
+     * caratteri di {@code a} a partire dall'indice {@code off}. La stringa è
+     * creata solo se la parola è nuova.
+     * @param a  un array di caratteri
+     * @param off  indice del primo carattere
+     * @param len  numero di caratteri
+     * @return il nuovo conteggio della parola */
+    public int add(char[] a, int off, int len) {
+        int h = 0;
+        for (int j = off ; j < off + len ; j++)
+            h = 31*h + a[j];
+        int i = find(h, a, off, len);
+        if (keys[i] == null)
+            return insert(i, h, new String(a, off, len), 1);
+        return ++counts[i];
+    }
+
+    /** Incrementa di uno il conteggio della parola formata dai {@code len} byte
+     * di {@code a} a partire dall'indice {@code off}, ognuno un carattere come
+     * in ISO-8859-1 (quindi anche ASCII). La stringa è creata solo se la parola
+     * è nuova.
+     * @param a  un array di byte
+     * @param off  indice del primo byte
+     * @param len  numero di byte
+     * @return il nuovo conteggio della parola */
+    public int add(byte[] a, int off, int len) {
+        int h = 0;
+        for (int j = off ; j < off + len ; j++)
+            h = 31*h + (a[j] & 0xFF);
+        int i = find(h, a, off, len);
+        if (keys[i] == null)
+            return insert(i, h, new String(a, off, len, StandardCharsets.ISO_8859_1), 1);
+        return ++counts[i];
+    }
+
+    /** Ritorna il conteggio della parola data.
+     * @param w  una parola
+     * @return il conteggio della parola, 0 se non è presente */
+    public int get(String w) {
+        int i = find(w.hashCode(), w, 0, w.length());
+        return keys[i] != null ? counts[i] : 0;
+    }
+
+    /** @return il numero di parole distinte */
+    public int size() { return size; }
+
+    /** Esegue l'azione data per ogni parola e il relativo conteggio.
+     * @param action  l'azione */
+    public void forEach(ObjIntConsumer<String> action) {
+        for (int i = 0 ; i < keys.length ; i++)
+            if (keys[i] != null) action.accept(keys[i], counts[i]);
+    }
+
+    /** Aggiunge a questo contatore i conteggi del contatore dato.
+     * @param wc  un contatore */
+    public void addAll(WordCounter wc) {
+        for (int i = 0 ; i < wc.keys.length ; i++) {
+            String w = wc.keys[i];
+            if (w == null) continue;
+            int j = find(wc.hashes[i], w, 0, w.length());
+            if (keys[j] == null) insert(j, wc.hashes[i], w, wc.counts[i]);
+            else counts[j] += wc.counts[i];
+        }
+    }
+
+    /** @return una nuova mappa con le parole e i relativi conteggi */
+    public Map<String,Integer> toMap() {
+        Map<String,Integer> map = new HashMap<>(size*4/3 + 1);
+        forEach(map::put);
+        return map;
+    }
+
+    @Override
+    public String toString() { return toMap().toString(); }
+
+
+    private void init(int cap) {
+        keys = new String[cap];
+        counts = new int[cap];
+        hashes = new int[cap];
+        mask = cap - 1;
+    }
+
+    /** Ritorna l'indice del primo elemento, a partire da quello dell'hash h, che
+     * è vuoto o che contiene la parola data */
+    private int find(int h, CharSequence s, int start, int end) {
+        int len = end - start;
+        for (int i = spread(h) & mask ; ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if (k == null) return i;
+            if (hashes[i] == h && k.length() == len && regionEquals(k, s, start))
+                return i;
+        }
+    }
+
+    private int find(int h, byte[] a, int off, int len) {
+        for (int i = spread(h) & mask ; ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if (k == null) return i;
+            if (hashes[i] == h && k.length() == len && regionEquals(k, a, off))
+                return i;
+        }
+    }
+
+    private int find(int h, char[] a, int off, int len) {
+        for (int i = spread(h) & mask ; ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if (k == null) return i;
+            if (hashes[i] == h && k.length() == len && regionEquals(k, a, off))
+                return i;
+        }
+    }
+
+    /** Inserisce la parola nell'elemento vuoto di indice i e se necessario
+     * raddoppia la capacità */
+    private int insert(int i, int h, String w, int n) {
+        if (size + 1 > keys.length*LOAD && keys.length >= MAX_CAPACITY)
+            throw new IllegalStateException("Too many words");
+        keys[i] = w;
+        hashes[i] = h;
+        counts[i] = n;
+        if (++size > keys.length*LOAD) {
+            String[] kk = keys;
+            int[] cc = counts, hh = hashes;
+            init(2*kk.length);
+            for (int j = 0 ; j < kk.length ; j++) {
+                if (kk[j] == null) continue;
+                int k = spread(hh[j]) & mask;
+                while (keys[k] != null) k = (k + 1) & mask;
+                keys[k] = kk[j];
+                hashes[k] = hh[j];
+                counts[k] = cc[j];
+            }
+        }
+        return n;
+    }
+
+    private static boolean regionEquals(String k, CharSequence s, int start) {
+        for (int j = 0 ; j < k.length() ; j++)
+            if (k.charAt(j) != s.charAt(start + j)) return false;
+        return true;
+    }
+
+    private static boolean regionEquals(String k, byte[] a, int off) {
+        for (int j = 0 ; j < k.length() ; j++)
+            if (k.charAt(j) != (a[off + j] & 0xFF)) return false;
+        return true;
+    }
+
+    private static boolean regionEquals(String k, char[] a, int off) {
+        for (int j = 0 ; j < k.length() ; j++)
+            if (k.charAt(j) != a[off + j]) return false;
+        return true;
+    }
+
+    /** Mescola i bit alti dell'hash con quelli bassi, come {@link HashMap} */
+    private static int spread(int h) { return h ^ (h >>> 16); }
+
+    private static final double LOAD = 0.6;   // Massimo fattore di carico
+    private static final int MAX_CAPACITY = 1 << 30;   // Massima lunghezza degli array
+
+    private String[] keys;    // Le parole, null se l'elemento è vuoto
+    private int[] counts;     // I conteggi delle parole
+    private int[] hashes;     // Gli hash delle parole
+    private int mask, size;
+}
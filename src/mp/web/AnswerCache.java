@@ -0,0 +1,213 @@
+package mp.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Una cache delle risposte dei servizi web {@link TheLatest}. Le risposte
+ * sono memorizzate per nome del servizio e interrogazione normalizzata (senza
+ * spazi iniziali e finali, con gli spazi consecutivi ridotti ad uno e in
+ * minuscolo) e sono valide per un tempo di vita (TTL) dato. Una risposta
+ * scaduta non è scartata ma rivalidata: la pagina è richiesta con le
+ * intestazioni {@code If-None-Match} e {@code If-Modified-Since} ricavate
+ * dalla risposta precedente e, se il server risponde {@code 304 Not Modified},
+ * la risposta memorizzata è riusata senza scaricare e analizzare la pagina.
+ * <br>
+ * Il numero di risposte memorizzate è limitato: superato il limite è scartata
+ * quella usata meno di recente (LRU). Interrogazioni identiche invocate in
+ * concorrenza sono eseguite una sola volta: i thread che arrivano mentre la
+ * pagina è già in scaricamento ne attendono il risultato. Le interrogazioni
+ * fallite non sono memorizzate. I metodi sono thread-safe. */
+public class AnswerCache {
+    /** Crea una cache con il TTL {@link AnswerCache#DEFAULT_TTL} e al più
+     * {@link AnswerCache#DEFAULT_MAX_ENTRIES} risposte */
+    public AnswerCache() { this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES); }
+
+    /** Crea una cache con il TTL e il massimo numero di risposte dati.
+     * @param ttl  tempo di vita di una risposta in millisecondi
+     * @param maxEntries  massimo numero di risposte memorizzate
+     * @throws IllegalArgumentException se ttl < 0 o maxEntries < 1 */
+    public AnswerCache(long ttl, int maxEntries) {
+        if (ttl < 0) throw new IllegalArgumentException("ttl must be >= 0");
+        if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be >= 1");
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<String,AnswerCache.Entry>(16, 0.75f, true) {
+            @Override       // Qui Entry sarebbe Map.Entry, ereditato dalla mappa
+            protected boolean removeEldestEntry(Map.Entry<String,AnswerCache.Entry> eldest) {
+                if (size() <= AnswerCache.this.maxEntries) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /** Ritorna la risposta all'interrogazione q al servizio web lt, come
+     * {@link TheLatest#get(String)}, usando la cache.
+     * @param lt  il servizio web
+     * @param q  stringa che contiene l'interrogazione
+     * @return la risposta all'interrogazione */
+    public String get(TheLatest lt, String q) {
+        String key = lt.getName()+'\0'+normalize(q);
+        Entry old;
+        synchronized (entries) {
+            old = entries.get(key);
+        }
+        if (old != null && System.nanoTime() - old.expires < 0) {
+            hits.increment();
+            return old.answer;
+        }
+        FutureTask<Entry> task = new FutureTask<>(() -> {
+            Entry e = fetch(lt, q, old);
+            synchronized (entries) {         // Prima di togliere il task da
+                entries.put(key, e);         // inFlight, così nessun thread
+            }                                // scarica di nuovo la pagina
+            return e;
+        });
+        FutureTask<Entry> f = inFlight.putIfAbsent(key, task);
+        if (f == null) {
+            f = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        } else
+            coalesced.increment();
+        try {
+            return f.get().answer;
+        } catch (ExecutionException e) {
+            errors.increment();
+            return lt.error(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return lt.error(e);
+        }
+    }
+
+    /** @return il numero di risposte memorizzate, anche scadute */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /** Elimina tutte le risposte memorizzate. Le statistiche non cambiano. */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /** @return il numero di risposte trovate in cache e ancora valide */
+    public long getHits() { return hits.sum(); }
+
+    /** @return il numero di pagine scaricate e analizzate */
+    public long getMisses() { return misses.sum(); }
+
+    /** @return il numero di risposte scadute rivalidate dal server senza
+     * scaricare la pagina ({@code 304 Not Modified}) */
+    public long getRevalidations() { return revalidations.sum(); }
+
+    /** @return il numero di interrogazioni che hanno atteso il risultato di
+     * un'interrogazione identica già in corso */
+    public long getCoalesced() { return coalesced.sum(); }
+
+    /** @return il numero di risposte scartate per il limite di memoria */
+    public long getEvictions() { return evictions.sum(); }
+
+    /** @return il numero di interrogazioni fallite */
+    public long getErrors() { return errors.sum(); }
+
+    /** @return la frazione di interrogazioni che non hanno scaricato una
+     * pagina (trovate in cache, rivalidate o accodate ad una identica) */
+    public double hitRate() {
+        long saved = getHits() + getRevalidations() + getCoalesced();
+        long total = saved + getMisses() + getErrors();
+        return total > 0 ? (double)saved/total : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "hits=%d misses=%d revalidations=%d coalesced=%d " +
+                "evictions=%d errors=%d size=%d hitRate=%.3f", getHits(), getMisses(),
+                getRevalidations(), getCoalesced(), getEvictions(), getErrors(), size(), hitRate());
+    }
+
+    /** TTL predefinito in millisecondi */
+    public static final long DEFAULT_TTL = 60_000;
+    /** Massimo numero predefinito di risposte memorizzate */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+
+    /** Una risposta memorizzata con i validatori della sua pagina */
+    private static class Entry {
+        Entry(String answer, String etag, String lastModified, long expires) {
+            this.answer = answer;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        final String answer;
+        final String etag, lastModified;    // Null se il server non li invia
+        final long expires;                 // In System.nanoTime()
+    }
+
+    /** Scarica la pagina dell'interrogazione, oppure la rivalida se c'è una
+     * risposta scaduta, e ritorna la nuova risposta da memorizzare */
+    private Entry fetch(TheLatest lt, String q, Entry old) throws IOException {
+        URLConnection urlC = Utils.openConnection(lt.url(q));
+        if (!(urlC instanceof HttpURLConnection))       // Ad es. file:
+            return parse(lt, urlC, null, null);
+        HttpURLConnection http = (HttpURLConnection)urlC;
+        if (old != null) {
+            if (old.etag != null) http.setRequestProperty("If-None-Match", old.etag);
+            if (old.lastModified != null) http.setRequestProperty("If-Modified-Since", old.lastModified);
+        }
+        int status = http.getResponseCode();
+        if (status == HttpURLConnection.HTTP_NOT_MODIFIED && old != null) {
+            revalidations.increment();
+            String etag = http.getHeaderField("ETag"), lm = http.getHeaderField("Last-Modified");
+            return new Entry(old.answer, etag != null ? etag : old.etag,
+                    lm != null ? lm : old.lastModified, System.nanoTime() + ttl);
+        }
+        if (status >= 400) {
+            InputStream err = http.getErrorStream();
+            if (err != null) err.close();
+            throw new IOException("HTTP status "+status);
+        }
+        return parse(lt, http, http.getHeaderField("ETag"), http.getHeaderField("Last-Modified"));
+    }
+
+    /** Scarica e analizza la pagina della connessione urlC */
+    private Entry parse(TheLatest lt, URLConnection urlC, String etag, String lastModified)
+            throws IOException {
+        misses.increment();
+        return new Entry(lt.parse(urlC), etag, lastModified, System.nanoTime() + ttl);
+    }
+
+    /** Ritorna l'interrogazione normalizzata usata nelle chiavi della cache */
+    private static String normalize(String q) {
+        return q.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private final long ttl;             // In nanosecondi
+    private final int maxEntries;
+    /** Le risposte memorizzate in ordine di uso, dalla meno recente */
+    private final LinkedHashMap<String,Entry> entries;
+    /** I task delle interrogazioni in corso */
+    private final ConcurrentHashMap<String,FutureTask<Entry>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(),
+            revalidations = new LongAdder(), coalesced = new LongAdder(),
+            evictions = new LongAdder(), errors = new LongAdder();
+}
@@ -0,0 +1,217 @@
+package mp.web;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/** Un {@code FanOut} esegue molte interrogazioni a servizi web
+ * {@link TheLatest} senza bloccare un thread per ogni interrogazione in
+ * corso. Le richieste sono inviate in modo asincrono tramite un unico
+ * {@link HttpClient}, che mantiene aperte e riusa le connessioni verso ogni
+ * host. Per non sovraccaricare i servizi, il numero di richieste in corso verso
+ * uno stesso host è limitato: le richieste in eccesso attendono in una coda
+ * dell'host e sono inviate man mano che le precedenti terminano.
+ * <br>
+ * I risultati sono disponibili progressivamente, nell'ordine in cui arrivano,
+ * come uno {@link Stream} (vedi {@link FanOut#get(TheLatest[], String...)}). I
+ * metodi sono thread-safe. */
+public class FanOut {
+    /** Il risultato di un'interrogazione ad un servizio web */
+    public static class Result {
+        /** @return il servizio web interrogato */
+        public TheLatest getService() { return service; }
+
+        /** @return l'interrogazione */
+        public String getQuery() { return query; }
+
+        /** @return la risposta, come quella di {@link TheLatest#get(String)} */
+        public String getAnswer() { return answer; }
+
+        /** @return true se l'interrogazione è fallita */
+        public boolean isError() { return error; }
+
+        /** @return il tempo in millisecondi dall'invio della richiesta alla
+         * risposta, esclusa l'attesa nella coda dell'host */
+        public long getMillis() { return millis; }
+
+        @Override
+        public String toString() { return query+"  "+answer+"  ("+millis+" ms)"; }
+
+
+        private Result(TheLatest service, String query, String answer, boolean error, long millis) {
+            this.service = service;
+            this.query = query;
+            this.answer = answer;
+            this.error = error;
+            this.millis = millis;
+        }
+
+        private final TheLatest service;
+        private final String query, answer;
+        private final boolean error;
+        private final long millis;
+    }
+
+    /** Crea un {@code FanOut} con al più {@link FanOut#DEFAULT_PER_HOST}
+     * richieste in corso per host */
+    public FanOut() { this(DEFAULT_PER_HOST); }
+
+    /** Crea un {@code FanOut} con il limite di richieste per host dato.
+     * @param perHost  massimo numero di richieste in corso verso uno stesso host
+     * @throws IllegalArgumentException se perHost < 1 */
+    public FanOut(int perHost) {
+        if (perHost < 1) throw new IllegalArgumentException("perHost must be >= 1");
+        this.perHost = perHost;
+        client = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+                .build();
+    }
+
+    /** Inizia tutte le interrogazioni qq ai servizi web lts e ritorna lo
+     * {@link Stream} dei loro risultati, nell'ordine in cui arrivano. Lo stream
+     * ha {@code lts.length*qq.length} elementi: un'operazione terminale
+     * attende i risultati che non sono ancora arrivati. Chiudendo lo stream
+     * le richieste non ancora inviate sono annullate.
+     * @param lts  i servizi web da interrogare
+     * @param qq  le interrogazioni
+     * @return lo stream dei risultati */
+    public Stream<Result> get(TheLatest[] lts, String...qq) {
+        int n = lts.length*qq.length;
+        BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+        boolean[] closed = {false};
+        for (String q : qq)
+            for (TheLatest lt : lts)
+                submit(lt, q, results::add, closed);
+        return Utils.stream(results, n).onClose(() -> {
+            synchronized (this) {
+                closed[0] = true;
+            }
+        });
+    }
+
+    /** Inizia l'interrogazione q al servizio web lt e passa il risultato a
+     * done, invocato da un thread dell'{@link HttpClient}.
+     * @param lt  il servizio web
+     * @param q  l'interrogazione
+     * @param done  riceve il risultato */
+    public void submit(TheLatest lt, String q, Consumer<Result> done) {
+        submit(lt, q, done, new boolean[] {false});
+    }
+
+    /** @return il numero di richieste in corso */
+    public synchronized int inFlight() {
+        int n = 0;
+        for (Host h : hosts.values()) n += h.inFlight;
+        return n;
+    }
+
+    /** Massimo numero predefinito di richieste in corso verso uno stesso host */
+    public static final int DEFAULT_PER_HOST = 6;
+
+
+    /** Le richieste in corso e in attesa verso un host */
+    private static class Host {
+        int inFlight;
+        final ArrayDeque<Waiting> waiting = new ArrayDeque<>();
+    }
+
+    /** Una richiesta in attesa e il flag di chiusura del suo stream */
+    private static class Waiting {
+        Waiting(Runnable send, boolean[] closed) {
+            this.send = send;
+            this.closed = closed;
+        }
+
+        final Runnable send;
+        final boolean[] closed;
+    }
+
+    private void submit(TheLatest lt, String q, Consumer<Result> done, boolean[] closed) {
+        URI uri;
+        try {
+            uri = URI.create(lt.url(q));
+        } catch (IllegalArgumentException e) {
+            done.accept(new Result(lt, q, lt.error(e), true, 0));
+            return;
+        }
+        String key = uri.getScheme()+"://"+uri.getHost()+":"+uri.getPort();
+        Runnable send = () -> send(lt, q, uri, key, done);
+        synchronized (this) {
+            Host h = hosts.computeIfAbsent(key, k -> new Host());
+            if (h.inFlight >= perHost) {
+                h.waiting.add(new Waiting(send, closed));
+                return;
+            }
+            h.inFlight++;
+        }
+        send.run();
+    }
+
+    /** Invia la richiesta, per cui è già stato riservato un posto nell'host */
+    private void send(TheLatest lt, String q, URI uri, String key, Consumer<Result> done) {
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<byte[]>> cf;
+        try {
+            cf = client.sendAsync(Utils.newRequest(uri, REQUEST_TIMEOUT),
+                    HttpResponse.BodyHandlers.ofByteArray());
+        } catch (RuntimeException e) {      // Ad es. URL non HTTP
+            cf = new CompletableFuture<>();
+            cf.completeExceptionally(e);
+        }
+        cf.handle((resp, ex) -> {
+            long millis = (System.nanoTime() - start)/1_000_000;
+            release(key);
+            Result r;
+            if (ex != null) {
+                Throwable c = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                r = new Result(lt, q, lt.error(c), true, millis);
+            } else if (resp.statusCode() >= 400) {
+                r = new Result(lt, q, lt.error(new IOException("HTTP status "+resp.statusCode())), true, millis);
+            } else {
+                String answer;
+                boolean error = false;
+                try {
+                    answer = lt.parse(new String(resp.body(), lt.getCharset()));
+                } catch (RuntimeException e) {
+                    answer = lt.error(e);
+                    error = true;
+                }
+                r = new Result(lt, q, answer, error, millis);
+            }
+            done.accept(r);
+            return null;
+        });
+    }
+
+    /** Libera il posto di una richiesta terminata e invia la prossima in
+     * attesa verso lo stesso host, scartando quelle di stream chiusi */
+    private void release(String key) {
+        Waiting next;
+        synchronized (this) {
+            Host h = hosts.get(key);
+            do {
+                next = h.waiting.poll();
+            } while (next != null && next.closed[0]);
+            if (next == null) h.inFlight--;     // Altrimenti il posto passa a next
+        }
+        if (next != null) next.send.run();
+    }
+
+    private static final long CONNECT_TIMEOUT = 5000, REQUEST_TIMEOUT = 10000;
+
+    private final int perHost;
+    private final HttpClient client;
+    private final Map<String,Host> hosts = new HashMap<>();
+}
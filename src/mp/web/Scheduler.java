@@ -0,0 +1,492 @@
+package mp.web;
+
+import mp.util.Histogram;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/** Uno {@code Scheduler} esegue interrogazioni a servizi web {@link TheLatest}
+ * in modo asincrono, come un {@link FanOut}, proteggendosi dai servizi lenti o
+ * guasti. Per ogni servizio (identificato dal nome):
+ * <ul>
+ *     <li>il numero di richieste in corso è limitato, le richieste in eccesso
+ *     attendono in una coda del servizio;</li>
+ *     <li>le latenze delle risposte recenti sono registrate in istogrammi
+ *     ({@link Histogram}). Il timeout di una richiesta è un multiplo del 99°
+ *     percentile e, se una richiesta non ha risposta entro il 95° percentile,
+ *     è inviata una seconda richiesta identica (hedged request) e si usa la
+ *     prima risposta;</li>
+ *     <li>le richieste fallite, se il guasto può essere temporaneo, sono
+ *     ripetute dopo un'attesa che raddoppia ad ogni tentativo;</li>
+ *     <li>un interruttore (circuit breaker) si apre dopo un certo numero di
+ *     fallimenti consecutivi: finché è aperto le interrogazioni falliscono
+ *     subito, senza inviare richieste. Trascorso un intervallo, una sola
+ *     richiesta di prova decide se richiuderlo.</li>
+ * </ul>
+ * Ogni interrogazione ha una scadenza entro cui il suo {@link Result} è
+ * comunque disponibile. I risultati descrivono l'esito (vedi {@link Status})
+ * invece di codificarlo nella risposta. I metodi sono thread-safe. */
+public class Scheduler {
+    /** L'esito di un'interrogazione */
+    public enum Status {
+        /** Risposta ottenuta */
+        OK,
+        /** Errore di connessione, di HTTP o di analisi della pagina */
+        FAILED,
+        /** Scadenza o timeout superati */
+        TIMEOUT,
+        /** Rifiutata perché l'interruttore del servizio è aperto */
+        REJECTED
+    }
+
+    /** Il risultato di un'interrogazione ad un servizio web */
+    public static class Result {
+        /** @return il servizio web interrogato */
+        public TheLatest getService() { return service; }
+
+        /** @return l'interrogazione */
+        public String getQuery() { return query; }
+
+        /** @return l'esito dell'interrogazione */
+        public Status getStatus() { return status; }
+
+        /** @return true se l'esito è {@link Status#OK} */
+        public boolean isOk() { return status == Status.OK; }
+
+        /** @return la risposta, come quella di {@link TheLatest#get(String)},
+         * o null se l'esito non è {@link Status#OK} */
+        public String getAnswer() { return answer; }
+
+        /** @return la causa del fallimento, null se l'esito è {@link Status#OK} */
+        public Throwable getError() { return error; }
+
+        /** @return il numero di richieste inviate, incluse le ripetizioni e la
+         * richiesta hedged */
+        public int getAttempts() { return attempts; }
+
+        /** @return true se è stata inviata una richiesta hedged */
+        public boolean isHedged() { return hedged; }
+
+        /** @return il tempo in millisecondi dalla sottomissione al risultato */
+        public long getMillis() { return millis; }
+
+        @Override
+        public String toString() {
+            return query+"  "+(isOk() ? answer : service.getName()+"  "+status+" "+error.getMessage())+
+                    "  ("+millis+" ms, "+attempts+(hedged ? " hedged)" : ")");
+        }
+
+
+        private Result(TheLatest service, String query, Status status, String answer,
+                       Throwable error, int attempts, boolean hedged, long millis) {
+            this.service = service;
+            this.query = query;
+            this.status = status;
+            this.answer = answer;
+            this.error = error;
+            this.attempts = attempts;
+            this.hedged = hedged;
+            this.millis = millis;
+        }
+
+        private final TheLatest service;
+        private final String query, answer;
+        private final Status status;
+        private final Throwable error;
+        private final int attempts;
+        private final boolean hedged;
+        private final long millis;
+    }
+
+    /** Crea uno {@code Scheduler} con al più
+     * {@link Scheduler#DEFAULT_PER_SERVICE} richieste in corso per servizio */
+    public Scheduler() { this(DEFAULT_PER_SERVICE); }
+
+    /** Crea uno {@code Scheduler} con il limite di richieste per servizio dato.
+     * @param perService  massimo numero di richieste in corso verso uno stesso
+     *                    servizio
+     * @throws IllegalArgumentException se perService < 1 */
+    public Scheduler(int perService) {
+        if (perService < 1) throw new IllegalArgumentException("perService must be >= 1");
+        this.perService = perService;
+        client = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+                .build();
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "Scheduler timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /** Inizia tutte le interrogazioni qq ai servizi web lts e ritorna lo
+     * {@link Stream} dei loro risultati, nell'ordine in cui arrivano. Lo stream
+     * ha {@code lts.length*qq.length} elementi e termina entro la scadenza
+     * data: le interrogazioni non ancora concluse hanno esito
+     * {@link Status#TIMEOUT}.
+     * @param lts  i servizi web da interrogare
+     * @param deadline  scadenza in millisecondi
+     * @param qq  le interrogazioni
+     * @return lo stream dei risultati */
+    public Stream<Result> get(TheLatest[] lts, long deadline, String...qq) {
+        int n = lts.length*qq.length;
+        BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+        for (String q : qq)
+            for (TheLatest lt : lts)
+                submit(lt, q, deadline).thenAccept(results::add);
+        return Utils.stream(results, n);
+    }
+
+    /** Inizia l'interrogazione q al servizio web lt e ritorna il future del
+     * suo risultato, completato entro la scadenza data.
+     * @param lt  il servizio web
+     * @param q  l'interrogazione
+     * @param deadline  scadenza in millisecondi
+     * @return il future del risultato
+     * @throws IllegalArgumentException se deadline < 0 */
+    public CompletableFuture<Result> submit(TheLatest lt, String q, long deadline) {
+        if (deadline < 0) throw new IllegalArgumentException("deadline must be >= 0");
+        Service s = services.computeIfAbsent(lt.getName(), Service::new);
+        Call c = new Call(lt, q, deadline);
+        try {
+            c.uri = URI.create(lt.url(q));
+            Utils.newRequest(c.uri, MAX_TIMEOUT);   // Controlla l'URI prima di occupare un posto
+        } catch (IllegalArgumentException e) {
+            finish(c, Status.FAILED, null, e);
+            return c.done;
+        }
+        c.timer = timer.schedule(() -> expire(c, deadline), deadline, TimeUnit.MILLISECONDS);
+        if (!s.allow())
+            finish(c, Status.REJECTED, null, new RejectedExecutionException("Circuit open for "+s.name));
+        else
+            acquire(s, c);
+        return c.done;
+    }
+
+    /** Ritorna lo stato di ogni servizio: interruttore, richieste in corso e in
+     * attesa, percentili delle latenze, timeout e ritardo delle richieste
+     * hedged (-1 se disattivate), in millisecondi. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Service s : services.values())
+            sb.append(s).append('\n');
+        return sb.toString();
+    }
+
+    /** Massimo numero predefinito di richieste in corso verso uno stesso servizio */
+    public static final int DEFAULT_PER_SERVICE = 4;
+
+
+    /** Stato dell'interruttore di un servizio */
+    private enum Breaker { CLOSED, OPEN, HALF_OPEN }
+
+    /** Limite di concorrenza, latenze e interruttore di un servizio */
+    private static class Service {
+        Service(String name) { this.name = name; }
+
+        /** @return true se l'interruttore lascia passare una richiesta. Da
+         * aperto, trascorso OPEN_TIME, lascia passare una richiesta di prova,
+         * ripetuta se non ha esito entro MAX_TIMEOUT. */
+        synchronized boolean allow() {
+            long now = System.nanoTime();
+            if (breaker == Breaker.CLOSED) return true;
+            long wait = breaker == Breaker.OPEN ? OPEN_TIME : MAX_TIMEOUT;
+            if (now - changed < TimeUnit.MILLISECONDS.toNanos(wait)) return false;
+            breaker = Breaker.HALF_OPEN;
+            changed = now;
+            return true;
+        }
+
+        synchronized boolean isClosed() { return breaker == Breaker.CLOSED; }
+
+        /** Registra una risposta ricevuta in ms millisecondi */
+        synchronized void success(long ms) {
+            record(ms);
+            failures = 0;
+            breaker = Breaker.CLOSED;
+        }
+
+        /** Registra un fallimento e, se la latenza è nota (>= 0), la latenza */
+        synchronized void failure(long ms) {
+            if (ms >= 0) record(ms);
+            failures++;
+            if (breaker == Breaker.HALF_OPEN || breaker == Breaker.CLOSED && failures >= MAX_FAILURES) {
+                breaker = Breaker.OPEN;
+                changed = System.nanoTime();
+            }
+        }
+
+        synchronized long timeout() { return timeout; }
+
+        synchronized long hedgeAfter() { return hedgeAfter; }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ROOT, "%s  %s  inFlight %d  waiting %d  n %d  p50 %d  " +
+                    "p95 %d  p99 %d  timeout %d  hedge %d", name, breaker, inFlight, waiting.size(),
+                    all.count(), all.percentile(50), all.percentile(95), all.percentile(99),
+                    timeout, hedgeAfter);
+        }
+
+        /** Registra una latenza e, periodicamente, aggiorna timeout e ritardo
+         * delle richieste hedged. Le latenze sono in due istogrammi: quando
+         * quello corrente è pieno, sostituisce il precedente. */
+        private void record(long ms) {
+            cur.record(Math.max(0, ms));
+            if (cur.count() >= WINDOW) {
+                Histogram h = prev;
+                prev = cur;
+                cur = h;
+                cur.clear();
+            }
+            if (++recorded % UPDATE_EVERY != 0 && all.count() >= MIN_SAMPLES) return;
+            all.clear();
+            all.add(prev);
+            all.add(cur);
+            if (all.count() < MIN_SAMPLES) return;
+            timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, TIMEOUT_FACTOR*all.percentile(99)));
+            hedgeAfter = Math.max(MIN_HEDGE, all.percentile(95));
+            if (hedgeAfter >= timeout) hedgeAfter = -1;
+        }
+
+        final String name;
+        int inFlight;
+        final ArrayDeque<Call> waiting = new ArrayDeque<>();
+
+        private Histogram cur = new Histogram(MAX_TIMEOUT), prev = new Histogram(MAX_TIMEOUT);
+        private final Histogram all = new Histogram(MAX_TIMEOUT);   // cur + prev
+        private long recorded;
+        private long timeout = MAX_TIMEOUT, hedgeAfter = -1;      // In millisecondi
+        private Breaker breaker = Breaker.CLOSED;
+        private int failures;           // Fallimenti consecutivi
+        private long changed;           // Ultimo cambio di stato, in System.nanoTime()
+    }
+
+    /** Un'interrogazione in corso */
+    private static class Call {
+        Call(TheLatest lt, String q, long deadline) {
+            this.lt = lt;
+            this.q = q;
+            start = System.nanoTime();
+            end = start + TimeUnit.MILLISECONDS.toNanos(deadline);
+        }
+
+        /** @return i millisecondi rimanenti fino alla scadenza */
+        long remaining() { return TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()); }
+
+        final TheLatest lt;
+        final String q;
+        URI uri;                        // Impostato prima di inviare richieste
+        final long start, end;          // In System.nanoTime()
+        final CompletableFuture<Result> done = new CompletableFuture<>();
+        volatile ScheduledFuture<?> timer;
+        /** Le richieste inviate, annullate al completamento */
+        final List<CompletableFuture<?>> sent = new ArrayList<>();
+        int attempts, pending;
+        boolean hedged;
+    }
+
+    /** Invia la richiesta di c se c'è posto nel servizio, altrimenti la accoda */
+    private void acquire(Service s, Call c) {
+        synchronized (s) {
+            if (s.inFlight >= perService) {
+                s.waiting.add(c);
+                return;
+            }
+            s.inFlight++;
+        }
+        attempt(s, c);
+    }
+
+    /** Libera il posto di una richiesta terminata e invia la prossima in
+     * attesa, scartando quelle già concluse o scadute */
+    private void release(Service s) {
+        Call next;
+        synchronized (s) {
+            do {
+                next = s.waiting.poll();
+            } while (next != null && (next.done.isDone() || next.remaining() <= 0));
+            if (next == null) s.inFlight--;     // Altrimenti il posto passa a next
+        }
+        if (next != null) attempt(s, next);
+    }
+
+    /** Invia una richiesta per c, per cui è già stato riservato un posto */
+    private void attempt(Service s, Call c) {
+        long left = c.remaining();
+        if (c.done.isDone() || left <= 0) {
+            release(s);
+            return;
+        }
+        long timeout = Math.max(1, Math.min(s.timeout(), left));
+        boolean clipped = timeout < s.timeout();    // Dalla scadenza di c
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<byte[]>> f;
+        try {
+            f = client.sendAsync(Utils.newRequest(c.uri, timeout),
+                    HttpResponse.BodyHandlers.ofByteArray());
+        } catch (RuntimeException e) {
+            f = new CompletableFuture<>();
+            f.completeExceptionally(e);
+        }
+        boolean first;
+        synchronized (c) {
+            c.attempts++;
+            c.pending++;
+            c.sent.add(f);
+            first = c.attempts == 1;
+        }
+        if (c.done.isDone()) f.cancel(true);
+        long after = s.hedgeAfter();
+        if (first && after >= 0 && after < timeout)
+            timer.schedule(() -> hedge(s, c), after, TimeUnit.MILLISECONDS);
+        f.handle((resp, ex) -> {
+            release(s);
+            completed(s, c, resp, ex, (System.nanoTime() - start)/1_000_000, clipped);
+            return null;
+        });
+    }
+
+    /** Invia una richiesta hedged per c se la prima non ha ancora risposto e
+     * c'è posto nel servizio senza attendere */
+    private void hedge(Service s, Call c) {
+        synchronized (c) {
+            if (c.done.isDone() || c.pending == 0) return;
+        }
+        if (!s.isClosed()) return;
+        synchronized (s) {
+            if (s.inFlight >= perService) return;
+            s.inFlight++;
+        }
+        synchronized (c) {
+            c.hedged = true;
+        }
+        attempt(s, c);
+    }
+
+    /** Gestisce la risposta, o il fallimento, di una richiesta di c. Solo gli
+     * errori di trasporto ({@link IOException}) e le risposte 5xx sono
+     * ripetuti e contano come fallimenti del servizio. Un timeout accorciato
+     * dalla scadenza di c (clipped) non è un fallimento del servizio e la sua
+     * durata non è una latenza. */
+    private void completed(Service s, Call c, HttpResponse<byte[]> resp, Throwable ex, long ms,
+                           boolean clipped) {
+        Status st;
+        Throwable error;
+        boolean retry;
+        if (ex != null) {
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof CancellationException) return;   // c è concluso
+            error = cause;
+            if (cause instanceof HttpTimeoutException) {
+                st = Status.TIMEOUT;
+                retry = !clipped;
+                if (!clipped) s.failure(ms);
+            } else {
+                st = Status.FAILED;
+                retry = cause instanceof IOException;
+                if (retry) s.failure(-1);
+            }
+        } else if (resp.statusCode() >= 400) {
+            st = Status.FAILED;
+            error = new IOException("HTTP status "+resp.statusCode());
+            retry = resp.statusCode() >= 500;
+            if (retry) s.failure(-1);
+            else s.success(ms);         // Il servizio ha risposto
+        } else {
+            s.success(ms);
+            try {
+                finish(c, Status.OK, c.lt.parse(new String(resp.body(), c.lt.getCharset())), null);
+                return;
+            } catch (RuntimeException e) {
+                st = Status.FAILED;
+                error = e;
+                retry = false;
+            }
+        }
+        int attempts;
+        synchronized (c) {
+            c.pending--;
+            if (c.pending > 0 || c.done.isDone()) return;  // Si attende l'altra
+            attempts = c.attempts;
+        }
+        long backoff = BACKOFF << Math.min(attempts - 1, 10);
+        backoff = ThreadLocalRandom.current().nextLong(backoff/2, backoff + 1);
+        if (retry && attempts < MAX_ATTEMPTS && backoff < c.remaining() && s.allow())
+            timer.schedule(() -> acquire(s, c), backoff, TimeUnit.MILLISECONDS);
+        else
+            finish(c, st, null, error);
+    }
+
+    /** Conclude c per la scadenza. La scadenza è del chiamante: il servizio
+     * non registra né un fallimento né una latenza. */
+    private void expire(Call c, long deadline) {
+        finish(c, Status.TIMEOUT, null, new TimeoutException("Deadline of "+deadline+" ms exceeded"));
+    }
+
+    /** Completa c con l'esito dato, se non già completato, e annulla le sue
+     * richieste ancora in corso.
+     * @return true se c è stato completato da questa invocazione */
+    private boolean finish(Call c, Status st, String answer, Throwable error) {
+        Result r;
+        List<CompletableFuture<?>> sent;
+        synchronized (c) {
+            if (c.done.isDone()) return false;
+            r = new Result(c.lt, c.q, st, answer, error, c.attempts, c.hedged,
+                    (System.nanoTime() - c.start)/1_000_000);
+            sent = new ArrayList<>(c.sent);
+        }
+        if (!c.done.complete(r)) return false;
+        ScheduledFuture<?> t = c.timer;
+        if (t != null) t.cancel(false);
+        for (CompletableFuture<?> f : sent) f.cancel(true);
+        return true;
+    }
+
+    private static final long CONNECT_TIMEOUT = 5000;
+    /** Limiti del timeout adattivo, multiplo del 99° percentile delle latenze */
+    private static final long MIN_TIMEOUT = 1000, MAX_TIMEOUT = 10000, TIMEOUT_FACTOR = 3;
+    /** Minimo ritardo di una richiesta hedged */
+    private static final long MIN_HEDGE = 50;
+    /** Latenze per istogramma, minimo numero di latenze per adattare i timeout
+     * e numero di latenze tra due aggiornamenti */
+    private static final int WINDOW = 200, MIN_SAMPLES = 20, UPDATE_EVERY = 8;
+    /** Fallimenti consecutivi che aprono l'interruttore */
+    private static final int MAX_FAILURES = 5;
+    /** Millisecondi di apertura dell'interruttore prima di una prova */
+    private static final long OPEN_TIME = 10000;
+    /** Massimo numero di richieste per interrogazione e attesa prima della
+     * prima ripetizione, in millisecondi */
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF = 100;
+
+    private final int perService;
+    private final HttpClient client;
+    private final ScheduledThreadPoolExecutor timer;
+    private final Map<String,Service> services = new ConcurrentHashMap<>();
+}
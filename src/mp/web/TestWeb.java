@@ -3,7 +3,9 @@ package mp.web;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -11,6 +13,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 import static java.lang.System.out;
 import static mp.web.Utils.*;
@@ -42,12 +46,30 @@ public class TestWeb {
      * @param qq  le interrogazioni
      * @return  una mappa con le risposte alle interrogazioni */
     public static Map<String, List<String>> get(int nt, TheLatest[] lts, String...qq) {
+        return get(nt, TheLatest::get, lts, qq);
+    }
+
+    /** Come {@link TestWeb#get(int, TheLatest[], String...)} ma le risposte
+     * sono ottenute tramite la cache data, quindi le interrogazioni ripetute
+     * non scaricano di nuovo le pagine.
+     * @param nt  numero thread
+     * @param cache  la cache delle risposte
+     * @param lts  i servizi web da interrogare
+     * @param qq  le interrogazioni
+     * @return  una mappa con le risposte alle interrogazioni */
+    public static Map<String, List<String>> get(int nt, AnswerCache cache, TheLatest[] lts, String...qq) {
+        return get(nt, cache::get, lts, qq);
+    }
+
+    /** Esegue le interrogazioni con nt thread ottenendo ogni risposta con get */
+    private static Map<String, List<String>> get(int nt, BiFunction<TheLatest,String,String> get,
+                                                 TheLatest[] lts, String...qq) {
         ExecutorService exec = Executors.newFixedThreadPool(nt);    // Esecutore
         Map<String,List<Future<String>>> futures = new HashMap<>();
         for (String q : qq) {   // Sottomette i task di tutte le interrogazioni
             List<Future<String>> list = new ArrayList<>();
             for (TheLatest lt : lts)     // Sottomette i task di una interrogazione
-                list.add(exec.submit(() -> lt.get(q)));           // ai servizi web
+                list.add(exec.submit(() -> get.apply(lt, q)));     // ai servizi web
             futures.put(q, list);
         }
         Map<String,List<String>> results = new HashMap<>();
@@ -65,6 +87,52 @@ public class TestWeb {
         return results;
     }
 
+    /** Ritorna una mappa che associa ad ogni data interrogazione la lista delle
+     * risposte ottenute dai servizi web specificati, nell'ordine dei servizi.
+     * L'implementazione usa il {@link FanOut} dato, quindi non blocca un thread
+     * per ogni interrogazione in corso.
+     * @param fo  il {@link FanOut} che esegue le interrogazioni
+     * @param lts  i servizi web da interrogare
+     * @param qq  le interrogazioni
+     * @return  una mappa con le risposte alle interrogazioni */
+    public static Map<String,List<String>> get(FanOut fo, TheLatest[] lts, String...qq) {
+        try (Stream<FanOut.Result> rr = fo.get(lts, qq)) {
+            return get(rr, FanOut.Result::getService, FanOut.Result::getQuery,
+                    FanOut.Result::getAnswer, lts, qq);
+        }
+    }
+
+    /** Ritorna una mappa che associa ad ogni data interrogazione la lista delle
+     * risposte ottenute dai servizi web specificati, nell'ordine dei servizi,
+     * entro la scadenza data. L'implementazione usa lo {@link Scheduler} dato:
+     * le interrogazioni non riuscite hanno la risposta
+     * {@link TheLatest#error(Throwable)} con la causa del fallimento.
+     * @param sc  lo {@link Scheduler} che esegue le interrogazioni
+     * @param deadline  scadenza in millisecondi
+     * @param lts  i servizi web da interrogare
+     * @param qq  le interrogazioni
+     * @return  una mappa con le risposte alle interrogazioni */
+    public static Map<String,List<String>> get(Scheduler sc, long deadline, TheLatest[] lts, String...qq) {
+        return get(sc.get(lts, deadline, qq), Scheduler.Result::getService, Scheduler.Result::getQuery,
+                r -> r.isOk() ? r.getAnswer() : r.getService().error(r.getError()), lts, qq);
+    }
+
+    /** Raccoglie i risultati rr delle interrogazioni qq ai servizi web lts,
+     * ottenendo da ogni risultato servizio, interrogazione e risposta, in una
+     * mappa con le risposte di ogni interrogazione nell'ordine dei servizi */
+    private static <R> Map<String,List<String>> get(Stream<R> rr, Function<R,TheLatest> service,
+                                                    Function<R,String> query, Function<R,String> answer,
+                                                    TheLatest[] lts, String...qq) {
+        Map<String,String[]> answers = new HashMap<>();
+        for (String q : qq) answers.put(q, new String[lts.length]);
+        Map<TheLatest,Integer> index = new IdentityHashMap<>();
+        for (int i = 0 ; i < lts.length ; i++) index.put(lts[i], i);
+        rr.forEach(r -> answers.get(query.apply(r))[index.get(service.apply(r))] = answer.apply(r));
+        Map<String,List<String>> results = new HashMap<>();
+        answers.forEach((q, a) -> results.put(q, Arrays.asList(a)));
+        return results;
+    }
+
     public static void main(String[] args) {
         //test_loadPage();
         // I servizi web da interrogare
@@ -87,6 +155,46 @@ public class TestWeb {
 
         //test_TheLatest(lts, qq, TestWeb::get);
         test_TheLatest(lts, qq, (l,q) -> get(10,l,q));
+        //test_TheLatest(lts, qq, (l,q) -> get(new FanOut(),l,q));
+        //test_FanOut(new FanOut(), lts, qq);
+        //test_AnswerCache(new AnswerCache(), lts, qq);
+        //test_TheLatest(lts, qq, (l,q) -> get(new Scheduler(),5000,l,q));
+        //test_Scheduler(new Scheduler(), 5000, lts, qq);
+    }
+
+    /** Ripete le interrogazioni tramite lo scheduler, stampando i risultati
+     * man mano che arrivano e lo stato dei servizi */
+    private static void test_Scheduler(Scheduler sc, long deadline, TheLatest[] lts, String[] qq) {
+        for (int i = 0 ; i < 3 ; i++) {
+            long time = System.currentTimeMillis();
+            sc.get(lts, deadline, qq).forEach(r -> out.println(String.format("%6d ms  %-8s %s",
+                    System.currentTimeMillis() - time, r.getStatus(), r)));
+            out.println(String.format("Tempo: %.2f secondi",
+                    (System.currentTimeMillis() - time)/1000.0));
+            out.print(sc);
+        }
+    }
+
+    /** Ripete le interrogazioni tramite la cache e ne stampa le statistiche */
+    private static void test_AnswerCache(AnswerCache cache, TheLatest[] lts, String[] qq) {
+        for (int i = 0 ; i < 3 ; i++) {
+            long time = System.currentTimeMillis();
+            get(10, cache, lts, qq);
+            out.println(String.format("Tempo: %.2f secondi  %s",
+                    (System.currentTimeMillis() - time)/1000.0, cache));
+        }
+    }
+
+    /** Stampa i risultati delle interrogazioni man mano che arrivano */
+    private static void test_FanOut(FanOut fo, TheLatest[] lts, String[] qq) {
+        out.println("Servizi: "+lts.length+"  Interrogazioni: "+qq.length);
+        long time = System.currentTimeMillis();
+        try (Stream<FanOut.Result> rr = fo.get(lts, qq)) {
+            rr.forEach(r -> out.println(String.format("%6d ms  %s",
+                    System.currentTimeMillis() - time, r)));
+        }
+        out.println(String.format("Tempo: %.2f secondi",
+                (System.currentTimeMillis() - time)/1000.0));
     }
 
     private static void test_TheLatest(TheLatest[] lts, String[] qq,
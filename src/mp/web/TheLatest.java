@@ -1,11 +1,19 @@
 package mp.web;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static mp.web.Utils.clean;
-import static mp.web.Utils.loadPage;
+import static mp.web.Utils.openConnection;
 
 /** Un oggetto {@code TheLatest} rappresenta un servizio web per la ricerca e il
  * recupero di informazioni aggiornate. Può essere interrogato circa un argomento
@@ -37,23 +45,128 @@ public class TheLatest {
         gDate = gD;
     }
 
-    /** Ritorna la risposta ad un'interrogazione a questo servizio web.
+    /** Ritorna la risposta ad un'interrogazione a questo servizio web. La
+     * pagina di risposta è letta ed analizzata man mano che arriva (vedi
+     * {@link TheLatest#parse(Reader)}) e la connessione è chiusa appena la
+     * notizia è trovata.
      * @param q  stringa che contiene l'interrogazione
      * @return  la risposta all'interrogazione */
     public String get(String q) {
-        String url = uStart+q.replace(" ", "+")+uEnd;
-        String s = name+"  ";
         try {
-            String page = loadPage(url, chars);
-            Matcher m = regExp.matcher(page);
+            return parse(openConnection(url(q)));
+        } catch (Exception e) { return error(e); }
+    }
+
+    /** @return il nome di questo servizio web */
+    public String getName() { return name; }
+
+    /** @return la codifica dei caratteri delle pagine di risposta */
+    public Charset getCharset() { return chars; }
+
+    /** Ritorna l'URL dell'interrogazione data. L'interrogazione è codificata
+     * come in un form HTML ({@link URLEncoder}) con la codifica delle pagine:
+     * gli spazi diventano '+' e gli altri caratteri riservati, come '"', '|',
+     * '%' e '#', sono codificati con '%'.
+     * @param q  stringa che contiene l'interrogazione
+     * @return l'URL dell'interrogazione */
+    public String url(String q) { return uStart+URLEncoder.encode(q, chars)+uEnd; }
+
+    /** Ritorna la risposta estratta da una pagina di risposta di questo
+     * servizio web.
+     * @param page  il contenuto della pagina di risposta
+     * @return la risposta, con la data e il titolo della notizia più recente */
+    public String parse(String page) {
+        Matcher m = regExp.matcher(page);
+        return answer(page, m.find() ? m : null);
+    }
+
+    /** Ritorna la risposta estratta da una pagina di risposta di questo
+     * servizio web letta da un flusso. I caratteri sono letti a blocchi in una
+     * finestra di dimensione limitata e la ricerca è ripetuta dopo ogni blocco,
+     * quindi la lettura termina appena la notizia è trovata, senza leggere il
+     * resto della pagina. Se la finestra si riempie senza trovare la notizia,
+     * è mantenuta solamente la sua seconda metà: una notizia la cui
+     * espressione regolare corrisponde a più di {@link TheLatest#WINDOW}/2
+     * caratteri potrebbe non essere trovata. Il flusso non è chiuso.
+     * @param in  flusso con il contenuto della pagina di risposta
+     * @return la risposta, con la data e il titolo della notizia più recente
+     * @throws IOException se accade un errore durante la lettura */
+    public String parse(Reader in) throws IOException {
+        return parse(in, new boolean[1]);
+    }
+
+    /** Ritorna la risposta per un'interrogazione fallita.
+     * @param e  l'eccezione che ha causato il fallimento
+     * @return la risposta per l'interrogazione fallita */
+    public String error(Throwable e) { return name+"  ERROR "+e.getMessage(); }
+
+    /** Dimensione in caratteri della finestra usata da
+     * {@link TheLatest#parse(Reader)} */
+    public static final int WINDOW = 1 << 15;
+
+
+    /** Legge dalla connessione la pagina di risposta con
+     * {@link TheLatest#parse(Reader)} e ne ritorna la risposta. Se la lettura
+     * termina prima della fine della pagina, la connessione HTTP è chiusa
+     * invece di leggere, per riusarla, il resto della pagina. */
+    String parse(URLConnection urlC) throws IOException {
+        InputStream in = urlC.getInputStream();
+        boolean[] end = {false};
+        try {
+            return parse(new InputStreamReader(in, chars), end);
+        } finally {     // Chiudere il flusso non letto fino alla fine lo svuota
+            if (!end[0] && urlC instanceof HttpURLConnection)
+                ((HttpURLConnection)urlC).disconnect();
+            else
+                in.close();
+        }
+    }
+
+    /** Come {@link TheLatest#parse(Reader)}, in end[0] è registrato se il
+     * flusso è stato letto fino alla fine */
+    private String parse(Reader in, boolean[] end) throws IOException {
+        char[] buf = new char[WINDOW];
+        Matcher m = regExp.matcher("");
+        int n = 0;
+        while (true) {
+            int start = n;          // Legge un blocco, o fino alla fine
+            while (!end[0] && n - start < CHUNK && n < buf.length) {
+                int r = in.read(buf, n, Math.min(CHUNK - (n - start), buf.length - n));
+                if (r < 0) end[0] = true;
+                else n += r;
+            }
+            CharBuffer cb = CharBuffer.wrap(buf, 0, n);
+            m.reset(cb);
             if (m.find()) {
-                s += m.group(gDate).trim()+"  ";
-                return s + "<<"+clean(m.group(gTitle).trim())+">>";
-            } else
-                return s + "No news";
-        } catch (Exception e) { return s+"ERROR "+e.getMessage(); }
+                // Se hitEnd(), altri caratteri potrebbero cambiare la corrispondenza
+                if (end[0] || !m.hitEnd() || n == buf.length)
+                    return answer(cb, m);
+            } else if (end[0])
+                return answer(cb, null);
+            else if (n == buf.length) {     // Fa scorrere la finestra
+                System.arraycopy(buf, n - WINDOW/2, buf, 0, WINDOW/2);
+                n = WINDOW/2;
+            }
+        }
     }
 
+    /** Ritorna la risposta della corrispondenza m nella pagina page, o
+     * "No news" se m è null */
+    private String answer(CharSequence page, Matcher m) {
+        String s = name+"  ";
+        if (m != null) {
+            s += m.group(gDate).trim()+"  ";
+            int start = m.start(gTitle), end = m.end(gTitle);  // Senza spazi
+            while (start < end && page.charAt(start) <= ' ') start++;  // iniziali
+            while (end > start && page.charAt(end-1) <= ' ') end--;    // e finali
+            return s + "<<"+clean(page, start, end)+">>";
+        } else
+            return s + "No news";
+    }
+
+
+    /** Numero di caratteri letti prima di ripetere la ricerca */
+    private static final int CHUNK = 4096;
 
     private final String name;
     private final Charset chars;
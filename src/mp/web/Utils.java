@@ -4,9 +4,20 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URI;
 import java.net.URL;
 import java.net.URLConnection;
+import java.net.http.HttpRequest;
 import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.util.stream.Collectors.joining;
 
@@ -30,31 +41,275 @@ public class Utils {
      * @return  il contenuto della pagina come stringa
      * @throws IOException se accade un errore durante la connessione remota */
     public static String loadPage(String url, Charset cs) throws IOException {
+        URLConnection urlC = openConnection(url);
+        urlC.connect();
+        return read(urlC.getInputStream(), cs);
+    }
+
+    /** Ritorna una connessione, non ancora aperta, all'URL dato con le stesse
+     * intestazioni e gli stessi timeout usati da
+     * {@link Utils#loadPage(String, Charset)}.
+     * @param url  una stringa contenente un URL
+     * @return la connessione all'URL
+     * @throws IOException se l'URL non è valido */
+    public static URLConnection openConnection(String url) throws IOException {
         URLConnection urlC = new URL(url).openConnection();
-        urlC.setRequestProperty("User-Agent", "Mozilla/5.0");
-        urlC.setRequestProperty("Accept", "text/html;q=1.0,*;q=0");
-        urlC.setRequestProperty("Accept-Encoding", "identity;q=1.0,*;q=0");
+        for (int i = 0 ; i < HEADERS.length ; i += 2)
+            urlC.setRequestProperty(HEADERS[i], HEADERS[i + 1]);
         urlC.setConnectTimeout(5000);
         urlC.setReadTimeout(10000);
-        urlC.connect();
-        return read(urlC.getInputStream(), cs);
+        return urlC;
+    }
+
+    /** Ritorna una richiesta GET per un {@link java.net.http.HttpClient} all'URI
+     * dato, con le stesse intestazioni usate da {@link Utils#openConnection(String)}.
+     * @param uri  l'URI
+     * @param timeout  timeout della richiesta in millisecondi
+     * @return la richiesta
+     * @throws IllegalArgumentException se lo schema dell'URI non è HTTP */
+    public static HttpRequest newRequest(URI uri, long timeout) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(uri);
+        for (int i = 0 ; i < HEADERS.length ; i += 2)
+            b.header(HEADERS[i], HEADERS[i + 1]);
+        return b.timeout(Duration.ofMillis(timeout)).GET().build();
+    }
+
+    /** Ritorna uno {@link Stream} sequenziale di n elementi presi dalla coda
+     * data man mano che vi sono aggiunti. Un'operazione terminale attende gli
+     * elementi che non sono ancora arrivati.
+     * @param queue  la coda in cui arrivano gli elementi
+     * @param n  il numero di elementi
+     * @param <T>  il tipo degli elementi
+     * @return lo stream degli elementi */
+    public static <T> Stream<T> stream(BlockingQueue<T> queue, int n) {
+        Spliterator<T> sp = new Spliterators.AbstractSpliterator<T>(n,
+                Spliterator.SIZED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                if (taken == n) return false;
+                try {
+                    action.accept(queue.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                }
+                taken++;
+                return true;
+            }
+
+            private int taken = 0;
+        };
+        return StreamSupport.stream(sp, false);
     }
 
     /** Ritorna la stringa ripulita, cioè ottenuta sostituendo le sequenze di
-     * whitespaces consecutivi con un singolo spazio e le più comuni HTML
-     * character references con i relativi caratteri.
+     * whitespaces consecutivi con un singolo spazio e le HTML character
+     * references (con nome dell'HTML 4, {@code &apos;}, decimali ed
+     * esadecimali) con i relativi caratteri. Le virgolette angolari
+     * {@code &laquo;} e {@code &raquo;} sono sostituite da {@code "}. Le
+     * references sconosciute o senza ';' finale sono lasciate invariate, così
+     * come quelle con i nomi introdotti dall'HTML5 (ad esempio
+     * {@code &check;} o {@code &NewLine;}). La stringa è esaminata una sola volta e, se non contiene nulla da
+     * sostituire, è ritornata senza copiarla.
      * @param s  una stringa, tipicamente tratta da una pagina HTML
      * @return la stringa ripulita */
     public static String clean(String s) {
-        s = s.replaceAll("\\s+", " ");
-        for (String[] cr : CHAR_REFS)
-            s = s.replace("&"+cr[0]+";", cr[1]);
-        return s;
+        int n = s.length(), i = 0;
+        while (i < n) {             // Cerca il primo carattere da sostituire
+            char c = s.charAt(i);
+            if (c == '&' || isSpace(c) && (c != ' ' || i+1 < n && isSpace(s.charAt(i+1))))
+                break;
+            i++;
+        }
+        if (i == n) return s;
+        StringBuilder sb = builder();
+        sb.append(s, 0, i);
+        return clean(s, i, n, sb).toString();
+    }
+
+    /** Ritorna la ripulitura, come {@link Utils#clean(String)}, della porzione
+     * [start, end) della sequenza di caratteri data.
+     * @param s  una sequenza di caratteri, tipicamente tratta da una pagina HTML
+     * @param start  inizio della porzione, incluso
+     * @param end  fine della porzione, escluso
+     * @return la porzione ripulita */
+    public static String clean(CharSequence s, int start, int end) {
+        return clean(s, start, end, builder()).toString();
+    }
+
+    /** Appende a sb la ripulitura, come {@link Utils#clean(String)}, della
+     * porzione [start, end) della sequenza di caratteri data. Non crea altri
+     * oggetti oltre a quelli eventualmente richiesti dalla crescita di sb.
+     * @param s  una sequenza di caratteri, tipicamente tratta da una pagina HTML
+     * @param start  inizio della porzione, incluso
+     * @param end  fine della porzione, escluso
+     * @param sb  dove appendere la porzione ripulita
+     * @return sb */
+    public static StringBuilder clean(CharSequence s, int start, int end, StringBuilder sb) {
+        if (start < 0 || end > s.length() || start > end)
+            throw new IndexOutOfBoundsException("["+start+", "+end+") of "+s.length());
+        int i = start;
+        while (i < end) {
+            char c = s.charAt(i);
+            if (isSpace(c)) {
+                sb.append(' ');
+                do i++; while (i < end && isSpace(s.charAt(i)));
+            } else if (c == '&') {
+                i = reference(s, i, end, sb);
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb;
+    }
+
+
+    /** Se in s all'indice i, dove c'è '&', inizia una character reference
+     * completa entro end, appende a sb il suo carattere e ritorna l'indice
+     * successivo al ';'. Altrimenti appende '&' e ritorna i + 1. */
+    private static int reference(CharSequence s, int i, int end, StringBuilder sb) {
+        int j = i + 1;
+        if (j < end && s.charAt(j) == '#') {           // Numerica
+            j++;
+            int radix = 10;
+            if (j < end && (s.charAt(j) == 'x' || s.charAt(j) == 'X')) {
+                radix = 16;
+                j++;
+            }
+            int first = j, cp = 0, d;
+            while (j < end && (d = Character.digit(s.charAt(j), radix)) >= 0) {
+                if (cp <= Character.MAX_CODE_POINT) cp = cp*radix + d;
+                j++;
+            }
+            if (j > first && j < end && s.charAt(j) == ';') {
+                boolean valid = cp > 0 && cp <= Character.MAX_CODE_POINT &&
+                        (cp < Character.MIN_SURROGATE || cp > Character.MAX_SURROGATE);
+                sb.appendCodePoint(valid ? cp : 0xFFFD);
+                return j + 1;
+            }
+        } else {                                        // Con nome
+            int node = 0;
+            while (j < end && s.charAt(j) != ';' && (node = child(node, s.charAt(j))) > 0)
+                j++;
+            if (node > 0 && j < end && s.charAt(j) == ';' && T_VALUE[node] >= 0) {
+                sb.append((char)T_VALUE[node]);
+                return j + 1;
+            }
+        }
+        sb.append('&');
+        return i + 1;
+    }
+
+    /** Ritorna il figlio con etichetta c del nodo dato del trie dei nomi delle
+     * references, o -1 se non esiste */
+    private static int child(int node, char c) {
+        for (int k = T_CHILD[node] ; k > 0 ; k = T_NEXT[k])
+            if (T_CHAR[k] == c) return k;
+        return -1;
+    }
+
+    /** @return true se c è un whitespace, cioè appartiene a {@code \s} */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c >= '\t' && c <= '\r';
+    }
+
+    /** @return lo StringBuilder, vuoto, riusato dal thread corrente */
+    private static StringBuilder builder() {
+        StringBuilder sb = BUILDER.get();
+        if (sb.capacity() > MAX_BUILDER) {
+            sb = new StringBuilder();
+            BUILDER.set(sb);
+        }
+        sb.setLength(0);
+        return sb;
+    }
+
+    /** Le intestazioni delle richieste, coppie nome valore */
+    private static final String[] HEADERS = {"User-Agent", "Mozilla/5.0",
+            "Accept", "text/html;q=1.0,*;q=0", "Accept-Encoding", "identity;q=1.0,*;q=0"};
+
+    /** Nomi delle character references dell'HTML 4, più {@code apos}, e
+     * relativi caratteri. laquo e raquo sono sostituite da '"' (34). I nomi
+     * aggiunti dall'HTML5 non sono inclusi: sono più di duemila, alcuni
+     * corrispondono a due caratteri e sono rari nelle pagine. */
+    private static final String ENTITIES =
+            "AElig 198 Aacute 193 Acirc 194 Agrave 192 Alpha 913 Aring 197 " +
+            "Atilde 195 Auml 196 Beta 914 Ccedil 199 Chi 935 Dagger 8225 Delta 916 " +
+            "ETH 208 Eacute 201 Ecirc 202 Egrave 200 Epsilon 917 Eta 919 Euml 203 " +
+            "Gamma 915 Iacute 205 Icirc 206 Igrave 204 Iota 921 Iuml 207 Kappa 922 " +
+            "Lambda 923 Mu 924 Ntilde 209 Nu 925 OElig 338 Oacute 211 Ocirc 212 " +
+            "Ograve 210 Omega 937 Omicron 927 Oslash 216 Otilde 213 Ouml 214 " +
+            "Phi 934 Pi 928 Prime 8243 Psi 936 Rho 929 Scaron 352 Sigma 931 " +
+            "THORN 222 Tau 932 Theta 920 Uacute 218 Ucirc 219 Ugrave 217 " +
+            "Upsilon 933 Uuml 220 Xi 926 Yacute 221 Yuml 376 Zeta 918 aacute 225 " +
+            "acirc 226 acute 180 aelig 230 agrave 224 alefsym 8501 alpha 945 " +
+            "amp 38 and 8743 ang 8736 aring 229 asymp 8776 atilde 227 auml 228 " +
+            "bdquo 8222 beta 946 brvbar 166 bull 8226 cap 8745 ccedil 231 " +
+            "cedil 184 cent 162 chi 967 circ 710 clubs 9827 cong 8773 copy 169 " +
+            "crarr 8629 cup 8746 curren 164 dArr 8659 dagger 8224 darr 8595 " +
+            "deg 176 delta 948 diams 9830 divide 247 eacute 233 ecirc 234 " +
+            "egrave 232 empty 8709 emsp 8195 ensp 8194 epsilon 949 equiv 8801 " +
+            "eta 951 eth 240 euml 235 euro 8364 exist 8707 fnof 402 forall 8704 " +
+            "frac12 189 frac14 188 frac34 190 frasl 8260 gamma 947 ge 8805 gt 62 " +
+            "hArr 8660 harr 8596 hearts 9829 hellip 8230 iacute 237 icirc 238 " +
+            "iexcl 161 igrave 236 image 8465 infin 8734 int 8747 iota 953 " +
+            "iquest 191 isin 8712 iuml 239 kappa 954 lArr 8656 lambda 955 " +
+            "lang 9001 laquo 34 larr 8592 lceil 8968 ldquo 8220 le 8804 " +
+            "lfloor 8970 lowast 8727 loz 9674 lrm 8206 lsaquo 8249 lsquo 8216 " +
+            "lt 60 macr 175 mdash 8212 micro 181 middot 183 minus 8722 mu 956 " +
+            "nabla 8711 nbsp 160 ndash 8211 ne 8800 ni 8715 not 172 notin 8713 " +
+            "nsub 8836 ntilde 241 nu 957 oacute 243 ocirc 244 oelig 339 ograve 242 " +
+            "oline 8254 omega 969 omicron 959 oplus 8853 or 8744 ordf 170 ordm 186 " +
+            "oslash 248 otilde 245 otimes 8855 ouml 246 para 182 part 8706 " +
+            "permil 8240 perp 8869 phi 966 pi 960 piv 982 plusmn 177 pound 163 " +
+            "prime 8242 prod 8719 prop 8733 psi 968 quot 34 rArr 8658 radic 8730 " +
+            "rang 9002 raquo 34 rarr 8594 rceil 8969 rdquo 8221 real 8476 reg 174 " +
+            "rfloor 8971 rho 961 rlm 8207 rsaquo 8250 rsquo 8217 sbquo 8218 " +
+            "scaron 353 sdot 8901 sect 167 shy 173 sigma 963 sigmaf 962 sim 8764 " +
+            "spades 9824 sub 8834 sube 8838 sum 8721 sup 8835 sup1 185 sup2 178 " +
+            "sup3 179 supe 8839 szlig 223 tau 964 there4 8756 theta 952 " +
+            "thetasym 977 thinsp 8201 thorn 254 tilde 732 times 215 trade 8482 " +
+            "uArr 8657 uacute 250 uarr 8593 ucirc 251 ugrave 249 uml 168 upsih 978 " +
+            "upsilon 965 uuml 252 weierp 8472 xi 958 yacute 253 yen 165 yuml 255 " +
+            "zeta 950 zwj 8205 zwnj 8204" +
+            " apos 39";
+
+    /** Il trie dei nomi delle references: per ogni nodo, l'etichetta, il primo
+     * figlio, il fratello successivo (0 se non c'è) e il carattere della
+     * reference che termina nel nodo (-1 se nessuna). Il nodo 0 è la radice. */
+    private static final char[] T_CHAR;
+    private static final int[] T_CHILD, T_NEXT, T_VALUE;
+    static {
+        String[] tt = ENTITIES.split(" ");
+        int max = 1;
+        for (int k = 0 ; k < tt.length ; k += 2) max += tt[k].length();
+        char[] label = new char[max];
+        int[] child = new int[max], next = new int[max], value = new int[max];
+        Arrays.fill(value, -1);
+        int nodes = 1;
+        for (int k = 0 ; k < tt.length ; k += 2) {
+            int node = 0;
+            for (char c : tt[k].toCharArray()) {
+                int ch = child[node];
+                while (ch > 0 && label[ch] != c) ch = next[ch];
+                if (ch == 0) {
+                    ch = nodes++;
+                    label[ch] = c;
+                    next[ch] = child[node];
+                    child[node] = ch;
+                }
+                node = ch;
+            }
+            value[node] = Integer.parseInt(tt[k+1]);
+        }
+        T_CHAR = Arrays.copyOf(label, nodes);
+        T_CHILD = Arrays.copyOf(child, nodes);
+        T_NEXT = Arrays.copyOf(next, nodes);
+        T_VALUE = Arrays.copyOf(value, nodes);
     }
 
-    /** Sostituzioni per le più comuni HTML character references */
-    private static final String[][] CHAR_REFS = {{"amp","&"},{"laquo","\""},
-            {"raquo","\""},{"quot","\""},{"egrave","è"},{"Egrave","È"},
-            {"eacute","é"},{"agrave","à"},{"ograve","ò"},{"igrave","ì"},
-            {"ugrave","ù"},{"deg","°"}};
+    /** Capacità oltre la quale lo StringBuilder riusato è sostituito */
+    private static final int MAX_BUILDER = 1 << 16;
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(StringBuilder::new);
 }